@@ -1,6 +1,8 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import net.floodlightcontroller.packet.Ethernet;
@@ -18,12 +20,18 @@ public abstract class Device
 	/** List of the device's interfaces; maps interface name's to interfaces */
 	protected Map<String,Iface> interfaces;
 	
+	/** List of the device's interfaces, ordered by interface index */
+	private List<Iface> interfacesByIndex;
+	
 	/** PCAP dump file for logging all packets sent/received by the device;
 	 *  null if packets should not be logged */
 	private DumpFile logfile;
 	
 	/** Virtual Network Simulator communication manager for the device */
 	private VNSComm vnsComm;
+
+	/** Traces what the device does */
+	protected Trace trace;
 	
 	/**
 	 * Creates a device.
@@ -35,7 +43,9 @@ public abstract class Device
 		this.host = host;
 		this.logfile = logfile;
 		this.interfaces = new HashMap<String,Iface>();
+		this.interfacesByIndex = new ArrayList<Iface>();
 		this.vnsComm = null;
+		this.trace = new Trace(TraceRing.getShared());
 	}
 	
 	/**
@@ -65,6 +75,12 @@ public abstract class Device
 	public Map<String,Iface> getInterfaces()
 	{ return this.interfaces; }
 	
+	/**
+	 * @return trace of what the device does
+	 */
+	public Trace getTrace()
+	{ return this.trace; }
+	
 	/**
 	 * @param vnsComm Virtual Network System communication manager for the router
 	 */
@@ -72,12 +88,14 @@ public abstract class Device
 	{ this.vnsComm = vnsComm; }
 	
 	/**
-	 * Close the PCAP dump file for the router, if logging is enabled.
+	 * Close the PCAP dump file for the router, if logging is enabled, and
+	 * print any traced messages not yet printed.
 	 */
 	public void destroy()
 	{
 		if (logfile != null)
 		{ this.logfile.close(); }
+		this.trace.getRing().flush();
 	}
 	
 	/**
@@ -87,7 +105,9 @@ public abstract class Device
 	public Iface addInterface(String ifaceName)
 	{
 		Iface iface = new Iface(ifaceName);
+		iface.setIndex(this.interfacesByIndex.size());
 		this.interfaces.put(ifaceName, iface);
+		this.interfacesByIndex.add(iface);
 		return iface;
 	}
 	
@@ -100,6 +120,19 @@ public abstract class Device
 	public Iface getInterface(String ifaceName)
 	{ return this.interfaces.get(ifaceName); }
 	
+	/**
+	 * Gets an interface on the device by the interface's index.
+	 * @param index index of the desired interface
+	 * @return requested interface; null if no interface with the given index
+	 * 		   exists
+	 */
+	public Iface getInterface(int index)
+	{
+		if (index < 0 || index >= this.interfacesByIndex.size())
+		{ return null; }
+		return this.interfacesByIndex.get(index);
+	}
+	
 	/**
 	 * Send an Ethernet packet out a specific interface.
 	 * @param etherPacket an Ethernet packet with all fields, encapsulated
@@ -109,6 +142,66 @@ public abstract class Device
 	 */
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
 	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
+
+	/**
+	 * Send an Ethernet frame out a specific interface from its raw bytes,
+	 * without copying it.
+	 * @param frame buffer holding the frame, with at least {@link 
+	 *        VNSComm#PACKET_HEADER_SIZE} bytes before the frame that may be
+	 *        overwritten, as in frames passed to {@link #handleFrame}
+	 * @param offset position of the frame in the buffer
+	 * @param length length of the frame
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendFrame(byte[] frame, int offset, int length, Iface iface)
+	{ return this.vnsComm.sendFrame(frame, offset, length, iface.getName()); }
+
+	/**
+	 * Send an Ethernet packet out every interface but one, serializing it
+	 * only once.
+	 * @param etherPacket an Ethernet packet with all fields, encapsulated
+	 * 		  headers, and payloads completed
+	 * @param exceptIface interface on which not to send the packet, usually
+	 *        the one it was received on; null to send it on every interface
+	 * @return true if the packet was sent successfully, otherwise false
+	 */
+	public boolean floodPacket(Ethernet etherPacket, Iface exceptIface)
+	{
+		byte[] frame = etherPacket.serialize();
+		return this.floodFrame(frame, 0, frame.length, exceptIface);
+	}
+
+	/**
+	 * Send an Ethernet frame out every interface but one from its raw bytes.
+	 * The copies for all interfaces are written to the server at once.
+	 * @param frame buffer holding the frame
+	 * @param offset position of the frame in the buffer
+	 * @param length length of the frame
+	 * @param exceptIface interface on which not to send the frame, usually
+	 *        the one it was received on; null to send it on every interface
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean floodFrame(byte[] frame, int offset, int length, 
+			Iface exceptIface)
+	{ return this.vnsComm.floodFrame(frame, offset, length, exceptIface); }
+
+	/**
+	 * Handle an Ethernet frame received on a specific interface from its raw
+	 * bytes, before it is parsed. Devices override this to handle common
+	 * frames without parsing them; frames it does not handle are parsed and
+	 * passed to {@link #handlePacket(Ethernet, Iface)}.
+	 * @param frame buffer holding the frame, which is reused for the next
+	 *        frame once this returns; the frame may be modified and sent with
+	 *        {@link #sendFrame} only if it is handled
+	 * @param offset position of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was handled, false if it should be parsed
+	 */
+	public boolean handleFrame(byte[] frame, int offset, int length, 
+			Iface inIface)
+	{ return false; }
 	
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
 }
@@ -13,17 +13,29 @@ public class Iface
 	private MACAddress macAddress;
 	private int ipAddress;
     private int subnetMask;
+	private int index;
 	
 	public Iface(String name)
 	{
 		this.name = name;
 		this.macAddress = null;
 		this.ipAddress = 0;
+		this.index = -1;
 	}
 	
 	public String getName()
 	{ return this.name; }
 	
+	public void setIndex(int index)
+	{ this.index = index; }
+	
+	/**
+	 * @return small integer identifying the interface on its device; -1 if 
+	 *         the interface has not been added to a device
+	 */
+	public int getIndex()
+	{ return this.index; }
+	
 	public void setMacAddress(MACAddress mac)
 	{ this.macAddress = mac; }
 	
@@ -16,6 +16,14 @@ public class Main
 		String server = DEFAULT_SERVER;
 		String routeTableFile = null;
 		String arpCacheFile = null;
+		String routeSnapshotFile = null;
+		String arpSnapshotFile = null;
+		String fibType = null;
+		boolean aggregate = false;
+		boolean connectedRoutes = false;
+		boolean warmArp = false;
+		String icmpRateLimit = null;
+		String traceLevel = null;
 		String logfile = null;
 		short port = DEFAULT_PORT;
 		VNSComm vnsComm = null;
@@ -42,6 +50,22 @@ public class Main
 			{ routeTableFile = args[++i]; }
 			else if (arg.equals("-a"))
 			{ arpCacheFile = args[++i]; }
+			else if (arg.equals("-R"))
+			{ routeSnapshotFile = args[++i]; }
+			else if (arg.equals("-A"))
+			{ arpSnapshotFile = args[++i]; }
+			else if (arg.equals("-f"))
+			{ fibType = args[++i]; }
+			else if (arg.equals("-g"))
+			{ aggregate = true; }
+			else if (arg.equals("-c"))
+			{ connectedRoutes = true; }
+			else if (arg.equals("-w"))
+			{ warmArp = true; }
+			else if (arg.equals("-i"))
+			{ icmpRateLimit = args[++i]; }
+			else if (arg.equals("-t"))
+			{ traceLevel = args[++i]; }
 		}
 		
 		if (null == host)
@@ -82,31 +106,115 @@ public class Main
 		if (!vnsComm.connectToServer(port, server))
 		{ System.exit(1); }
 		vnsComm.readFromServerExpect(Command.VNS_HW_INFO);	
+
+		// Set how much the device traces, now that its interfaces are known
+		if (traceLevel != null)
+		{ setTraceLevel(dev, traceLevel); }
 		
 		if (dev instanceof Router) 
 		{
-			// Read static route table
-			if (routeTableFile != null)
-			{ ((Router)dev).loadRouteTable(routeTableFile); }
+			// Read static route table, or restore it from a snapshot
+			if (routeTableFile != null || routeSnapshotFile != null)
+			{
+				((Router)dev).setConnectedRoutes(connectedRoutes);
+				((Router)dev).loadRouteTable(routeTableFile, 
+						routeSnapshotFile);
+			}
 			
-			// Read static ACP cache
-			if (arpCacheFile != null)
-			{ ((Router)dev).loadArpCache(arpCacheFile); }
+			// Aggregate prefixes before building the forwarding table, so it
+			// is built only once
+			if (aggregate)
+			{ ((Router)dev).aggregateForwardingTable(); }
+
+			// Build forwarding table
+			if (fibType != null)
+			{ ((Router)dev).setForwardingTable(fibType); }
+			
+			// Read static ACP cache, or restore it from a snapshot
+			if (arpCacheFile != null || arpSnapshotFile != null)
+			{ ((Router)dev).loadArpCache(arpCacheFile, arpSnapshotFile); }
+
+			// Limit ICMP errors, in total and to each host
+			if (icmpRateLimit != null)
+			{
+				String[] rates = icmpRateLimit.split(",");
+				((Router)dev).setIcmpRateLimit(Integer.parseInt(rates[0]),
+						Integer.parseInt(rates[rates.length - 1]));
+			}
+		}
+
+		// Warm the ARP cache while messages from the server are read on
+		// another thread, so the replies are received
+		Thread readThread = null;
+		if (warmArp && dev instanceof Router)
+		{
+			final VNSComm comm = vnsComm;
+			readThread = new Thread(new Runnable() {
+				public void run()
+				{ while (comm.readFromServer()); }
+			});
+			readThread.start();
+			((Router)dev).warmArpCache(Router.ARP_WARM_TIMEOUT);
 		}
 
 		// Read messages from the server until the server closes the connection
 		System.out.println("<-- Ready to process packets -->");
-		while (vnsComm.readFromServer());
+		if (null == readThread)
+		{ while (vnsComm.readFromServer()); }
+		else
+		{
+			try
+			{ readThread.join(); }
+			catch (InterruptedException e)
+			{ }
+		}
 		
 		// Shutdown the router
 		dev.destroy();
 	}
 	
+	/**
+	 * Set how much a device traces, for the whole device or only for some
+	 * of its interfaces.
+	 * @param dev the device
+	 * @param arg level name, optionally followed by a colon and a comma
+	 *        separated list of interface names
+	 */
+	private static void setTraceLevel(Device dev, String arg)
+	{
+		String[] parts = arg.split(":", 2);
+		int level = Trace.parseLevel(parts[0]);
+		if (level < 0)
+		{
+			System.err.println("Unknown trace level " + parts[0]);
+			System.exit(1);
+		}
+		if (1 == parts.length)
+		{
+			dev.getTrace().setLevel(level);
+			return;
+		}
+		for (String ifaceName : parts[1].split(","))
+		{
+			Iface iface = dev.getInterface(ifaceName);
+			if (null == iface)
+			{
+				System.err.println("Unknown interface " + ifaceName);
+				System.exit(1);
+			}
+			dev.getTrace().setLevel(iface, level);
+		}
+	}
+	
 	static void usage()
 	{
 		System.out.println("Virtual Network Client");
 		System.out.println("VNet -v host [-s server] [-p port] [-h]");
 		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
+		System.out.println("     [-R route_snapshot] [-A arp_snapshot]");
+		System.out.println("     [-f trie|dir248|poptrie] [-g] [-c] [-w]");
+		System.out.println("     [-i icmp_rate[,icmp_rate_per_host]]");
+		System.out.println("     [-t off|error|info|debug|packet[:iface,...]]");
 		System.out.println(String.format("  defaults server=%s port=%d", 
 				DEFAULT_SERVER, DEFAULT_PORT));
 	}
@@ -0,0 +1,215 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs tasks after a delay, using a hashed timing wheel driven by a single
+ * thread. Each timer is kept in the slot of the wheel for the tick at which
+ * it expires, so scheduling and cancelling a timer take constant time, and
+ * each tick only looks at the timers in one slot, however many timers there
+ * are. Timers expire within one tick of their deadline.
+ * <p>
+ * Tasks run on the wheel's thread, one at a time, so they should be short.
+ * A shared wheel lets every device in the process use the same thread.
+ */
+public class TimerWheel implements Runnable
+{
+	/** Time (in milliseconds) between ticks of the shared wheel */
+	public static final int TICK = 100;
+
+	/** Number of slots in a wheel; a power of two */
+	private static final int SLOTS = 512;
+
+	/** A scheduled task */
+	public static class Timeout
+	{
+		private Runnable task;
+
+		/** Tick at which the timer expires */
+		private long deadline;
+
+		/** Neighbors in the slot's list; null at the ends */
+		private Timeout previous, next;
+
+		/** True while the timer is in a slot */
+		private boolean scheduled;
+
+		private Timeout(Runnable task, long deadline)
+		{
+			this.task = task;
+			this.deadline = deadline;
+			this.scheduled = false;
+		}
+	}
+
+	/** Wheel shared by all devices; null until first used */
+	private static TimerWheel shared = null;
+
+	/** Time (in milliseconds) between ticks */
+	private int tick;
+
+	/** First timer in each slot */
+	private Timeout[] slots;
+
+	/** Number of ticks that have been processed */
+	private long ticks;
+
+	/** Time (in milliseconds since the epoch) the wheel started */
+	private long start;
+
+	/** Time (in milliseconds since the epoch) of the last tick */
+	private volatile long now;
+
+	/** Number of timers scheduled */
+	private int size;
+
+	/** Thread that advances the wheel */
+	private Thread tickThread;
+
+	/**
+	 * Create and start a timing wheel.
+	 * @param tick time (in milliseconds) between ticks
+	 */
+	public TimerWheel(int tick)
+	{
+		this.tick = tick;
+		this.slots = new Timeout[SLOTS];
+		this.ticks = 0;
+		this.start = System.currentTimeMillis();
+		this.now = this.start;
+		this.size = 0;
+		this.tickThread = new Thread(this);
+		this.tickThread.setDaemon(true);
+		this.tickThread.start();
+	}
+
+	/**
+	 * @return the wheel shared by all devices, with a tick of {@link #TICK}
+	 */
+	public static synchronized TimerWheel getShared()
+	{
+		if (null == shared)
+		{ shared = new TimerWheel(TICK); }
+		return shared;
+	}
+
+	/**
+	 * @return time (in milliseconds since the epoch) of the last tick; a
+	 *         cheap clock that is at most one tick behind
+	 */
+	public long currentTimeMillis()
+	{ return this.now; }
+
+	/**
+	 * Run a task after a delay.
+	 * @param task task to run on the wheel's thread
+	 * @param delay time (in milliseconds) to wait; rounded up to whole ticks
+	 * @return the timer, which can be cancelled
+	 */
+	public synchronized Timeout schedule(Runnable task, long delay)
+	{
+		long ticks = Math.max(1, (delay + this.tick - 1) / this.tick);
+		Timeout timeout = new Timeout(task, this.ticks + ticks);
+		this.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stop a timer from running its task.
+	 * @param timeout the timer; null is ignored
+	 * @return true if the timer was cancelled, false if it already expired
+	 *         or was cancelled
+	 */
+	public synchronized boolean cancel(Timeout timeout)
+	{
+		if (null == timeout || !timeout.scheduled)
+		{ return false; }
+		this.remove(timeout);
+		return true;
+	}
+
+	/**
+	 * @return number of timers scheduled
+	 */
+	public synchronized int size()
+	{ return this.size; }
+
+	private void add(Timeout timeout)
+	{
+		int slot = (int)(timeout.deadline & (SLOTS - 1));
+		timeout.previous = null;
+		timeout.next = this.slots[slot];
+		if (timeout.next != null)
+		{ timeout.next.previous = timeout; }
+		this.slots[slot] = timeout;
+		timeout.scheduled = true;
+		this.size++;
+	}
+
+	private void remove(Timeout timeout)
+	{
+		if (timeout.previous != null)
+		{ timeout.previous.next = timeout.next; }
+		else
+		{ this.slots[(int)(timeout.deadline & (SLOTS - 1))] = timeout.next; }
+		if (timeout.next != null)
+		{ timeout.next.previous = timeout.previous; }
+		timeout.previous = null;
+		timeout.next = null;
+		timeout.scheduled = false;
+		this.size--;
+	}
+
+	/**
+	 * Advance the wheel by one tick.
+	 * @return tasks of the timers that expired
+	 */
+	private synchronized List<Runnable> advance()
+	{
+		this.ticks++;
+		this.now = this.start + this.ticks * this.tick;
+		List<Runnable> expired = new ArrayList<Runnable>();
+		Timeout timeout = this.slots[(int)(this.ticks & (SLOTS - 1))];
+		while (timeout != null)
+		{
+			Timeout next = timeout.next;
+			// Later timers share the slot until their turn of the wheel
+			if (timeout.deadline <= this.ticks)
+			{
+				this.remove(timeout);
+				expired.add(timeout.task);
+			}
+			timeout = next;
+		}
+		return expired;
+	}
+
+	/**
+	 * Every tick: run the tasks of the timers that expired, catching up on
+	 * ticks missed while tasks ran.
+	 */
+	public void run()
+	{
+		while (true)
+		{
+			long delay = this.start + (this.ticks + 1) * this.tick
+					- System.currentTimeMillis();
+			if (delay > 0)
+			{
+				try
+				{ Thread.sleep(delay); }
+				catch (InterruptedException e)
+				{ break; }
+			}
+
+			for (Runnable task : this.advance())
+			{
+				try
+				{ task.run(); }
+				catch (RuntimeException e)
+				{ e.printStackTrace(); }
+			}
+		}
+	}
+}
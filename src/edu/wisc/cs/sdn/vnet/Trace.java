@@ -0,0 +1,227 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.Arrays;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+/**
+ * Traces what a device does, at a level of detail that can be set for the
+ * device as a whole and overridden for each of its interfaces. Traced
+ * messages are added to a {@link TraceRing}, whose thread formats and
+ * prints them, so tracing does not slow the thread that handles packets.
+ * Checking whether a level is enabled reads a single field, so messages
+ * that are turned off cost next to nothing, provided their arguments are
+ * objects that already exist; callers that must build an argument should
+ * check {@link #isEnabled(int)} first.
+ * <p>
+ * Arguments are formatted when the message is printed, so they should not
+ * change after they are traced. Packets, which are changed as they are
+ * forwarded, are traced with {@link #logPacket}, which copies them.
+ */
+public class Trace
+{
+	/** Levels of detail, each including the ones before it */
+	public static final int OFF = 0;
+	public static final int ERROR = 1;
+	public static final int INFO = 2;
+	public static final int DEBUG = 3;
+	public static final int PACKET = 4;
+
+	/** Names of the levels, indexed by level */
+	private static final String[] LEVEL_NAMES =
+			{ "off", "error", "info", "debug", "packet" };
+
+	/** Level of messages traced when none is set */
+	public static final int DEFAULT_LEVEL = INFO;
+
+	/** Ring messages are added to */
+	private TraceRing ring;
+
+	/** Level of messages traced for the device */
+	private volatile int level;
+
+	/** Level of messages traced for each interface, indexed by interface
+	 *  index; -1 for interfaces that use the device's level */
+	private volatile int[] ifaceLevels;
+
+	/** Highest level traced for the device or any interface */
+	private volatile int maxLevel;
+
+	/**
+	 * Create a trace for a device, at the default level.
+	 * @param ring ring to add messages to
+	 */
+	public Trace(TraceRing ring)
+	{
+		this.ring = ring;
+		this.level = DEFAULT_LEVEL;
+		this.ifaceLevels = new int[0];
+		this.maxLevel = DEFAULT_LEVEL;
+	}
+
+	/**
+	 * Find the level with a name.
+	 * @param name name of the level, such as "debug"
+	 * @return the level; -1 if no level has the name
+	 */
+	public static int parseLevel(String name)
+	{
+		for (int level = 0; level < LEVEL_NAMES.length; level++)
+		{
+			if (LEVEL_NAMES[level].equalsIgnoreCase(name))
+			{ return level; }
+		}
+		return -1;
+	}
+
+	/**
+	 * Set the level of messages traced for the device, and for interfaces
+	 * without a level of their own.
+	 * @param level the level
+	 */
+	public synchronized void setLevel(int level)
+	{
+		this.level = level;
+		this.updateMaxLevel();
+	}
+
+	/**
+	 * Set the level of messages traced for an interface.
+	 * @param iface the interface
+	 * @param level the level; -1 to use the device's level
+	 */
+	public synchronized void setLevel(Iface iface, int level)
+	{
+		int[] ifaceLevels = this.ifaceLevels;
+		if (iface.getIndex() >= ifaceLevels.length)
+		{
+			int length = ifaceLevels.length;
+			ifaceLevels = Arrays.copyOf(ifaceLevels, iface.getIndex() + 1);
+			Arrays.fill(ifaceLevels, length, ifaceLevels.length, -1);
+		}
+		else
+		{ ifaceLevels = ifaceLevels.clone(); }
+		ifaceLevels[iface.getIndex()] = level;
+		this.ifaceLevels = ifaceLevels;
+		this.updateMaxLevel();
+	}
+
+	private void updateMaxLevel()
+	{
+		int maxLevel = this.level;
+		for (int ifaceLevel : this.ifaceLevels)
+		{ maxLevel = Math.max(maxLevel, ifaceLevel); }
+		this.maxLevel = maxLevel;
+	}
+
+	/**
+	 * @param level a level
+	 * @return true if messages at the level are traced for the device
+	 */
+	public boolean isEnabled(int level)
+	{ return level <= this.level; }
+
+	/**
+	 * @param level a level
+	 * @param iface an interface
+	 * @return true if messages at the level are traced for the interface
+	 */
+	public boolean isEnabled(int level, Iface iface)
+	{
+		if (level > this.maxLevel)
+		{ return false; }
+		int[] ifaceLevels = this.ifaceLevels;
+		int index = iface.getIndex();
+		if (index < ifaceLevels.length && ifaceLevels[index] >= 0)
+		{ return level <= ifaceLevels[index]; }
+		return level <= this.level;
+	}
+
+	/**
+	 * Trace a message.
+	 * @param level level of the message
+	 * @param message the message
+	 */
+	public void log(int level, String message)
+	{
+		if (level <= this.level)
+		{ this.ring.add(message, 0, null, null); }
+	}
+
+	/**
+	 * Trace a message with an argument.
+	 * @param level level of the message
+	 * @param format format of the message, as for {@link String#format}
+	 * @param arg argument of the message
+	 */
+	public void log(int level, String format, Object arg)
+	{
+		if (level <= this.level)
+		{ this.ring.add(format, 1, arg, null); }
+	}
+
+	/**
+	 * Trace a message with two arguments.
+	 * @param level level of the message
+	 * @param format format of the message, as for {@link String#format}
+	 * @param arg1 first argument of the message
+	 * @param arg2 second argument of the message
+	 */
+	public void log(int level, String format, Object arg1, Object arg2)
+	{
+		if (level <= this.level)
+		{ this.ring.add(format, 2, arg1, arg2); }
+	}
+
+	/**
+	 * Trace a message about an interface.
+	 * @param level level of the message
+	 * @param iface the interface
+	 * @param format format of the message, as for {@link String#format}
+	 * @param arg argument of the message
+	 */
+	public void log(int level, Iface iface, String format, Object arg)
+	{
+		if (this.isEnabled(level, iface))
+		{ this.ring.add(format, 1, arg, null); }
+	}
+
+	/**
+	 * Trace a packet sent or received on an interface. The packet is copied
+	 * only if the message is traced, and parsed and formatted on the ring's
+	 * thread.
+	 * @param level level of the message
+	 * @param iface the interface
+	 * @param format format of the message, as for {@link String#format},
+	 *        with the packet as its argument
+	 * @param etherPacket the packet
+	 */
+	public void logPacket(int level, Iface iface, String format,
+			Ethernet etherPacket)
+	{
+		if (this.isEnabled(level, iface))
+		{ this.ring.add(format, 1, new PacketCopy(etherPacket), null); }
+	}
+
+	/** A copy of a packet, parsed when it is formatted */
+	private static class PacketCopy
+	{
+		private byte[] frame;
+
+		PacketCopy(Ethernet etherPacket)
+		{ this.frame = etherPacket.serialize(); }
+
+		public String toString()
+		{
+			Ethernet etherPacket = new Ethernet();
+			etherPacket.deserialize(this.frame, 0, this.frame.length);
+			return etherPacket.toString();
+		}
+	}
+
+	/**
+	 * @return ring messages are added to
+	 */
+	public TraceRing getRing()
+	{ return this.ring; }
+}
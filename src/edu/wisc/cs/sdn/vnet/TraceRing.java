@@ -0,0 +1,207 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded ring of trace messages, added to without locks by any number of
+ * threads and drained by a single thread, which formats and prints them.
+ * Messages are kept as a format and its arguments, so the cost of
+ * formatting and printing is paid by the ring's thread rather than by the
+ * thread that traced the message. The ring's slots are allocated up front
+ * and reused, so adding a message allocates nothing; when the ring is full,
+ * messages are dropped and counted rather than making the caller wait.
+ * <p>
+ * Each slot has a sequence number that tells whose turn it is: a thread
+ * claims the slot for the position it reserved, fills it, and then bumps the
+ * sequence number so the ring's thread may read it; once read, the sequence
+ * number is bumped to the position the slot will hold next time around.
+ */
+public class TraceRing implements Runnable
+{
+	/** Number of messages held by the shared ring; a power of two */
+	public static final int CAPACITY = 8192;
+
+	/** Time (in nanoseconds) the ring's thread waits when the ring is
+	 *  empty */
+	private static final long IDLE_WAIT = 1000 * 1000;
+
+	/** A slot for a message */
+	private static class Slot
+	{
+		/** Position that may be added to the slot; one past the position
+		 *  once a message has been added and not yet read */
+		volatile long sequence;
+
+		/** Format of the message */
+		String format;
+
+		/** Number of arguments */
+		int count;
+
+		/** Arguments of the message */
+		Object arg1, arg2;
+
+		Slot(long sequence)
+		{ this.sequence = sequence; }
+	}
+
+	/** Ring shared by all devices; null until first used */
+	private static TraceRing shared = null;
+
+	private Slot[] slots;
+
+	/** Next position to add a message at */
+	private AtomicLong tail;
+
+	/** Next position to read a message from; only used by the ring's
+	 *  thread, and read by {@link #flush()} */
+	private volatile long head;
+
+	/** Number of messages dropped because the ring was full */
+	private AtomicLong dropped;
+
+	/** Stream messages are printed to */
+	private PrintStream out;
+
+	/** Thread that formats and prints messages */
+	private Thread printThread;
+
+	/**
+	 * Create a ring and start its thread.
+	 * @param capacity number of messages held; a power of two
+	 * @param out stream to print messages to
+	 */
+	public TraceRing(int capacity, PrintStream out)
+	{
+		this.slots = new Slot[capacity];
+		for (int i = 0; i < capacity; i++)
+		{ this.slots[i] = new Slot(i); }
+		this.tail = new AtomicLong();
+		this.head = 0;
+		this.dropped = new AtomicLong();
+		this.out = out;
+		this.printThread = new Thread(this, "trace");
+		this.printThread.setDaemon(true);
+		this.printThread.start();
+	}
+
+	/**
+	 * @return the ring shared by all devices, which prints to standard out
+	 */
+	public static synchronized TraceRing getShared()
+	{
+		if (null == shared)
+		{ shared = new TraceRing(CAPACITY, System.out); }
+		return shared;
+	}
+
+	/**
+	 * Add a message, without waiting.
+	 * @param format message, or format of the message if it has arguments,
+	 *        as for {@link String#format}
+	 * @param count number of arguments
+	 * @param arg1 first argument; formatted when the message is printed
+	 * @param arg2 second argument; formatted when the message is printed
+	 * @return true if the message was added, false if the ring was full
+	 */
+	boolean add(String format, int count, Object arg1, Object arg2)
+	{
+		int mask = this.slots.length - 1;
+		while (true)
+		{
+			long position = this.tail.get();
+			Slot slot = this.slots[(int)position & mask];
+			long sequence = slot.sequence;
+			if (sequence == position)
+			{
+				if (!this.tail.compareAndSet(position, position + 1))
+				{ continue; }
+				slot.format = format;
+				slot.count = count;
+				slot.arg1 = arg1;
+				slot.arg2 = arg2;
+				slot.sequence = position + 1;
+				return true;
+			}
+			if (sequence < position)
+			{
+				// The slot still holds a message from one lap ago
+				this.dropped.incrementAndGet();
+				return false;
+			}
+		}
+	}
+
+	public void run()
+	{
+		int mask = this.slots.length - 1;
+		while (true)
+		{
+			long position = this.head;
+			Slot slot = this.slots[(int)position & mask];
+			if (slot.sequence != position + 1)
+			{
+				LockSupport.parkNanos(IDLE_WAIT);
+				continue;
+			}
+
+			String format = slot.format;
+			int count = slot.count;
+			Object arg1 = slot.arg1;
+			Object arg2 = slot.arg2;
+			slot.format = null;
+			slot.arg1 = null;
+			slot.arg2 = null;
+			slot.sequence = position + this.slots.length;
+			this.head = position + 1;
+
+			this.out.println(format(format, count, arg1, arg2));
+		}
+	}
+
+	/**
+	 * Format a message, indenting all lines but the first.
+	 */
+	private static String format(String format, int count, Object arg1,
+			Object arg2)
+	{
+		String message;
+		try
+		{
+			switch (count)
+			{
+			case 0:
+				message = format;
+				break;
+			case 1:
+				message = String.format(format, arg1);
+				break;
+			default:
+				message = String.format(format, arg1, arg2);
+				break;
+			}
+		}
+		catch (RuntimeException e)
+		{ message = format + " (cannot format: " + e + ")"; }
+		return message.replace("\n", "\n\t");
+	}
+
+	/**
+	 * Wait until all messages added so far have been printed.
+	 */
+	public void flush()
+	{
+		long position = this.tail.get();
+		while (this.head < position)
+		{ LockSupport.parkNanos(IDLE_WAIT); }
+		this.out.flush();
+	}
+
+	/**
+	 * @return number of messages dropped because the ring was full
+	 */
+	public long getDropped()
+	{ return this.dropped.get(); }
+}
@@ -0,0 +1,138 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A neighbor reachable out a specific router interface, along with the
+ * Ethernet addresses to use when sending packets to the neighbor. The
+ * addresses are kept up to date as the ARP cache changes.
+ */
+class Adjacency
+{
+	/** Ethernet addresses for packets sent to a resolved neighbor */
+	static class Rewrite
+	{
+		/** MAC address of the neighbor */
+		private MACAddress destinationMac;
+
+		/** MAC address of the outgoing interface */
+		private MACAddress sourceMac;
+
+		/** Destination and source MAC addresses, as they appear at the start
+		 *  of an Ethernet header */
+		private byte[] header;
+
+		/** ARP cache entry the neighbor's MAC address came from */
+		private ArpEntry arpEntry;
+
+		Rewrite(ArpEntry arpEntry, MACAddress sourceMac)
+		{
+			MACAddress destinationMac = arpEntry.getMac();
+			this.arpEntry = arpEntry;
+			this.destinationMac = destinationMac;
+			this.sourceMac = sourceMac;
+			this.header = new byte[2 * MACAddress.MAC_ADDRESS_LENGTH];
+			System.arraycopy(destinationMac.toBytes(), 0, this.header, 0,
+					MACAddress.MAC_ADDRESS_LENGTH);
+			System.arraycopy(sourceMac.toBytes(), 0, this.header,
+					MACAddress.MAC_ADDRESS_LENGTH, MACAddress.MAC_ADDRESS_LENGTH);
+		}
+
+		MACAddress getDestinationMac()
+		{ return this.destinationMac; }
+
+		MACAddress getSourceMac()
+		{ return this.sourceMac; }
+
+		/**
+		 * @return ARP cache entry the neighbor's MAC address came from, to
+		 *         note that it is used
+		 */
+		ArpEntry getArpEntry()
+		{ return this.arpEntry; }
+
+		/**
+		 * @return destination and source MAC addresses, as they appear at the
+		 *         start of an Ethernet header; must not be modified
+		 */
+		byte[] getHeader()
+		{ return this.header; }
+	}
+
+	/** IP address of the neighbor; 0 if the adjacency stands for every
+	 *  neighbor on a directly connected subnet */
+	private int ipAddress;
+
+	/** Router interface out which the neighbor is reached */
+	private Iface iface;
+
+	/** Addresses to use for packets sent to the neighbor; null if the
+	 *  neighbor's MAC address is unknown */
+	private volatile Rewrite rewrite;
+
+	/** Another adjacency for the same IP address on a different interface */
+	volatile Adjacency next;
+
+	/** True if a next hop uses the neighbor as its gateway, so it is kept 
+	 *  while unresolved; only changed by the next-hop table */
+	boolean gateway;
+
+	Adjacency(int ipAddress, Iface iface)
+	{
+		this.ipAddress = ipAddress;
+		this.iface = iface;
+		this.rewrite = null;
+		this.next = null;
+		this.gateway = false;
+	}
+
+	/**
+	 * @return IP address of the neighbor; 0 if the adjacency stands for every
+	 *         neighbor on a directly connected subnet
+	 */
+	int getIpAddress()
+	{ return this.ipAddress; }
+
+	/**
+	 * @return router interface out which the neighbor is reached
+	 */
+	Iface getInterface()
+	{ return this.iface; }
+
+	/**
+	 * @return addresses to use for packets sent to the neighbor; null if the
+	 *         neighbor's MAC address is unknown
+	 */
+	Rewrite getRewrite()
+	{ return this.rewrite; }
+
+	/**
+	 * Update the neighbor's MAC address from the current contents of an ARP
+	 * cache. Updates are serialized and read the cache afresh, so the last
+	 * update after a change to the cache always sees the change.
+	 * @param arpCache ARP cache; null if none
+	 */
+	synchronized void resolve(ArpCache arpCache)
+	{
+		ArpEntry arpEntry = (null == arpCache) ? null
+				: arpCache.lookup(this.ipAddress);
+		if (null == arpEntry)
+		{ this.rewrite = null; }
+		else if (null == this.rewrite || this.rewrite.getArpEntry() != arpEntry)
+		{
+			this.rewrite = new Rewrite(arpEntry, this.iface.getMacAddress());
+		}
+	}
+
+	public String toString()
+	{
+		Rewrite rewrite = this.rewrite;
+		return String.format("%s \t%s \t%s",
+				IPv4.fromIPv4Address(this.ipAddress), this.iface.getName(),
+				(null == rewrite) ? "incomplete"
+						: rewrite.getDestinationMac().toString());
+	}
+}
@@ -1,40 +1,286 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import net.floodlightcontroller.packet.IPv4;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import net.floodlightcontroller.packet.MACAddress;
 
+import edu.wisc.cs.sdn.vnet.TimerWheel;
+
 /**
  * A cache of MAC address to IP address mappings.
+ * <p>
+ * Mappings learned from ARP packets expire unless the neighbor keeps
+ * replying. A neighbor stays reachable for a while after it replies; once
+ * that time is up, a neighbor that packets were sent to meanwhile is probed
+ * with unicast ARP requests at once, while its mapping is still used, so
+ * busy neighbors are refreshed without ever becoming unresolved. Idle
+ * neighbors become stale, and are probed only if packets are sent to them
+ * again. Neighbors that do not answer probes, and stale neighbors left
+ * unused, are removed. Timers for all mappings are driven by the shared
+ * {@link TimerWheel}.
  * @author Aaron Gember-Jacobson
  */
 public class ArpCache
 {		
-	/** Entries in the cache; maps an IP address to an entry */
-	private Map<Integer,ArpEntry> entries;
+	/** Time (in milliseconds) a neighbor stays reachable after replying */
+	public static final int REACHABLE_TIME = 30 * 1000;
+
+	/** Time (in milliseconds) to wait for a reply after packets are sent to
+	 *  a stale neighbor, before probing it */
+	public static final int DELAY_TIME = 5 * 1000;
+
+	/** Time (in milliseconds) between probes */
+	public static final int RETRANS_TIME = 1000;
+
+	/** Number of probes sent before a neighbor is removed */
+	public static final int MAX_PROBES = 3;
+
+	/** Time (in milliseconds) an unused stale neighbor is kept */
+	public static final int STALE_TIME = 60 * 1000;
+
+	/** Identifies an ARP cache snapshot file */
+	private static final int SNAPSHOT_MAGIC = 0x41524331;
+
+	/** Receives notice of changes to the cache */
+	interface Listener
+	{
+		/**
+		 * Called after the MAC address for an IP address changes.
+		 * @param ip IP address whose mapping changed
+		 */
+		void arpEntryChanged(int ip);
+	}
+
+	/** Sends probes to confirm that neighbors are reachable */
+	interface Prober
+	{
+		/**
+		 * Called to send a unicast ARP request to a neighbor.
+		 * @param ip IP address of the neighbor
+		 * @param mac MAC address of the neighbor
+		 */
+		void probe(int ip, MACAddress mac);
+	}
+
+	/** MAC address returned by {@link #lookupMac(int)} when an IP address 
+	 *  is not in the cache */
+	public static final long NO_MAC = ArpTable.NO_MAC;
+
+	/** Entries in the cache, keyed by IP address */
+	private ArpTable entries;
+
+	/** Notified when a mapping changes, in the order they were added */
+	private List<Listener> listeners;
+
+	/** Sends probes; null if neighbors are not probed */
+	private volatile Prober prober;
+
+	/** Drives the timers of the mappings */
+	private TimerWheel timers;
 	
 	/**
 	 * Initializes an empty ARP cache for a router.
 	 */
 	public ArpCache()
-	{ this.entries = new ConcurrentHashMap<Integer,ArpEntry>(); }
+	{
+		this.entries = new ArpTable();
+		this.listeners = new CopyOnWriteArrayList<Listener>();
+		this.prober = null;
+		this.timers = TimerWheel.getShared();
+	}
+
+	/**
+	 * Set the prober used to confirm that neighbors are reachable.
+	 * @param prober prober to use; null to not probe neighbors
+	 */
+	void setProber(Prober prober)
+	{ this.prober = prober; }
+
+	/**
+	 * Add a listener to notify when a mapping changes.
+	 * @param listener listener to notify
+	 */
+	void addListener(Listener listener)
+	{ this.listeners.add(listener); }
 	
 	/**
 	 * Insert an entry in the ARP cache for a specific IP address, MAC address
-	 * pair.
+	 * pair, learned from an ARP reply to a request the router sent; this 
+	 * confirms the neighbor is reachable. Static entries are not replaced.
 	 * @param mac MAC address corresponding to IP address
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public void insert(MACAddress mac, int ip)
-	{ this.entries.put(ip, new ArpEntry(mac, ip)); }
+	{ this.put(mac, ip, ArpEntry.REACHABLE); }
+
+	/**
+	 * Insert a stale entry in the ARP cache for a specific IP address, MAC
+	 * address pair, learned from an ARP packet the router did not ask for,
+	 * such as a request; this does not confirm the neighbor is reachable, so
+	 * it is probed if packets are sent to it. An existing entry with the same
+	 * MAC address, and static entries, are left unchanged.
+	 * @param mac MAC address corresponding to IP address
+	 * @param ip IP address corresponding to MAC address
+	 */
+	public void insertStale(MACAddress mac, int ip)
+	{ this.put(mac, ip, ArpEntry.STALE); }
+
+	/**
+	 * Insert a static entry in the ARP cache, which never expires.
+	 * @param mac MAC address corresponding to IP address
+	 * @param ip IP address corresponding to MAC address
+	 */
+	public void insertStatic(MACAddress mac, int ip)
+	{ this.put(mac, ip, ArpEntry.PERMANENT); }
+
+	private void put(MACAddress mac, int ip, int state)
+	{
+		synchronized(this)
+		{
+			ArpEntry previous = this.entries.get(ip);
+			if (previous != null && previous.getMac().equals(mac))
+			{
+				// Confirm the entry in place, since adjacencies refer to it
+				if (previous.state != ArpEntry.PERMANENT
+						&& state != ArpEntry.STALE)
+				{ this.setState(previous, state); }
+				return;
+			}
+			if (previous != null && ArpEntry.PERMANENT == previous.state
+					&& state != ArpEntry.PERMANENT)
+			{ return; }
+
+			ArpEntry entry = new ArpEntry(mac, ip);
+			if (previous != null)
+			{ this.timers.cancel(previous.timer); }
+			this.entries.put(entry);
+			this.setState(entry, state);
+		}
+		this.notifyListeners(ip);
+	}
+
+	private void notifyListeners(int ip)
+	{
+		for (Listener listener : this.listeners)
+		{ listener.arpEntryChanged(ip); }
+	}
+
+	/**
+	 * Note that packets were sent using an entry. Called on the forwarding
+	 * path, so it normally only reads a flag; the lock is taken once each 
+	 * time the entry changes state.
+	 * @param entry the entry
+	 */
+	void touch(ArpEntry entry)
+	{
+		if (entry.used)
+		{ return; }
+		synchronized(this)
+		{
+			entry.used = true;
+			if (ArpEntry.STALE == entry.state 
+					&& this.entries.get(entry.getIp()) == entry)
+			{ this.setState(entry, ArpEntry.DELAY); }
+		}
+	}
+
+	/**
+	 * Change the state of an entry and start the timer for its next change.
+	 * Must be called while holding the lock on the cache.
+	 */
+	private void setState(final ArpEntry entry, int state)
+	{
+		entry.state = state;
+		if (state != ArpEntry.DELAY)
+		{ entry.used = false; }
+		if (state != ArpEntry.PROBE)
+		{ entry.probes = 0; }
+		this.timers.cancel(entry.timer);
+		entry.timer = null;
+
+		int delay;
+		switch (state)
+		{
+		case ArpEntry.REACHABLE:
+			delay = REACHABLE_TIME;
+			break;
+		case ArpEntry.STALE:
+			delay = STALE_TIME;
+			break;
+		case ArpEntry.DELAY:
+			delay = DELAY_TIME;
+			break;
+		case ArpEntry.PROBE:
+			delay = RETRANS_TIME;
+			break;
+		default:
+			return;
+		}
+		entry.timer = this.timers.schedule(new Runnable() {
+			public void run()
+			{ expire(entry); }
+		}, delay);
+	}
+
+	/**
+	 * Move an entry to its next state when its timer expires.
+	 */
+	private void expire(ArpEntry entry)
+	{
+		boolean probe = false;
+		boolean removed = false;
+		synchronized(this)
+		{
+			if (this.entries.get(entry.getIp()) != entry)
+			{ return; }
+			entry.timer = null;
+			switch (entry.state)
+			{
+			case ArpEntry.REACHABLE:
+				// Refresh neighbors that are in use before they go stale
+				if (entry.used)
+				{ 
+					this.setState(entry, ArpEntry.PROBE);
+					probe = true;
+				}
+				else
+				{ this.setState(entry, ArpEntry.STALE); }
+				break;
+			case ArpEntry.DELAY:
+				this.setState(entry, ArpEntry.PROBE);
+				probe = true;
+				break;
+			case ArpEntry.PROBE:
+				if (entry.probes < MAX_PROBES)
+				{
+					this.setState(entry, ArpEntry.PROBE);
+					probe = true;
+				}
+				else
+				{ removed = true; }
+				break;
+			case ArpEntry.STALE:
+				removed = true;
+				break;
+			}
+			if (probe)
+			{ entry.probes++; }
+			if (removed)
+			{ this.entries.remove(entry); }
+		}
+
+		if (probe)
+		{
+			Prober prober = this.prober;
+			if (prober != null)
+			{ prober.probe(entry.getIp(), entry.getMac()); }
+		}
+		else if (removed)
+		{ this.notifyListeners(entry.getIp()); }
+	}
 	
 	/**
 	 * Checks if an IP->MAC mapping is the in the cache.
@@ -43,6 +289,25 @@ public class ArpCache
 	 */
 	public ArpEntry lookup(int ip)
 	{ return this.entries.get(ip); }
+
+	/**
+	 * Look up the MAC address for an IP address without allocating.
+	 * @param ip IP address whose MAC address is desired
+	 * @return the MAC address as a 48-bit number; {@link #NO_MAC} if none
+	 *         exists
+	 */
+	public long lookupMac(int ip)
+	{ return this.entries.getMac(ip); }
+
+	/**
+	 * @param ip IP address of a neighbor
+	 * @return true if the neighbor is being probed with unicast ARP requests
+	 */
+	synchronized boolean isProbing(int ip)
+	{
+		ArpEntry entry = this.entries.get(ip);
+		return (entry != null && ArpEntry.PROBE == entry.state);
+	}
 	
 	/**
 	 * Populate the ARP cache from a file.
@@ -52,85 +317,96 @@ public class ArpCache
 	 */
 	public boolean load(String filename)
 	{
-		// Open the file
-		BufferedReader reader;
-		try 
+		TableFileReader reader = TableFileReader.open(filename);
+		if (null == reader)
+		{ return false; }
+		
+		while (reader.nextLine())
 		{
-			FileReader fileReader = new FileReader(filename);
-			reader = new BufferedReader(fileReader);
+			// Parse fields for ARP entry
+			int ip = reader.readIp("IP");
+			long mac = reader.readMac("MAC");
+			if (!reader.endLine())
+			{ break; }
+			
+			// Add an entry to the ACP cache
+			this.insertStatic(MACAddress.valueOf(mac), ip);
 		}
-		catch (FileNotFoundException e) 
+	
+		if (reader.getError() != null)
 		{
-			System.err.println(e.toString());
+			System.err.println("Error loading ARP cache: " + reader.getError());
 			return false;
 		}
-		
-		while (true)
+		return true;
+	}
+
+	/**
+	 * Write the ARP cache to a snapshot file that {@link 
+	 * #readSnapshot(String, String)} can restore without parsing.
+	 * @param filename name of the snapshot file
+	 * @param textFilename name of the ARP cache file the cache was loaded 
+	 *        from, which the snapshot must be newer than to be used
+	 * @return true if the snapshot was written, otherwise false
+	 */
+	public boolean writeSnapshot(String filename, String textFilename)
+	{
+		// Copy the static entries first, since entries may change while
+		// being written
+		List<ArpEntry> entries = new ArrayList<ArpEntry>();
+		for (ArpEntry entry : this.entries.entries())
 		{
-			// Read an ARP entry from the file
-			String line = null;
-			try 
-			{ line = reader.readLine(); }
-			catch (IOException e) 
-			{
-				System.err.println(e.toString());
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-			
-			// Stop if we have reached the end of the file
-			if (null == line)
-			{ break; }
-			
-			// Parse fields for ARP entry
-			String ipPattern = "(\\d+\\.\\d+\\.\\d+\\.\\d+)";
-			String macByte = "[a-fA-F0-9]{2}";
-			String macPattern = "("+macByte+":"+macByte+":"+macByte
-					+":"+macByte+":"+macByte+":"+macByte+")";
-			Pattern pattern = Pattern.compile(String.format(
-                        "%s\\s+%s", ipPattern, macPattern));
-			Matcher matcher = pattern.matcher(line);
-			if (!matcher.matches() || matcher.groupCount() != 2)
-			{
-				System.err.println("Invalid entry in ARP cache file");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
+			if (ArpEntry.PERMANENT == entry.getState())
+			{ entries.add(entry); }
+		}
+		ByteBuffer body = SnapshotFile.allocate(8 + 16 * entries.size());
+		body.putInt(entries.size());
+		body.putInt(0);
+		for (ArpEntry entry : entries)
+		{
+			body.putLong(entry.getMac().toLong());
+			body.putInt(entry.getIp());
+			body.putInt(0);
+		}
+		return SnapshotFile.write(filename, SNAPSHOT_MAGIC, body, 
+				textFilename);
+	}
 
-			int ip = IPv4.toIPv4Address(matcher.group(1));
-			if (0 == ip)
-			{
-				System.err.println("Error loading ARP cache, cannot convert "
-						+ matcher.group(1) + " to valid IP");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-			
-			MACAddress mac = null;
-			try
-			{ mac = MACAddress.valueOf(matcher.group(2)); }
-			catch(IllegalArgumentException iae)
-			{
-				System.err.println("Error loading ARP cache, cannot convert " 
-						+ matcher.group(3) + " to valid MAC");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-			
-			// Add an entry to the ACP cache
-			this.insert(mac, ip);
+	/**
+	 * Add the entries in a snapshot file written by {@link 
+	 * #writeSnapshot(String, String)} to the ARP cache.
+	 * @param filename name of the snapshot file
+	 * @param textFilename name of the ARP cache file the snapshot must be
+	 *        newer than; null to use the snapshot regardless
+	 * @return true if the snapshot was read, otherwise false
+	 */
+	public boolean readSnapshot(String filename, String textFilename)
+	{
+		ByteBuffer body = SnapshotFile.read(filename, SNAPSHOT_MAGIC, 
+				textFilename);
+		if (null == body)
+		{ return false; }
+		int count = body.getInt(0);
+		for (int i = 0; i < count; i++)
+		{
+			int offset = 8 + 16 * i;
+			this.insertStatic(MACAddress.valueOf(body.getLong(offset)),
+					body.getInt(offset + 8));
 		}
-	
-		// Close the file
-		try { reader.close(); } catch (IOException f) {};
 		return true;
 	}
+
+	/**
+	 * @return number of entries in the cache
+	 */
+	public int size()
+	{ return this.entries.size(); }
 	
 	public String toString()
 	{
-        String result = "IP\t\tMAC\n";
-        for (ArpEntry entry : this.entries.values())
-        { result += entry.toString()+"\n"; }
-	    return result;
+        StringBuilder result = new StringBuilder("IP\t\tMAC\t\t\tState\n");
+        for (ArpEntry entry : this.entries.entries())
+        { result.append(entry.toString()).append('\n'); }
+	    return result.toString();
 	}
 }
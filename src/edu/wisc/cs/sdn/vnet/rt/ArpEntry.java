@@ -3,12 +3,38 @@ package edu.wisc.cs.sdn.vnet.rt;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
+import edu.wisc.cs.sdn.vnet.TimerWheel;
+
 /**
  * An entry in ARP table that maps an IP address to a MAC address.
+ * <p>
+ * Entries learned from ARP packets track whether the neighbor is still
+ * reachable, following the neighbor states of RFC 4861. Neighbors being
+ * resolved, which are INCOMPLETE, have no entry until they reply.
  * @author Aaron Gember-Jacobson
  */
 public class ArpEntry 
 {
+	/** Neighbor recently confirmed reachable */
+	public static final int REACHABLE = 1;
+
+	/** Neighbor not confirmed recently; still used, but confirmed once
+	 *  packets are sent to it */
+	public static final int STALE = 2;
+
+	/** Packets were sent to a stale neighbor; waiting briefly for a reply
+	 *  before probing */
+	public static final int DELAY = 3;
+
+	/** Confirming the neighbor with unicast ARP requests; still used */
+	public static final int PROBE = 4;
+
+	/** Entry configured statically; never expires */
+	public static final int PERMANENT = 5;
+
+	private static final String[] STATE_NAMES = { "", "reachable", "stale",
+			"delay", "probe", "permanent" };
+
 	/** MAC address corresponding to IP address */
 	private MACAddress mac;
 	
@@ -17,6 +43,20 @@ public class ArpEntry
 	
 	/** Time (in milliseconds since the epoch) the mapping was created */
 	private long timeAdded;
+
+	/** Reachability state of the neighbor; only changed by the ARP cache */
+	int state;
+
+	/** True if packets were sent to the neighbor since it was last
+	 *  confirmed; read on the forwarding path without locking, and only
+	 *  changed while holding the lock on the ARP cache */
+	volatile boolean used;
+
+	/** Number of unicast ARP requests sent since entering PROBE */
+	int probes;
+
+	/** Timer for the next change of state; null if none */
+	TimerWheel.Timeout timer;
 	
 	/**
 	 * Create an ARP table entry that maps an IP address to a MAC address.
@@ -28,6 +68,10 @@ public class ArpEntry
 		this.mac = mac;
 		this.ip = ip;
 		this.timeAdded = System.currentTimeMillis();
+		this.state = PERMANENT;
+		this.used = false;
+		this.probes = 0;
+		this.timer = null;
 	}
 	
 	/**
@@ -47,10 +91,18 @@ public class ArpEntry
 	 */
 	public long getTimeAdded()
 	{ return this.timeAdded; }
+
+	/**
+	 * @return reachability state of the neighbor: {@link #REACHABLE},
+	 *         {@link #STALE}, {@link #DELAY}, {@link #PROBE}, or
+	 *         {@link #PERMANENT}
+	 */
+	public int getState()
+	{ return this.state; }
 	
 	public String toString()
 	{
-		return String.format("%s \t%s", IPv4.fromIPv4Address(this.ip),
-				this.mac.toString());
+		return String.format("%s \t%s \t%s", IPv4.fromIPv4Address(this.ip),
+				this.mac.toString(), STATE_NAMES[this.state]);
 	}
 }
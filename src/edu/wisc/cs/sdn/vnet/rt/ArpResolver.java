@@ -0,0 +1,461 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.TimerWheel;
+
+/**
+ * Resolves the MAC addresses of neighbors that are not in the ARP cache.
+ * Packets for an unresolved neighbor are held in a bounded queue while ARP
+ * requests for the neighbor are sent, once immediately and then once a
+ * second. When a reply adds the neighbor to the ARP cache, all of its
+ * queued packets are sent at once; if no reply arrives after the last
+ * request, the router reports each queued packet's destination as
+ * unreachable and the packets are dropped. Requests are resent by timers on
+ * the shared {@link TimerWheel}.
+ * <p>
+ * Each interface resolves its neighbors separately, so that traffic to
+ * unknown neighbors on one interface, such as a scan of a connected subnet,
+ * cannot hold back resolution on the others. All packets for a neighbor
+ * share one resolution; each interface has a limited number of resolutions
+ * outstanding, and sends ARP requests at a limited rate, so the work done
+ * for unknown neighbors is bounded however many there are. A neighbor that
+ * fails to resolve is remembered briefly, and packets for it are rejected
+ * without sending more requests.
+ */
+class ArpResolver implements ArpCache.Listener
+{
+	/** Number of ARP requests sent for a neighbor before giving up */
+	static final int MAX_REQUESTS = 3;
+
+	/** Time (in milliseconds) between ARP requests for a neighbor */
+	static final int RETRY_INTERVAL = 1000;
+
+	/** Largest number of packets held for a neighbor; further packets are
+	 *  dropped */
+	static final int MAX_QUEUED_PACKETS = 64;
+
+	/** Largest number of neighbors being resolved on an interface; packets
+	 *  for further neighbors are dropped */
+	static final int MAX_OUTSTANDING = 256;
+
+	/** ARP requests sent per second on an interface, on average */
+	static final int REQUEST_RATE = 100;
+
+	/** ARP requests sent at once on an interface after a quiet period */
+	static final int REQUEST_BURST = 20;
+
+	/** Time (in milliseconds) a neighbor that failed to resolve is
+	 *  remembered */
+	static final int FAILED_TIME = 3000;
+
+	/** A packet waiting for its neighbor to be resolved */
+	private static class QueuedPacket
+	{
+		Ethernet etherPacket;
+		Iface inIface;
+
+		QueuedPacket(Ethernet etherPacket, Iface inIface)
+		{
+			this.etherPacket = etherPacket;
+			this.inIface = inIface;
+		}
+	}
+
+	/** A resolution of a neighbor, outstanding or failed */
+	private static class Request
+	{
+		/** IP address of the neighbor */
+		int ip;
+
+		/** Resolutions on the interface out which the neighbor is reached */
+		Interface owner;
+
+		/** Packets waiting for the neighbor, oldest first */
+		List<QueuedPacket> packets;
+
+		/** Number of ARP requests sent */
+		int requestsSent;
+
+		/** True if the neighbor did not reply to any request */
+		boolean failed;
+
+		/** Timer for resending the request, giving up, or forgetting the
+		 *  failure */
+		TimerWheel.Timeout timer;
+
+		Request(int ip, Interface owner)
+		{
+			this.ip = ip;
+			this.owner = owner;
+			this.packets = new ArrayList<QueuedPacket>();
+			this.requestsSent = 0;
+			this.failed = false;
+			this.timer = null;
+		}
+	}
+
+	/** Resolutions of the neighbors reached out one interface */
+	private static class Interface
+	{
+		Iface iface;
+
+		/** Resolutions, outstanding and failed, keyed by neighbor IP */
+		Map<Integer,Request> requests;
+
+		/** Number of outstanding resolutions */
+		int outstanding;
+
+		/** Limits the rate of ARP requests */
+		TokenBucket requestBucket;
+
+		/** Number of packets dropped because a queue was full */
+		long overflowDrops;
+
+		/** Number of packets dropped because too many neighbors were being
+		 *  resolved */
+		long outstandingDrops;
+
+		/** Number of packets dropped because their neighbor was not
+		 *  resolved */
+		long unresolvedDrops;
+
+		/** Number of ARP requests delayed by the rate limit */
+		long requestsDelayed;
+
+		Interface(Iface iface, long now)
+		{
+			this.iface = iface;
+			this.requests = new HashMap<Integer,Request>();
+			this.outstanding = 0;
+			this.requestBucket = new TokenBucket(REQUEST_RATE, REQUEST_BURST,
+					now);
+			this.overflowDrops = 0;
+			this.outstandingDrops = 0;
+			this.unresolvedDrops = 0;
+			this.requestsDelayed = 0;
+		}
+	}
+
+	/** Router that sends ARP requests and queued packets */
+	private Router router;
+
+	/** ARP cache that replies are added to */
+	private ArpCache arpCache;
+
+	/** Resolutions on each interface, indexed by interface index; grown as
+	 *  interfaces are used */
+	private volatile Interface[] interfaces;
+
+	/** Drives the timers of the requests */
+	private TimerWheel timers;
+
+	/**
+	 * Create a resolver that is notified of changes to an ARP cache.
+	 * @param router router that sends ARP requests and queued packets
+	 * @param arpCache ARP cache that replies are added to
+	 */
+	ArpResolver(Router router, ArpCache arpCache)
+	{
+		this.router = router;
+		this.arpCache = arpCache;
+		this.interfaces = new Interface[0];
+		this.timers = TimerWheel.getShared();
+		arpCache.addListener(this);
+	}
+
+	/**
+	 * @return resolutions on an interface, created if necessary
+	 */
+	private Interface getInterface(Iface iface)
+	{
+		Interface[] interfaces = this.interfaces;
+		int index = iface.getIndex();
+		if (index < interfaces.length && interfaces[index] != null)
+		{ return interfaces[index]; }
+
+		synchronized(this)
+		{
+			interfaces = this.interfaces;
+			if (index >= interfaces.length)
+			{
+				Interface[] grown = new Interface[index + 1];
+				System.arraycopy(interfaces, 0, grown, 0, interfaces.length);
+				interfaces = grown;
+			}
+			if (null == interfaces[index])
+			{
+				interfaces[index] = new Interface(iface,
+						this.timers.currentTimeMillis());
+			}
+			this.interfaces = interfaces;
+			return interfaces[index];
+		}
+	}
+
+	/**
+	 * Send a packet to a neighbor once the neighbor's MAC address is known,
+	 * starting to resolve the neighbor if necessary.
+	 * @param etherPacket packet to send; its MAC addresses are set when it
+	 *        is sent
+	 * @param inIface interface on which the packet arrived, to which an
+	 *        ICMP error is sent if the neighbor is not resolved
+	 * @param ip IP address of the neighbor
+	 * @param outIface interface out which the neighbor is reached
+	 */
+	void enqueue(Ethernet etherPacket, Iface inIface, int ip, Iface outIface)
+	{
+		Interface owner = this.getInterface(outIface);
+		ArpEntry arpEntry;
+		boolean sendRequest = false;
+		boolean unreachable = false;
+		synchronized(owner)
+		{
+			// A reply may have arrived since the caller checked
+			arpEntry = this.arpCache.lookup(ip);
+			if (null == arpEntry)
+			{
+				Request request = owner.requests.get(ip);
+				if (null == request)
+				{
+					if (owner.outstanding >= MAX_OUTSTANDING)
+					{
+						owner.outstandingDrops++;
+						return;
+					}
+					request = this.addRequest(owner, ip);
+					sendRequest = this.startRequest(request);
+				}
+
+				if (request.failed)
+				{
+					owner.unresolvedDrops++;
+					unreachable = true;
+				}
+				else if (request.packets.size() < MAX_QUEUED_PACKETS)
+				{
+					request.packets.add(
+							new QueuedPacket(etherPacket, inIface));
+				}
+				else
+				{ owner.overflowDrops++; }
+			}
+		}
+
+		if (arpEntry != null)
+		{
+			setAddresses(etherPacket, arpEntry, outIface);
+			this.router.sendPacket(etherPacket, outIface);
+		}
+		else if (sendRequest)
+		{ this.router.sendArpRequest(ip, outIface); }
+		else if (unreachable)
+		{ this.router.sendHostUnreachable(etherPacket, inIface); }
+	}
+
+	/**
+	 * Start resolving a neighbor before any packets are sent to it, unless
+	 * it is already known or being resolved, or too many neighbors are
+	 * being resolved on the interface.
+	 * @param ip IP address of the neighbor
+	 * @param iface interface out which the neighbor is reached
+	 * @return false if too many neighbors are being resolved on the 
+	 *         interface, so the neighbor should be resolved later
+	 */
+	boolean resolve(int ip, Iface iface)
+	{
+		Interface owner = this.getInterface(iface);
+		boolean sendRequest;
+		synchronized(owner)
+		{
+			if (this.arpCache.lookup(ip) != null 
+					|| owner.requests.containsKey(ip))
+			{ return true; }
+			if (owner.outstanding >= MAX_OUTSTANDING)
+			{ return false; }
+			sendRequest = this.startRequest(this.addRequest(owner, ip));
+		}
+		if (sendRequest)
+		{ this.router.sendArpRequest(ip, iface); }
+		return true;
+	}
+
+	/**
+	 * @param ip IP address of a neighbor
+	 * @param iface interface out which the neighbor is reached
+	 * @return true if ARP requests for the neighbor are outstanding
+	 */
+	boolean isResolving(int ip, Iface iface)
+	{
+		Interface owner = this.getInterface(iface);
+		synchronized(owner)
+		{
+			Request request = owner.requests.get(ip);
+			return (request != null && !request.failed);
+		}
+	}
+
+	/**
+	 * Add an outstanding resolution. Must be called while holding the lock
+	 * on the interface.
+	 */
+	private Request addRequest(Interface owner, int ip)
+	{
+		Request request = new Request(ip, owner);
+		owner.requests.put(ip, request);
+		owner.outstanding++;
+		return request;
+	}
+
+	/**
+	 * Count an ARP request for a neighbor if the rate limit allows it, and
+	 * start the timer for the next step of the resolution. Must be called
+	 * while holding the lock on the request's interface.
+	 * @return true if the request should be sent, false if it is delayed
+	 */
+	private boolean startRequest(Request request)
+	{
+		if (request.owner.requestBucket.tryTake(
+				this.timers.currentTimeMillis()))
+		{
+			request.requestsSent++;
+			this.schedule(request, RETRY_INTERVAL);
+			return true;
+		}
+		request.owner.requestsDelayed++;
+		this.schedule(request, TimerWheel.TICK);
+		return false;
+	}
+
+	private static void setAddresses(Ethernet etherPacket, ArpEntry arpEntry,
+			Iface outIface)
+	{
+		etherPacket.setSourceMACAddress(outIface.getMacAddress());
+		etherPacket.setDestinationMACAddress(arpEntry.getMac());
+	}
+
+	/**
+	 * Send the packets queued for a neighbor that was added to the ARP
+	 * cache, and forget any failure to resolve it.
+	 */
+	public void arpEntryChanged(int ip)
+	{
+		ArpEntry arpEntry = this.arpCache.lookup(ip);
+		if (null == arpEntry)
+		{ return; }
+
+		for (Interface owner : this.interfaces)
+		{
+			if (null == owner)
+			{ continue; }
+			List<QueuedPacket> packets;
+			synchronized(owner)
+			{
+				Request request = owner.requests.remove(ip);
+				if (null == request)
+				{ continue; }
+				this.timers.cancel(request.timer);
+				if (!request.failed)
+				{ owner.outstanding--; }
+				packets = request.packets;
+			}
+
+			for (QueuedPacket packet : packets)
+			{
+				setAddresses(packet.etherPacket, arpEntry, owner.iface);
+				this.router.sendPacket(packet.etherPacket, owner.iface);
+			}
+		}
+	}
+
+	/**
+	 * Start the timer for the next step of a resolution. Must be called
+	 * while holding the lock on the request's interface.
+	 */
+	private void schedule(final Request request, int delay)
+	{
+		request.timer = this.timers.schedule(new Runnable() {
+			public void run()
+			{ retry(request); }
+		}, delay);
+	}
+
+	/**
+	 * Send a request that is due, or give up on the neighbor if it did not
+	 * reply to the last request, or forget that the neighbor failed.
+	 */
+	private void retry(Request request)
+	{
+		Interface owner = request.owner;
+		boolean sendRequest = false;
+		List<QueuedPacket> failed = Collections.<QueuedPacket>emptyList();
+		synchronized(owner)
+		{
+			// The neighbor may have been resolved before the timer ran
+			if (owner.requests.get(request.ip) != request)
+			{ return; }
+			if (request.failed)
+			{ owner.requests.remove(request.ip); }
+			else if (request.requestsSent >= MAX_REQUESTS)
+			{
+				// Remember the failure, so packets for the neighbor are
+				// rejected without sending more requests
+				request.failed = true;
+				owner.outstanding--;
+				owner.unresolvedDrops += request.packets.size();
+				failed = request.packets;
+				request.packets = Collections.<QueuedPacket>emptyList();
+				this.schedule(request, FAILED_TIME);
+			}
+			else
+			{ sendRequest = this.startRequest(request); }
+		}
+
+		if (sendRequest)
+		{ this.router.sendArpRequest(request.ip, owner.iface); }
+		for (QueuedPacket packet : failed)
+		{
+			this.router.sendHostUnreachable(packet.etherPacket,
+					packet.inIface);
+		}
+	}
+
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder("IP\t\tIface\tRequests"
+				+ "\tQueued\n");
+		StringBuilder drops = new StringBuilder();
+		for (Interface owner : this.interfaces)
+		{
+			if (null == owner)
+			{ continue; }
+			synchronized(owner)
+			{
+				for (Request request : owner.requests.values())
+				{
+					result.append(String.format("%s \t%s \t%s \t\t%d\n",
+							IPv4.fromIPv4Address(request.ip),
+							owner.iface.getName(),
+							request.failed ? "failed"
+									: Integer.toString(request.requestsSent),
+							request.packets.size()));
+				}
+				drops.append(String.format("%s: dropped %d packets on full"
+						+ " queues, %d over the outstanding limit, %d for"
+						+ " unresolved neighbors; delayed %d requests\n",
+						owner.iface.getName(), owner.overflowDrops,
+						owner.outstandingDrops, owner.unresolvedDrops,
+						owner.requestsDelayed));
+			}
+		}
+		return result.append(drops).toString();
+	}
+}
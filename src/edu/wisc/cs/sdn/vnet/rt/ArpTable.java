@@ -0,0 +1,255 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An open-addressing hash table of ARP entries, keyed by IP address. Keys
+ * and MAC addresses are kept as primitives in parallel arrays, probed
+ * linearly, so a lookup reads a few adjacent array elements and allocates
+ * nothing; each entry costs at most 32 bytes of table, since the table is
+ * kept at most half full.
+ * <p>
+ * Lookups take no locks. Updates are serialized, and each bumps a sequence
+ * number to an odd value while it changes the arrays and to an even value
+ * when done; a lookup that sees the number odd, or changed by the time it
+ * is done, retries. Growing the table builds a new set of arrays and
+ * publishes them at once, so lookups on the old arrays remain consistent.
+ */
+class ArpTable
+{
+	/** MAC address of an empty slot; MAC addresses are 48 bits, so a real
+	 *  MAC address is never negative */
+	static final long NO_MAC = -1;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/** Arrays of a table; replaced as a whole when the table grows */
+	private static class Slots
+	{
+		/** IP address of the entry in each slot */
+		final int[] ips;
+
+		/** MAC address of the entry in each slot; {@link #NO_MAC} if the
+		 *  slot is empty */
+		final long[] macs;
+
+		/** Entry in each slot */
+		final ArpEntry[] entries;
+
+		/** Odd while an update is changing the arrays */
+		volatile int sequence;
+
+		Slots(int capacity)
+		{
+			this.ips = new int[capacity];
+			this.macs = new long[capacity];
+			this.entries = new ArpEntry[capacity];
+			for (int i = 0; i < capacity; i++)
+			{ this.macs[i] = NO_MAC; }
+			this.sequence = 0;
+		}
+	}
+
+	/** Current arrays */
+	private volatile Slots slots;
+
+	/** Number of entries */
+	private volatile int size;
+
+	ArpTable()
+	{
+		this.slots = new Slots(INITIAL_CAPACITY);
+		this.size = 0;
+	}
+
+	private static int slotOf(int ip, int mask)
+	{
+		int hash = ip * 0x9e3779b9;
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	/**
+	 * Find the entry for an IP address.
+	 * @param ip IP address
+	 * @return the entry; null if none
+	 */
+	ArpEntry get(int ip)
+	{
+		while (true)
+		{
+			Slots slots = this.slots;
+			int sequence = slots.sequence;
+			if ((sequence & 1) == 0)
+			{
+				int slot = find(slots, ip);
+				ArpEntry entry = (slot < 0) ? null : slots.entries[slot];
+				VarHandle.loadLoadFence();
+				if (slots.sequence == sequence)
+				{ return entry; }
+			}
+			Thread.onSpinWait();
+		}
+	}
+
+	/**
+	 * Find the MAC address for an IP address, without allocating.
+	 * @param ip IP address
+	 * @return the MAC address as a 48-bit number; {@link #NO_MAC} if none
+	 */
+	long getMac(int ip)
+	{
+		while (true)
+		{
+			Slots slots = this.slots;
+			int sequence = slots.sequence;
+			if ((sequence & 1) == 0)
+			{
+				int slot = find(slots, ip);
+				long mac = (slot < 0) ? NO_MAC : slots.macs[slot];
+				VarHandle.loadLoadFence();
+				if (slots.sequence == sequence)
+				{ return mac; }
+			}
+			Thread.onSpinWait();
+		}
+	}
+
+	/**
+	 * @return slot holding an IP address; -1 if none. The number of slots
+	 *         probed is bounded, since a concurrent update may leave no
+	 *         empty slot in view.
+	 */
+	private static int find(Slots slots, int ip)
+	{
+		int mask = slots.macs.length - 1;
+		int slot = slotOf(ip, mask);
+		for (int probes = 0; probes <= mask; probes++)
+		{
+			if (NO_MAC == slots.macs[slot])
+			{ return -1; }
+			if (slots.ips[slot] == ip)
+			{ return slot; }
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Add an entry, replacing any entry for the same IP address.
+	 * @param entry the entry
+	 */
+	synchronized void put(ArpEntry entry)
+	{
+		Slots slots = this.slots;
+		if (2 * (this.size + 1) > slots.macs.length)
+		{
+			slots = this.grow(slots);
+			this.slots = slots;
+		}
+
+		int mask = slots.macs.length - 1;
+		int slot = slotOf(entry.getIp(), mask);
+		while (slots.macs[slot] != NO_MAC
+				&& slots.ips[slot] != entry.getIp())
+		{ slot = (slot + 1) & mask; }
+		if (NO_MAC == slots.macs[slot])
+		{ this.size++; }
+
+		this.beginUpdate(slots);
+		slots.ips[slot] = entry.getIp();
+		slots.macs[slot] = entry.getMac().toLong();
+		slots.entries[slot] = entry;
+		this.endUpdate(slots);
+	}
+
+	/**
+	 * Remove the entry for an IP address, if it is a specific entry.
+	 * @param entry the entry
+	 * @return true if the entry was removed, false if it was not in the
+	 *         table
+	 */
+	synchronized boolean remove(ArpEntry entry)
+	{
+		Slots slots = this.slots;
+		int slot = find(slots, entry.getIp());
+		if (slot < 0 || slots.entries[slot] != entry)
+		{ return false; }
+
+		// Shift later entries of the run back, so no lookup for them stops
+		// early at the emptied slot
+		int mask = slots.macs.length - 1;
+		this.beginUpdate(slots);
+		int next = (slot + 1) & mask;
+		while (slots.macs[next] != NO_MAC)
+		{
+			int home = slotOf(slots.ips[next], mask);
+			if (((next - home) & mask) >= ((next - slot) & mask))
+			{
+				slots.ips[slot] = slots.ips[next];
+				slots.macs[slot] = slots.macs[next];
+				slots.entries[slot] = slots.entries[next];
+				slot = next;
+			}
+			next = (next + 1) & mask;
+		}
+		slots.macs[slot] = NO_MAC;
+		slots.entries[slot] = null;
+		this.endUpdate(slots);
+		this.size--;
+		return true;
+	}
+
+	private void beginUpdate(Slots slots)
+	{
+		slots.sequence = slots.sequence + 1;
+		VarHandle.storeStoreFence();
+	}
+
+	private void endUpdate(Slots slots)
+	{ slots.sequence = slots.sequence + 1; }
+
+	/**
+	 * Copy the entries into arrays twice as large. The copy is private
+	 * until it is published, so it needs no sequence number updates.
+	 */
+	private Slots grow(Slots slots)
+	{
+		Slots grown = new Slots(2 * slots.macs.length);
+		int mask = grown.macs.length - 1;
+		for (int i = 0; i < slots.macs.length; i++)
+		{
+			if (NO_MAC == slots.macs[i])
+			{ continue; }
+			int slot = slotOf(slots.ips[i], mask);
+			while (grown.macs[slot] != NO_MAC)
+			{ slot = (slot + 1) & mask; }
+			grown.ips[slot] = slots.ips[i];
+			grown.macs[slot] = slots.macs[i];
+			grown.entries[slot] = slots.entries[i];
+		}
+		return grown;
+	}
+
+	/**
+	 * @return number of entries
+	 */
+	int size()
+	{ return this.size; }
+
+	/**
+	 * @return a copy of the entries, in no particular order
+	 */
+	synchronized List<ArpEntry> entries()
+	{
+		Slots slots = this.slots;
+		List<ArpEntry> entries = new ArrayList<ArpEntry>(this.size);
+		for (int i = 0; i < slots.macs.length; i++)
+		{
+			if (slots.macs[i] != NO_MAC)
+			{ entries.add(slots.entries[i]); }
+		}
+		return entries;
+	}
+}
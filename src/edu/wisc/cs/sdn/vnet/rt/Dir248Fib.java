@@ -0,0 +1,283 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A DIR-24-8 forwarding table. A 2^24-entry table indexed by the top 24 bits
+ * of the destination holds either a next hop or a pointer to a 256-entry
+ * overflow block for /24s that contain longer prefixes, so every lookup costs
+ * one or two array reads.
+ * <p>
+ * Updates are applied in place, so a lookup that runs during a batch of
+ * updates may see some of the batch. Each entry changes atomically from its
+ * old to its new value, an overflow block is filled before the /24 entry 
+ * that points to it, and freed blocks are not reused until every lookup 
+ * that started before the next publish has finished, so a lookup always 
+ * returns either the old or the new next hop.
+ * <p>
+ * The length of the prefix that filled each entry is kept alongside the 
+ * tables, where only updates read it. Adding or changing a prefix overwrites
+ * just the entries it covers that were filled by a prefix no longer than 
+ * it, and removing a prefix refills the entries it filled from the prefix
+ * covering it, so an update walks the trie once rather than once per entry.
+ */
+class Dir248Fib implements Fib
+{
+	private static final int TBL24_SIZE = 1 << 24;
+	private static final int BLOCK_SIZE = 256;
+	private static final int MAX_BLOCKS = 1 << 15;
+
+	/** Orders writes to table entries with respect to lookups */
+	private static final VarHandle ENTRY =
+			MethodHandles.arrayElementVarHandle(short[].class);
+
+	/** Route entries the table is compiled from */
+	private PrefixTrie trie;
+
+	/** Entries for each /24: 0 if no route, next-hop group + 1 if 
+	 *  positive, -(overflow block + 1) if negative */
+	private short[] tbl24;
+
+	/** Overflow blocks: 0 if no route, otherwise next-hop group + 1 */
+	private volatile short[] tbl8;
+
+	/** Length + 1 of the prefix that filled each /24 entry that does not
+	 *  point to an overflow block; 0 if no route */
+	private byte[] depth24;
+
+	/** Length + 1 of the prefix that filled each overflow block entry; 0 if
+	 *  no route */
+	private byte[] depth8;
+
+	/** Number of overflow blocks ever allocated */
+	private int blockCount;
+
+	/** Overflow blocks that were freed and can be reused */
+	private int[] freeBlocks;
+
+	/** Number of free overflow blocks */
+	private int freeCount;
+
+	/** Overflow blocks freed but not yet reclaimed */
+	private int[] pendingBlocks;
+
+	/** Number of overflow blocks freed but not yet reclaimed */
+	private int pendingCount;
+
+	/**
+	 * Build a DIR-24-8 table from the route entries in a trie.
+	 * @param trie trie holding the route entries
+	 */
+	Dir248Fib(PrefixTrie trie)
+	{
+		this.trie = trie;
+		this.tbl24 = new short[TBL24_SIZE];
+		this.tbl8 = new short[16 * BLOCK_SIZE];
+		this.depth24 = new byte[TBL24_SIZE];
+		this.depth8 = new byte[16 * BLOCK_SIZE];
+		this.blockCount = 0;
+		this.freeBlocks = new int[16];
+		this.freeCount = 0;
+		this.pendingBlocks = new int[16];
+		this.pendingCount = 0;
+
+		// Install shorter prefixes first so longer prefixes overwrite them
+		List<RouteEntry> entries = new ArrayList<RouteEntry>();
+		trie.collect(entries);
+		Collections.sort(entries, new Comparator<RouteEntry>() {
+			public int compare(RouteEntry a, RouteEntry b)
+			{
+				return PrefixTrie.lengthOf(a.getMaskAddress())
+						- PrefixTrie.lengthOf(b.getMaskAddress());
+			}
+		});
+		for (RouteEntry entry : entries)
+		{
+			int length = PrefixTrie.lengthOf(entry.getMaskAddress());
+			this.fill(entry.getDestinationAddress() & entry.getMaskAddress(),
+					length, encode(entry), length + 1);
+		}
+	}
+
+	private static short encode(RouteEntry entry)
+	{ return (short)((null == entry) ? 0 : (entry.getNextHopGroup() + 1)); }
+
+	public int lookup(int ip)
+	{
+		short code = (short)ENTRY.getAcquire(this.tbl24, ip >>> 8);
+		if (code < 0)
+		{ code = this.tbl8[((-code - 1) * BLOCK_SIZE) + (ip & 0xff)]; }
+		return code - 1;
+	}
+
+	public void update(int dstIp, int maskIp)
+	{
+		int length = PrefixTrie.lengthOf(maskIp);
+		int prefix = dstIp & maskIp;
+		RouteEntry entry = this.trie.get(prefix, length);
+		if (entry != null)
+		{ this.fill(prefix, length, encode(entry), length + 1); }
+		else
+		{
+			// Give the entries the removed prefix filled to its cover
+			RouteEntry covering = this.trie.lookupCovering(prefix, length);
+			int depth = (null == covering) ? 0 
+					: PrefixTrie.lengthOf(covering.getMaskAddress()) + 1;
+			this.fill(prefix, length, encode(covering), depth);
+			if (length > 24)
+			{ this.collapseBlock(prefix >>> 8); }
+		}
+	}
+
+	/**
+	 * Set the entries covered by a prefix that were filled by a prefix no
+	 * longer than it, creating an overflow block if the prefix is longer 
+	 * than 24 bits.
+	 * @param prefix prefix bits
+	 * @param length number of significant bits
+	 * @param code value for the entries
+	 * @param depth length + 1 of the prefix the value comes from; 0 if none
+	 */
+	private void fill(int prefix, int length, short code, int depth)
+	{
+		int limit = length + 1;
+		if (length <= 24)
+		{
+			int start = prefix >>> 8;
+			int end = start + (1 << (24 - length));
+			for (int slot = start; slot < end; slot++)
+			{
+				short old = this.tbl24[slot];
+				if (old < 0)
+				{
+					this.fillBlock(-old - 1, 0, BLOCK_SIZE, code, depth, 
+							limit);
+				}
+				else if (this.depth24[slot] <= limit)
+				{
+					ENTRY.setRelease(this.tbl24, slot, code);
+					this.depth24[slot] = (byte)depth;
+				}
+			}
+			return;
+		}
+
+		int slot = prefix >>> 8;
+		short old = this.tbl24[slot];
+		int first = prefix & 0xff;
+		int count = 1 << (32 - length);
+		if (old < 0)
+		{
+			this.fillBlock(-old - 1, first, count, code, depth, limit);
+			return;
+		}
+
+		// Fill the overflow block before pointing the /24 at it
+		int block = this.allocateBlock();
+		int offset = block * BLOCK_SIZE;
+		Arrays.fill(this.tbl8, offset, offset + BLOCK_SIZE, old);
+		Arrays.fill(this.depth8, offset, offset + BLOCK_SIZE, 
+				this.depth24[slot]);
+		this.fillBlock(block, first, count, code, depth, limit);
+		ENTRY.setRelease(this.tbl24, slot, (short)(-block - 1));
+	}
+
+	/**
+	 * Set a range of entries in an overflow block that were filled by a 
+	 * prefix no longer than a limit.
+	 */
+	private void fillBlock(int block, int first, int count, short code, 
+			int depth, int limit)
+	{
+		short[] tbl8 = this.tbl8;
+		int start = block * BLOCK_SIZE + first;
+		for (int i = start; i < start + count; i++)
+		{
+			if (this.depth8[i] <= limit)
+			{
+				tbl8[i] = code;
+				this.depth8[i] = (byte)depth;
+			}
+		}
+	}
+
+	/**
+	 * Replace the overflow block for a /24 with a single entry, if no 
+	 * prefix longer than 24 bits remains in the /24.
+	 * @param slot top 24 bits of the addresses covered by the entry
+	 */
+	private void collapseBlock(int slot)
+	{
+		short old = this.tbl24[slot];
+		if (old >= 0 || this.trie.hasMoreSpecific(slot << 8, 24))
+		{ return; }
+
+		// Every entry in the block now comes from the same covering prefix
+		int offset = (-old - 1) * BLOCK_SIZE;
+		this.depth24[slot] = this.depth8[offset];
+		ENTRY.setRelease(this.tbl24, slot, this.tbl8[offset]);
+		this.freeBlock(-old - 1);
+	}
+
+	private int allocateBlock()
+	{
+		if (this.freeCount > 0)
+		{ return this.freeBlocks[--this.freeCount]; }
+		if (this.blockCount == MAX_BLOCKS)
+		{ throw new IllegalStateException("Too many overflow blocks"); }
+		if ((this.blockCount + 1) * BLOCK_SIZE > this.tbl8.length)
+		{
+			this.depth8 = Arrays.copyOf(this.depth8, this.depth8.length * 2);
+			this.tbl8 = Arrays.copyOf(this.tbl8, this.tbl8.length * 2);
+		}
+		return this.blockCount++;
+	}
+
+	private void freeBlock(int block)
+	{
+		// Lookups may still be reading the block, so delay reusing it
+		if (this.pendingCount == this.pendingBlocks.length)
+		{
+			this.pendingBlocks = Arrays.copyOf(this.pendingBlocks, 
+					this.pendingCount * 2);
+		}
+		this.pendingBlocks[this.pendingCount++] = block;
+	}
+
+	public void publish()
+	{
+		// Updates are applied in place, so they are already visible
+	}
+
+	public boolean hasReleased()
+	{ return this.pendingCount > 0; }
+
+	public void reclaim()
+	{
+		if (this.freeCount + this.pendingCount > this.freeBlocks.length)
+		{
+			this.freeBlocks = Arrays.copyOf(this.freeBlocks, 
+					this.freeCount + this.pendingCount);
+		}
+		System.arraycopy(this.pendingBlocks, 0, this.freeBlocks, 
+				this.freeCount, this.pendingCount);
+		this.freeCount += this.pendingCount;
+		this.pendingCount = 0;
+	}
+
+	public long getMemoryUsage()
+	{ return 3L * this.tbl24.length + 3L * this.tbl8.length; }
+
+	public String toString()
+	{
+		return String.format("DIR-24-8 table: %d overflow blocks in use, %d bytes",
+				this.blockCount - this.freeCount - this.pendingCount, 
+				this.getMemoryUsage());
+	}
+}
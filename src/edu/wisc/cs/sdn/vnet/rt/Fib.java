@@ -0,0 +1,48 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * A forwarding table compiled from the contents of a route table. Lookups
+ * return indices of next-hop groups in the route table's next-hop table.
+ * Lookups may run concurrently with, and must never block behind, updates;
+ * updates are serialized by the route table.
+ */
+interface Fib
+{
+	/**
+	 * Find the next-hop group for the longest prefix matching an IP address.
+	 * @param ip IP address
+	 * @return index of the next-hop group, -1 if no route matches
+	 */
+	int lookup(int ip);
+
+	/**
+	 * Bring the forwarding table up to date after the route for a prefix was
+	 * added, removed, or changed in the route table.
+	 * @param dstIp destination IP of the changed route
+	 * @param maskIp subnet mask of the changed route
+	 */
+	void update(int dstIp, int maskIp);
+
+	/**
+	 * Make all updates since the last call visible to lookups.
+	 */
+	void publish();
+
+	/**
+	 * @return true if updates released memory that {@link #reclaim()} 
+	 *         would make reusable
+	 */
+	boolean hasReleased();
+
+	/**
+	 * Allow memory released by updates before the last publish to be 
+	 * reused. Must only be called once every lookup that started before
+	 * that publish has finished.
+	 */
+	void reclaim();
+
+	/**
+	 * @return approximate number of bytes used by the forwarding table
+	 */
+	long getMemoryUsage();
+}
@@ -0,0 +1,389 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Aggregates the prefixes in a route table into the smallest set of prefixes
+ * that sends every address to the same next-hop group, using the Optimal
+ * Routing Table Constructor (ORTC). Adjacent and nested prefixes with the
+ * same next hops collapse into one, so forwarding tables compiled from the
+ * aggregated prefixes are smaller. Aggregated prefixes with next-hop group
+ * -1 mark holes that have no route inside a shorter prefix, and are 
+ * created with {@link RouteEntry#hole(int, int)}.
+ * <p>
+ * The address space is split into partitions of {@link #PARTITION_LENGTH}
+ * bits, and each partition is aggregated on its own, so a change to a
+ * prefix only re-aggregates the partition that contains it. Prefixes
+ * shorter than a partition are kept as they are; a change to one
+ * re-aggregates the partitions it covers, since they inherit its next hops.
+ * Changes are applied when the route table publishes its updates.
+ */
+class FibAggregator
+{
+	/** Number of leading bits that identify a partition */
+	static final int PARTITION_LENGTH = 16;
+
+	/** A node in the binary trie of one partition's prefixes */
+	private static class Node
+	{
+		Node zero, one;
+
+		/** True if a route entry is stored for the node's prefix */
+		boolean hasRoute;
+
+		/** Next-hop group of the route entry for the node's prefix */
+		int group;
+
+		/** Next-hop groups that would each need the fewest prefixes below
+		 *  the node, in ascending order */
+		int[] groups;
+	}
+
+	/** Route entries that are aggregated */
+	private PrefixTrie source;
+
+	/** Aggregated prefixes; only accessed by updates */
+	private PrefixTrie trie;
+
+	/** Most recently published snapshot of the aggregated prefixes */
+	private volatile PrefixTrie snapshot;
+
+	/** Next-hop table that holds the next-hop groups */
+	private NextHopTable nextHops;
+
+	/** Partitions that contain route entries, as of the last publish */
+	private TreeSet<Integer> partitions;
+
+	/** Partitions whose route entries changed since the last publish */
+	private Set<Integer> dirtyPartitions;
+
+	/** Prefixes shorter than a partition that changed since the last
+	 *  publish; the prefix is in the upper 32 bits, the length in the lower */
+	private Set<Long> dirtyPrefixes;
+
+	/**
+	 * Aggregate the route entries in a trie.
+	 * @param source trie holding the route entries
+	 * @param nextHops next-hop table that holds the entries' next-hop groups
+	 */
+	FibAggregator(PrefixTrie source, NextHopTable nextHops)
+	{
+		this.source = source;
+		this.trie = new PrefixTrie();
+		this.nextHops = nextHops;
+		this.partitions = new TreeSet<Integer>();
+		this.dirtyPartitions = new LinkedHashSet<Integer>();
+		this.dirtyPrefixes = new LinkedHashSet<Long>();
+
+		List<RouteEntry> entries = new ArrayList<RouteEntry>();
+		source.collect(entries);
+		for (RouteEntry entry : entries)
+		{ this.update(entry.getDestinationAddress(), entry.getMaskAddress()); }
+		this.publish(null);
+	}
+
+	/**
+	 * @return aggregated prefixes, which forwarding tables are compiled from;
+	 *         only accessed by updates
+	 */
+	PrefixTrie getTrie()
+	{ return this.trie; }
+
+	/**
+	 * Find the next-hop group for the longest aggregated prefix matching an
+	 * IP address.
+	 * @param ip IP address
+	 * @return index of the next-hop group, -1 if no route matches
+	 */
+	int lookup(int ip)
+	{
+		RouteEntry entry = this.snapshot.lookup(ip);
+		return (null == entry) ? -1 : entry.getNextHopGroup();
+	}
+
+	/**
+	 * Note that the route entry for a prefix was added, removed, or changed.
+	 * @param dstIp destination IP of the changed entry
+	 * @param maskIp subnet mask of the changed entry
+	 */
+	void update(int dstIp, int maskIp)
+	{
+		int length = PrefixTrie.lengthOf(maskIp);
+		int prefix = dstIp & maskIp;
+		if (length >= PARTITION_LENGTH)
+		{ this.dirtyPartitions.add(prefix >>> (32 - PARTITION_LENGTH)); }
+		else
+		{ this.dirtyPrefixes.add(((long)prefix << 32) | length); }
+	}
+
+	/**
+	 * Re-aggregate the prefixes affected by changes since the last call, and
+	 * make the result visible to lookups.
+	 * @param fib forwarding table compiled from the aggregated prefixes,
+	 *        which is told of every aggregated prefix that changed; null if
+	 *        none
+	 */
+	void publish(Fib fib)
+	{
+		List<RouteEntry> changed = new ArrayList<RouteEntry>();
+		for (long key : this.dirtyPrefixes)
+		{
+			int prefix = (int)(key >>> 32);
+			int length = (int)key;
+			RouteEntry entry = this.source.get(prefix, length);
+			RouteEntry old = this.trie.get(prefix, length);
+			int group = (null == entry) ? -1 : entry.getNextHopGroup();
+			if (null == entry)
+			{ this.remove(prefix, length, changed); }
+			else if (null == old || old.getNextHopGroup() != group)
+			{ this.put(prefix, length, group, changed); }
+
+			// Partitions covered by the prefix inherit its next hops
+			int first = prefix >>> (32 - PARTITION_LENGTH);
+			int last = first + (1 << (PARTITION_LENGTH - length)) - 1;
+			this.dirtyPartitions.addAll(
+					this.partitions.subSet(first, true, last, true));
+		}
+		for (int partition : this.dirtyPartitions)
+		{ this.aggregate(partition, changed); }
+		this.dirtyPrefixes.clear();
+		this.dirtyPartitions.clear();
+
+		// Update the forwarding table once the aggregated prefixes are final,
+		// so it never holds a partly re-aggregated partition
+		if (fib != null)
+		{
+			for (RouteEntry entry : changed)
+			{ fib.update(entry.getDestinationAddress(), entry.getMaskAddress()); }
+		}
+		this.snapshot = this.trie.snapshot();
+	}
+
+	/**
+	 * Replace the aggregated prefixes of a partition.
+	 * @param partition leading bits of the partition's addresses
+	 * @param changed list to which changed aggregated prefixes are added
+	 */
+	private void aggregate(int partition, List<RouteEntry> changed)
+	{
+		int base = partition << (32 - PARTITION_LENGTH);
+		List<RouteEntry> entries = new ArrayList<RouteEntry>();
+		this.source.collect(base, PARTITION_LENGTH, entries);
+		if (entries.isEmpty())
+		{ this.partitions.remove(partition); }
+		else
+		{ this.partitions.add(partition); }
+
+		// Build a binary trie of the partition's entries
+		Node root = new Node();
+		for (RouteEntry entry : entries)
+		{
+			int length = PrefixTrie.lengthOf(entry.getMaskAddress());
+			Node node = root;
+			for (int depth = PARTITION_LENGTH; depth < length; depth++)
+			{
+				if (0 == ((entry.getDestinationAddress() >>> (31 - depth)) & 1))
+				{
+					if (null == node.zero)
+					{ node.zero = new Node(); }
+					node = node.zero;
+				}
+				else
+				{
+					if (null == node.one)
+					{ node.one = new Node(); }
+					node = node.one;
+				}
+			}
+			node.hasRoute = true;
+			node.group = entry.getNextHopGroup();
+		}
+
+		RouteEntry covering = this.source.lookupCovering(base,
+				PARTITION_LENGTH);
+		int inherited = (null == covering) ? -1 : covering.getNextHopGroup();
+		Map<Long,Integer> aggregated = new HashMap<Long,Integer>();
+		if (!entries.isEmpty())
+		{
+			merge(root, inherited);
+			select(root, base, PARTITION_LENGTH, inherited, aggregated);
+		}
+
+		// Apply the difference from the previously aggregated prefixes
+		List<RouteEntry> old = new ArrayList<RouteEntry>();
+		this.trie.collect(base, PARTITION_LENGTH, old);
+		for (RouteEntry entry : old)
+		{
+			int length = PrefixTrie.lengthOf(entry.getMaskAddress());
+			Integer group = aggregated.remove(
+					((long)entry.getDestinationAddress() << 32) | length);
+			if (null == group)
+			{ this.remove(entry.getDestinationAddress(), length, changed); }
+			else if (group != entry.getNextHopGroup())
+			{ this.put(entry.getDestinationAddress(), length, group, changed); }
+		}
+		for (Map.Entry<Long,Integer> entry : aggregated.entrySet())
+		{
+			this.put((int)(entry.getKey() >>> 32), (int)(long)entry.getKey(),
+					entry.getValue(), changed);
+		}
+	}
+
+	/**
+	 * Push next-hop groups down to the leaves of a subtree, so every node
+	 * has zero or two children, and compute the groups that would each need
+	 * the fewest prefixes at every node, from the leaves up.
+	 * @param node root of the subtree
+	 * @param inherited next-hop group of the longest prefix above the node
+	 */
+	private static void merge(Node node, int inherited)
+	{
+		if (node.hasRoute)
+		{ inherited = node.group; }
+		if (null == node.zero && null == node.one)
+		{
+			node.groups = new int[] { inherited };
+			return;
+		}
+		if (null == node.zero)
+		{ node.zero = new Node(); }
+		if (null == node.one)
+		{ node.one = new Node(); }
+		merge(node.zero, inherited);
+		merge(node.one, inherited);
+		node.groups = intersect(node.zero.groups, node.one.groups);
+		if (0 == node.groups.length)
+		{ node.groups = union(node.zero.groups, node.one.groups); }
+	}
+
+	/**
+	 * Choose the aggregated prefixes of a subtree, from the root down; a
+	 * node needs a prefix only if the group it inherits is not one of its
+	 * best groups.
+	 * @param node root of the subtree
+	 * @param prefix prefix bits of the node
+	 * @param length number of significant bits of the node
+	 * @param inherited next-hop group the node inherits from above
+	 * @param result map from prefix (upper 32 bits) and length (lower) to
+	 *        next-hop group, to which aggregated prefixes are added
+	 */
+	private static void select(Node node, int prefix, int length,
+			int inherited, Map<Long,Integer> result)
+	{
+		int group = inherited;
+		if (!contains(node.groups, inherited))
+		{
+			group = node.groups[0];
+			result.put(((long)prefix << 32) | length, group);
+		}
+		if (node.zero != null)
+		{
+			select(node.zero, prefix, length + 1, group, result);
+			select(node.one, prefix | (1 << (31 - length)), length + 1, group,
+					result);
+		}
+	}
+
+	private static boolean contains(int[] groups, int group)
+	{
+		for (int member : groups)
+		{
+			if (member == group)
+			{ return true; }
+		}
+		return false;
+	}
+
+	private static int[] intersect(int[] a, int[] b)
+	{
+		int[] result = new int[Math.min(a.length, b.length)];
+		int count = 0;
+		for (int i = 0, j = 0; i < a.length && j < b.length; )
+		{
+			if (a[i] < b[j])
+			{ i++; }
+			else if (a[i] > b[j])
+			{ j++; }
+			else
+			{
+				result[count++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return (count == result.length) ? result
+				: Arrays.copyOf(result, count);
+	}
+
+	private static int[] union(int[] a, int[] b)
+	{
+		int[] result = new int[a.length + b.length];
+		int count = 0;
+		int i = 0, j = 0;
+		while (i < a.length || j < b.length)
+		{
+			if (j == b.length || (i < a.length && a[i] < b[j]))
+			{ result[count++] = a[i++]; }
+			else if (i == a.length || b[j] < a[i])
+			{ result[count++] = b[j++]; }
+			else
+			{
+				result[count++] = a[i++];
+				j++;
+			}
+		}
+		return (count == result.length) ? result
+				: Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * Store an aggregated prefix, replacing any existing one.
+	 */
+	private void put(int prefix, int length, int group,
+			List<RouteEntry> changed)
+	{
+		// Lookups may be reading the existing entry, so replace it
+		RouteEntry entry;
+		int maskIp = PrefixTrie.maskOf(length);
+		if (group < 0)
+		{ entry = RouteEntry.hole(prefix, maskIp); }
+		else
+		{
+			NextHop nextHop = this.nextHops.get(
+					this.nextHops.getGroup(group).getMembers()[0]);
+			entry = new RouteEntry(prefix, nextHop.getGatewayAddress(), maskIp,
+					nextHop.getInterface());
+			entry.setNextHop(nextHop);
+		}
+		entry.setNextHopGroup(group);
+		this.trie.remove(prefix, length);
+		this.trie.putIfAbsent(prefix, length, entry);
+		changed.add(entry);
+	}
+
+	/**
+	 * Remove an aggregated prefix, if it exists.
+	 */
+	private void remove(int prefix, int length, List<RouteEntry> changed)
+	{
+		RouteEntry removed = this.trie.remove(prefix, length);
+		if (removed != null)
+		{ changed.add(removed); }
+	}
+
+	public String toString()
+	{
+		int routes = this.source.size();
+		int prefixes = this.trie.size();
+		return String.format("Aggregated %d prefixes into %d (%.2f:1)",
+				routes, prefixes,
+				(0 == prefixes) ? 1.0 : ((double)routes / prefixes));
+	}
+}
@@ -0,0 +1,63 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Tracks lookups that run without locking, so that updates can wait for
+ * every lookup that may still read memory they released to finish before
+ * the memory is reused.
+ * <p>
+ * A lookup is counted in one of two counters, chosen by the current phase.
+ * Waiting switches the phase, so new lookups are counted in the other
+ * counter, and waits for the old counter to drain; it does this for both
+ * counters, so a steady stream of lookups never holds it up.
+ */
+class GracePeriod
+{
+	/** Counter in which new lookups are counted */
+	private final AtomicInteger phase;
+
+	/** Number of lookups in progress counted in each counter */
+	private final AtomicIntegerArray readers;
+
+	GracePeriod()
+	{
+		this.phase = new AtomicInteger(0);
+		this.readers = new AtomicIntegerArray(2);
+	}
+
+	/**
+	 * Count a lookup that is starting. Memory the lookup reads after this
+	 * call is not reused until it calls {@link #exit(int)}.
+	 * @return phase to pass to {@link #exit(int)}
+	 */
+	int enter()
+	{
+		int phase = this.phase.get();
+		this.readers.incrementAndGet(phase);
+		return phase;
+	}
+
+	/**
+	 * Count a lookup that finished.
+	 * @param phase phase returned by {@link #enter()} for the lookup
+	 */
+	void exit(int phase)
+	{ this.readers.decrementAndGet(phase); }
+
+	/**
+	 * Wait until every lookup that started before the call has finished.
+	 * Calls must be serialized by the caller.
+	 */
+	void await()
+	{
+		for (int i = 0; i < 2; i++)
+		{
+			int old = this.phase.get();
+			this.phase.set(1 - old);
+			while (this.readers.get(old) != 0)
+			{ Thread.yield(); }
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.wisc.cs.sdn.vnet.TimerWheel;
+
+/**
+ * Limits the rate at which the router sends ICMP error messages, both in
+ * total and to each host, so a flood of packets that cause errors cannot
+ * keep the router busy generating them. Each limit is a token bucket. Only
+ * the most recently limited hosts have buckets; a host whose bucket was
+ * discarded starts again with a full bucket.
+ */
+class IcmpRateLimiter
+{
+	/** Default number of errors sent per second, in total */
+	static final int DEFAULT_RATE = 1000;
+
+	/** Default number of errors sent at once, in total */
+	static final int DEFAULT_BURST = 50;
+
+	/** Default number of errors sent to a host per second */
+	static final int DEFAULT_SOURCE_RATE = 10;
+
+	/** Default number of errors sent to a host at once */
+	static final int DEFAULT_SOURCE_BURST = 10;
+
+	/** Largest number of hosts with buckets */
+	private static final int MAX_SOURCES = 1024;
+
+	/** Limits errors in total */
+	private TokenBucket bucket;
+
+	/** Errors sent to a host per second */
+	private int sourceRate;
+
+	/** Errors sent to a host at once */
+	private int sourceBurst;
+
+	/** Limits errors to each host, keyed by IP address; least recently
+	 *  used first */
+	private Map<Integer,TokenBucket> sourceBuckets;
+
+	/** Number of errors not sent */
+	private long limited;
+
+	/** Provides the time for the buckets */
+	private TimerWheel timers;
+
+	/**
+	 * Create a rate limiter.
+	 * @param rate errors sent per second, in total
+	 * @param burst errors sent at once, in total
+	 * @param sourceRate errors sent to a host per second
+	 * @param sourceBurst errors sent to a host at once
+	 */
+	IcmpRateLimiter(int rate, int burst, int sourceRate, int sourceBurst)
+	{
+		this.timers = TimerWheel.getShared();
+		this.bucket = new TokenBucket(rate, burst,
+				this.timers.currentTimeMillis());
+		this.sourceRate = sourceRate;
+		this.sourceBurst = sourceBurst;
+		this.sourceBuckets = new LinkedHashMap<Integer,TokenBucket>(
+				16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(
+					Map.Entry<Integer,TokenBucket> eldest)
+			{ return this.size() > MAX_SOURCES; }
+		};
+		this.limited = 0;
+	}
+
+	/**
+	 * Check whether an error may be sent to a host, and count it if so.
+	 * @param ip IP address of the host
+	 * @return true if the error may be sent, false if it should be dropped
+	 */
+	synchronized boolean allow(int ip)
+	{
+		long now = this.timers.currentTimeMillis();
+		TokenBucket sourceBucket = this.sourceBuckets.get(ip);
+		if (null == sourceBucket)
+		{
+			sourceBucket = new TokenBucket(this.sourceRate, this.sourceBurst,
+					now);
+			this.sourceBuckets.put(ip, sourceBucket);
+		}
+
+		// Only take a token from the total once the host's limit allows it,
+		// so one host cannot use up the total
+		if (!sourceBucket.tryTake(now) || !this.bucket.tryTake(now))
+		{
+			this.limited++;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of errors not sent
+	 */
+	synchronized long getLimited()
+	{ return this.limited; }
+}
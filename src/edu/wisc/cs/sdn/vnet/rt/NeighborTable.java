@@ -0,0 +1,199 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An open-addressing hash table of adjacencies, keyed by neighbor IP
+ * address, that lookups on the forwarding path read without locking or
+ * allocating. Keys are kept as primitives and probed linearly; the table is
+ * kept at most half full.
+ * <p>
+ * A removed neighbor's slot keeps its key and is marked with a tombstone,
+ * which lookups probe past, until the table is rebuilt; only the same
+ * neighbor may use the slot again, so a slot's key never changes once the
+ * slot is used. A key is written before the slot's adjacency is published,
+ * so a lookup that finds an adjacency always sees its key, and a lookup
+ * that finds an empty slot may treat the neighbor as absent. Growing or
+ * rebuilding the table builds new arrays and publishes them at once.
+ */
+class NeighborTable
+{
+	private static final int INITIAL_CAPACITY = 64;
+
+	/** Marks the slot of a removed neighbor */
+	private static final Adjacency TOMBSTONE = new Adjacency(0, null);
+
+	/** Orders writes of adjacencies with respect to lookups */
+	private static final VarHandle ADJACENCY =
+			MethodHandles.arrayElementVarHandle(Adjacency[].class);
+
+	/** Arrays of a table; replaced as a whole when the table grows */
+	private static class Slots
+	{
+		/** Neighbor IP address of each used slot */
+		final int[] ips;
+
+		/** First adjacency for the neighbor in each slot; null if the slot
+		 *  is empty */
+		final Adjacency[] adjacencies;
+
+		Slots(int capacity)
+		{
+			this.ips = new int[capacity];
+			this.adjacencies = new Adjacency[capacity];
+		}
+	}
+
+	/** Current arrays */
+	private volatile Slots slots;
+
+	/** Number of neighbors */
+	private int size;
+
+	/** Number of slots used by neighbors or tombstones */
+	private int used;
+
+	NeighborTable()
+	{
+		this.slots = new Slots(INITIAL_CAPACITY);
+		this.size = 0;
+		this.used = 0;
+	}
+
+	private static int slotOf(int ip, int mask)
+	{
+		int hash = ip * 0x9e3779b9;
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	/**
+	 * Find the adjacencies for a neighbor.
+	 * @param ip IP address of the neighbor
+	 * @return first of the neighbor's adjacencies, chained by interface;
+	 *         null if none
+	 */
+	Adjacency get(int ip)
+	{
+		Slots slots = this.slots;
+		int mask = slots.ips.length - 1;
+		int slot = slotOf(ip, mask);
+		while (true)
+		{
+			Adjacency adjacency =
+					(Adjacency)ADJACENCY.getAcquire(slots.adjacencies, slot);
+			if (null == adjacency)
+			{ return null; }
+			if (slots.ips[slot] == ip)
+			{ return (TOMBSTONE == adjacency) ? null : adjacency; }
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Set the adjacencies for a neighbor. Updates must be serialized by the
+	 * caller.
+	 * @param ip IP address of the neighbor
+	 * @param adjacency first of the neighbor's adjacencies, chained by
+	 *        interface
+	 */
+	void put(int ip, Adjacency adjacency)
+	{
+		Slots slots = this.slots;
+		if (2 * (this.used + 1) > slots.ips.length)
+		{
+			// Drop the tombstones, and grow if the neighbors alone fill half
+			int capacity = slots.ips.length;
+			if (4 * (this.size + 1) > capacity)
+			{ capacity *= 2; }
+			slots = rebuild(slots, capacity);
+			this.slots = slots;
+			this.used = this.size;
+		}
+		int mask = slots.ips.length - 1;
+		int slot = slotOf(ip, mask);
+		while (slots.adjacencies[slot] != null && slots.ips[slot] != ip)
+		{ slot = (slot + 1) & mask; }
+		if (null == slots.adjacencies[slot])
+		{
+			slots.ips[slot] = ip;
+			this.used++;
+		}
+		if (null == slots.adjacencies[slot] 
+				|| TOMBSTONE == slots.adjacencies[slot])
+		{ this.size++; }
+		ADJACENCY.setRelease(slots.adjacencies, slot, adjacency);
+	}
+
+	/**
+	 * Remove the adjacencies for a neighbor. Updates must be serialized by 
+	 * the caller.
+	 * @param ip IP address of the neighbor
+	 */
+	void remove(int ip)
+	{
+		Slots slots = this.slots;
+		int mask = slots.ips.length - 1;
+		int slot = slotOf(ip, mask);
+		while (slots.adjacencies[slot] != null)
+		{
+			if (slots.ips[slot] == ip)
+			{
+				if (slots.adjacencies[slot] != TOMBSTONE)
+				{
+					ADJACENCY.setRelease(slots.adjacencies, slot, TOMBSTONE);
+					this.size--;
+				}
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * @return number of neighbors
+	 */
+	int size()
+	{ return this.size; }
+
+	/**
+	 * Copy the neighbors, without tombstones, into new arrays. The copy is
+	 * private until it is published, so it needs no ordering.
+	 */
+	private static Slots rebuild(Slots slots, int capacity)
+	{
+		Slots grown = new Slots(capacity);
+		int mask = grown.ips.length - 1;
+		for (int i = 0; i < slots.ips.length; i++)
+		{
+			if (null == slots.adjacencies[i] 
+					|| TOMBSTONE == slots.adjacencies[i])
+			{ continue; }
+			int slot = slotOf(slots.ips[i], mask);
+			while (grown.adjacencies[slot] != null)
+			{ slot = (slot + 1) & mask; }
+			grown.ips[slot] = slots.ips[i];
+			grown.adjacencies[slot] = slots.adjacencies[i];
+		}
+		return grown;
+	}
+
+	/**
+	 * @return first adjacency for each neighbor, in no particular order
+	 */
+	List<Adjacency> values()
+	{
+		Slots slots = this.slots;
+		List<Adjacency> values = new ArrayList<Adjacency>();
+		for (int i = 0; i < slots.ips.length; i++)
+		{
+			Adjacency adjacency =
+					(Adjacency)ADJACENCY.getAcquire(slots.adjacencies, i);
+			if (adjacency != null && adjacency != TOMBSTONE)
+			{ values.add(adjacency); }
+		}
+		return values;
+	}
+}
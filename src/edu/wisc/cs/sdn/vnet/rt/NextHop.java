@@ -0,0 +1,63 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A next hop (gateway and outgoing interface) shared by every route entry
+ * and next-hop group that uses it. Repointing the next hop changes where
+ * packets for all of them are sent at once.
+ */
+class NextHop
+{
+	/** Index of the next hop in the next-hop table */
+	private int index;
+
+	/** Adjacency of the gateway; for directly connected next hops, an
+	 *  adjacency with IP address 0 that stands for every host on the subnet */
+	private volatile Adjacency adjacency;
+
+	/**
+	 * Create a next hop.
+	 * @param index index of the next hop in the next-hop table
+	 * @param adjacency adjacency of the gateway, or an adjacency with IP
+	 *        address 0 if directly connected
+	 */
+	NextHop(int index, Adjacency adjacency)
+	{
+		this.index = index;
+		this.adjacency = adjacency;
+	}
+
+	/**
+	 * @return index of the next hop in the next-hop table
+	 */
+	int getIndex()
+	{ return this.index; }
+
+	/**
+	 * @return adjacency of the gateway, or an adjacency with IP address 0 if
+	 *         directly connected
+	 */
+	Adjacency getAdjacency()
+	{ return this.adjacency; }
+
+	/**
+	 * Send packets for this next hop to a different gateway or interface.
+	 * @param adjacency adjacency of the new gateway, or an adjacency with IP
+	 *        address 0 if directly connected
+	 */
+	void setAdjacency(Adjacency adjacency)
+	{ this.adjacency = adjacency; }
+
+	/**
+	 * @return gateway IP address; 0 if directly connected
+	 */
+	int getGatewayAddress()
+	{ return this.adjacency.getIpAddress(); }
+
+	/**
+	 * @return outgoing interface
+	 */
+	Iface getInterface()
+	{ return this.adjacency.getInterface(); }
+}
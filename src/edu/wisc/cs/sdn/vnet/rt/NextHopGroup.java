@@ -0,0 +1,131 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A set of equal-cost next hops for a prefix. Packets are spread across the
+ * next hops by a hash of their flow, so all packets of a flow take the same
+ * path. Next hops that are not usable, such as those out an interface that
+ * is down, are skipped.
+ */
+class NextHopGroup
+{
+	/** Index of the group in the next-hop table */
+	private int id;
+
+	/** Indices of the next hops in the group, in ascending order */
+	private int[] members;
+
+	/** Positions in the members of the next hops that are usable */
+	private volatile int[] usable;
+
+	/** Number of packets sent to each next hop; null if the group has only
+	 *  one next hop */
+	private LongAdder[] packets;
+
+	/**
+	 * Create a group of next hops.
+	 * @param id index of the group in the next-hop table
+	 * @param members indices of the next hops, in ascending order
+	 */
+	NextHopGroup(int id, int[] members)
+	{
+		this.id = id;
+		this.members = members;
+		this.usable = new int[members.length];
+		for (int i = 0; i < members.length; i++)
+		{ this.usable[i] = i; }
+		this.packets = null;
+		if (members.length > 1)
+		{
+			this.packets = new LongAdder[members.length];
+			for (int i = 0; i < members.length; i++)
+			{ this.packets[i] = new LongAdder(); }
+		}
+	}
+
+	/**
+	 * @return index of the group in the next-hop table
+	 */
+	int getId()
+	{ return this.id; }
+
+	/**
+	 * @return indices of the next hops in the group, in ascending order;
+	 *         must not be modified
+	 */
+	int[] getMembers()
+	{ return this.members; }
+
+	/**
+	 * Set which next hops in the group are usable.
+	 * @param usable positions in the members of the usable next hops; must
+	 *        not be modified afterwards
+	 */
+	void setUsable(int[] usable)
+	{ this.usable = usable; }
+
+	/**
+	 * Choose the next hop for a packet, and count the packet against it.
+	 * @param flowHash hash of the packet's flow
+	 * @return index of the next hop in the next-hop table; -1 if no next hop
+	 *         is usable
+	 */
+	int select(int flowHash)
+	{
+		int[] usable = this.usable;
+		int member;
+		if (usable.length > 1)
+		{
+			member = usable[(int)(((flowHash & 0xffffffffL) * usable.length)
+					>>> 32)];
+		}
+		else if (1 == usable.length)
+		{ member = usable[0]; }
+		else
+		{ return -1; }
+		if (this.packets != null)
+		{ this.packets[member].increment(); }
+		return this.members[member];
+	}
+
+	/**
+	 * @return number of packets sent to the member at a position in the
+	 *         group
+	 */
+	long getPacketCount(int member)
+	{ return (null == this.packets) ? 0 : this.packets[member].sum(); }
+
+	/**
+	 * Hash the fields that identify a packet's flow.
+	 * @param srcIp source IP address
+	 * @param dstIp destination IP address
+	 * @param protocol IP protocol
+	 * @param srcPort source port; 0 if none
+	 * @param dstPort destination port; 0 if none
+	 * @return hash of the flow
+	 */
+	static int flowHash(int srcIp, int dstIp, int protocol, int srcPort,
+			int dstPort)
+	{
+		int hash = mix(0x9e3779b9 ^ srcIp);
+		hash = mix(hash ^ dstIp);
+		hash = mix(hash ^ ((protocol & 0xff) << 16));
+		hash = mix(hash ^ (((srcPort & 0xffff) << 16) | (dstPort & 0xffff)));
+		return hash;
+	}
+
+	/**
+	 * Finalization step of MurmurHash3, which spreads every input bit over
+	 * the whole result.
+	 */
+	private static int mix(int hash)
+	{
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+}
@@ -0,0 +1,499 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A compact table of the distinct next hops (gateway and outgoing interface)
+ * used by a route table. Forwarding tables store small next-hop indices into
+ * this table instead of references to route entries.
+ * <p>
+ * Each next hop has an adjacency that holds the Ethernet addresses for
+ * packets sent to the gateway. Directly connected next hops instead have an
+ * adjacency per destination host, created once the host is in the ARP cache
+ * and removed when it leaves the cache, so traffic to hosts that never
+ * resolve, such as a scan of a connected subnet, adds nothing to the table;
+ * at most {@link #MAX_HOSTS} hosts have adjacencies. Adjacencies are 
+ * updated as the ARP cache changes, so a route lookup yields everything
+ * needed to send a packet without a separate ARP lookup.
+ * <p>
+ * Prefixes are forwarded to groups of equal-cost next hops. Groups are
+ * shared by all prefixes with the same set of next hops, and the index of a
+ * group is reused once no prefix refers to it, the change is published, and
+ * every lookup that started before the publish has finished.
+ * <p>
+ * Since prefixes only refer to shared groups and next hops, repointing a 
+ * next hop costs time proportional to the number of groups that contain
+ * it, and taking an interface down to the number of next hops plus the
+ * groups that contain next hops out the interface, not the number of
+ * prefixes.
+ */
+class NextHopTable implements ArpCache.Listener
+{
+	/** Largest number of distinct next hops the table can hold */
+	static final int MAX_SIZE = Short.MAX_VALUE;
+
+	/** Largest number of distinct next-hop groups the table can hold */
+	static final int MAX_GROUPS = Short.MAX_VALUE;
+
+	/** Largest number of directly connected hosts with adjacencies; packets
+	 *  for further hosts are sent through the ARP resolver */
+	static final int MAX_HOSTS = 1 << 16;
+
+	/** Next hops, indexed by next-hop index */
+	private NextHop[] nextHops;
+
+	/** Number of next hops in the table */
+	private int size;
+
+	/** Maps a gateway and interface index pair to a next-hop index */
+	private Map<Long,Integer> indexes;
+
+	/** Indices of the referenced groups that contain each next hop, indexed
+	 *  by next-hop index */
+	private List<Set<Integer>> groupsOf;
+
+	/** Interfaces that are down */
+	private Set<Iface> downInterfaces;
+
+	/** Maps a neighbor IP address to its adjacencies, chained by interface */
+	private NeighborTable neighbors;
+
+	/** Number of adjacencies for directly connected hosts that are not also
+	 *  gateways */
+	private int hostCount;
+
+	/** ARP cache used to resolve neighbors; null if none */
+	private volatile ArpCache arpCache;
+
+	/** Next-hop groups, indexed by group index */
+	private NextHopGroup[] groups;
+
+	/** Number of next-hop groups ever allocated */
+	private int groupCount;
+
+	/** Number of references to each next-hop group */
+	private int[] groupReferences;
+
+	/** Maps the next-hop indices of a group's members to the group index */
+	private Map<List<Integer>,Integer> groupIndexes;
+
+	/** Indices of unreferenced groups that can be reused */
+	private List<Integer> freeGroups;
+
+	/** Indices of groups that became unreferenced since the last publish */
+	private List<Integer> pendingGroups;
+
+	NextHopTable()
+	{
+		this.nextHops = new NextHop[16];
+		this.size = 0;
+		this.indexes = new HashMap<Long,Integer>();
+		this.groupsOf = new ArrayList<Set<Integer>>();
+		this.downInterfaces = new HashSet<Iface>();
+		this.neighbors = new NeighborTable();
+		this.hostCount = 0;
+		this.arpCache = null;
+		this.groups = new NextHopGroup[16];
+		this.groupCount = 0;
+		this.groupReferences = new int[16];
+		this.groupIndexes = new HashMap<List<Integer>,Integer>();
+		this.freeGroups = new ArrayList<Integer>();
+		this.pendingGroups = new ArrayList<Integer>();
+	}
+
+	/**
+	 * Set the ARP cache used to resolve neighbors, and resolve all existing
+	 * adjacencies from it.
+	 * @param arpCache ARP cache
+	 */
+	void setArpCache(ArpCache arpCache)
+	{
+		this.arpCache = arpCache;
+		arpCache.addListener(this);
+		for (Adjacency head : this.neighbors.values())
+		{
+			for (Adjacency adjacency = head; adjacency != null;
+					adjacency = adjacency.next)
+			{ adjacency.resolve(arpCache); }
+		}
+	}
+
+	private static long keyOf(int gwIp, Iface iface)
+	{
+		if (iface.getIndex() < 0)
+		{ throw new IllegalArgumentException("Interface not on a device"); }
+		return ((long)gwIp << 32) | (iface.getIndex() & 0xffffffffL);
+	}
+
+	/**
+	 * Get a next hop, adding the next hop if necessary.
+	 * @param gwIp gateway IP address
+	 * @param iface outgoing interface
+	 * @return the next hop
+	 */
+	synchronized NextHop intern(int gwIp, Iface iface)
+	{
+		long key = keyOf(gwIp, iface);
+		Integer index = this.indexes.get(key);
+		if (index != null)
+		{ return this.nextHops[index]; }
+
+		if (this.size == MAX_SIZE)
+		{ throw new IllegalStateException("Too many distinct next hops"); }
+		if (this.size == this.nextHops.length)
+		{ this.nextHops = Arrays.copyOf(this.nextHops, this.size * 2); }
+
+		NextHop nextHop = new NextHop(this.size,
+				this.getNextHopAdjacency(gwIp, iface));
+		this.nextHops[this.size] = nextHop;
+		this.indexes.put(key, this.size);
+		this.groupsOf.add(new HashSet<Integer>());
+		this.size++;
+		return nextHop;
+	}
+
+	/**
+	 * Find a next hop.
+	 * @param gwIp gateway IP address
+	 * @param iface outgoing interface
+	 * @return the next hop; null if the table has no such next hop
+	 */
+	synchronized NextHop find(int gwIp, Iface iface)
+	{
+		Integer index = this.indexes.get(keyOf(gwIp, iface));
+		return (null == index) ? null : this.nextHops[index];
+	}
+
+	/**
+	 * Send packets for a next hop to a different gateway or interface. This
+	 * takes effect immediately for every prefix that uses the next hop.
+	 * @param nextHop the next hop
+	 * @param gwIp new gateway IP address; 0 if directly connected
+	 * @param iface new outgoing interface
+	 */
+	synchronized void repoint(NextHop nextHop, int gwIp, Iface iface)
+	{
+		long key = keyOf(gwIp, iface);
+		long oldKey = keyOf(nextHop.getGatewayAddress(), nextHop.getInterface());
+		Integer index = this.indexes.get(oldKey);
+		if (index != null && index == nextHop.getIndex())
+		{ this.indexes.remove(oldKey); }
+		if (!this.indexes.containsKey(key))
+		{ this.indexes.put(key, nextHop.getIndex()); }
+
+		nextHop.setAdjacency(this.getNextHopAdjacency(gwIp, iface));
+		this.refreshGroups(this.groupsOf.get(nextHop.getIndex()));
+	}
+
+	/**
+	 * Mark an interface as up or down. Next hops out an interface that is
+	 * down are skipped when choosing among a group's next hops. This takes
+	 * effect immediately for every prefix that uses the interface.
+	 * @param iface the interface
+	 * @param up true if the interface is up, false if down
+	 */
+	synchronized void setInterfaceUp(Iface iface, boolean up)
+	{
+		boolean changed = up ? this.downInterfaces.remove(iface)
+				: this.downInterfaces.add(iface);
+		if (!changed)
+		{ return; }
+
+		Set<Integer> groups = new HashSet<Integer>();
+		for (int i = 0; i < this.size; i++)
+		{
+			if (this.nextHops[i].getInterface() == iface)
+			{ groups.addAll(this.groupsOf.get(i)); }
+		}
+		this.refreshGroups(groups);
+	}
+
+	private Adjacency getNextHopAdjacency(int gwIp, Iface iface)
+	{
+		if (0 == gwIp)
+		{ return new Adjacency(0, iface); }
+		return this.getNeighbor(gwIp, iface, true);
+	}
+
+	/**
+	 * Update which next hops of some groups are usable.
+	 * @param groups indices of referenced groups
+	 */
+	private void refreshGroups(Set<Integer> groups)
+	{
+		for (int group : groups)
+		{ this.refreshGroup(this.groups[group]); }
+	}
+
+	private void refreshGroup(NextHopGroup group)
+	{
+		int[] members = group.getMembers();
+		int[] usable = new int[members.length];
+		int count = 0;
+		for (int i = 0; i < members.length; i++)
+		{
+			Iface iface = this.nextHops[members[i]].getInterface();
+			if (!this.downInterfaces.contains(iface))
+			{ usable[count++] = i; }
+		}
+		group.setUsable(Arrays.copyOf(usable, count));
+	}
+
+	/**
+	 * Get the index of a next-hop group, adding the group if necessary, and
+	 * add a reference to the group.
+	 * @param members indices of the next hops in the group, in ascending
+	 *        order; must not be modified afterwards
+	 * @return index of the group
+	 */
+	synchronized int acquireGroup(int[] members)
+	{
+		List<Integer> key = keyOf(members);
+		Integer index = this.groupIndexes.get(key);
+		if (index != null)
+		{
+			this.groupReferences[index]++;
+			return index;
+		}
+
+		int group;
+		if (!this.freeGroups.isEmpty())
+		{ group = this.freeGroups.remove(this.freeGroups.size() - 1); }
+		else
+		{
+			if (this.groupCount == MAX_GROUPS)
+			{
+				throw new IllegalStateException(
+						"Too many distinct next-hop groups");
+			}
+			if (this.groupCount == this.groups.length)
+			{
+				this.groups = Arrays.copyOf(this.groups, this.groupCount * 2);
+				this.groupReferences = Arrays.copyOf(this.groupReferences,
+						this.groupCount * 2);
+			}
+			group = this.groupCount++;
+		}
+		this.groups[group] = new NextHopGroup(group, members);
+		this.refreshGroup(this.groups[group]);
+		this.groupReferences[group] = 1;
+		this.groupIndexes.put(key, group);
+		for (int member : members)
+		{ this.groupsOf.get(member).add(group); }
+		return group;
+	}
+
+	/**
+	 * Remove a reference to a next-hop group. Once no references remain,
+	 * the group's index is reused after the next call to {@link #reclaim()}.
+	 * @param group index of the group
+	 */
+	synchronized void releaseGroup(int group)
+	{
+		this.groupReferences[group]--;
+		if (this.groupReferences[group] > 0)
+		{ return; }
+		// Lookups may still be reading the group, so delay reusing it
+		int[] members = this.groups[group].getMembers();
+		this.groupIndexes.remove(keyOf(members));
+		for (int member : members)
+		{ this.groupsOf.get(member).remove(group); }
+		this.pendingGroups.add(group);
+	}
+
+	/**
+	 * Allow the indices of groups released before the route table last
+	 * published its updates to be reused. Must only be called once every
+	 * lookup that started before that publish has finished.
+	 */
+	synchronized void reclaim()
+	{
+		this.freeGroups.addAll(this.pendingGroups);
+		this.pendingGroups.clear();
+	}
+
+	/**
+	 * @return true if groups were released since the last call to
+	 *         {@link #reclaim()}
+	 */
+	synchronized boolean hasReleasedGroups()
+	{ return !this.pendingGroups.isEmpty(); }
+
+	private static List<Integer> keyOf(int[] members)
+	{
+		List<Integer> key = new ArrayList<Integer>(members.length);
+		for (int member : members)
+		{ key.add(member); }
+		return key;
+	}
+
+	/**
+	 * @return next-hop group with a given index
+	 */
+	NextHopGroup getGroup(int group)
+	{ return this.groups[group]; }
+
+	/**
+	 * @return number of next-hop groups ever allocated
+	 */
+	int getGroupCount()
+	{ return this.groupCount; }
+
+	/**
+	 * @return true if a next-hop group is referenced, otherwise false
+	 */
+	synchronized boolean isGroupInUse(int group)
+	{ return this.groupReferences[group] > 0; }
+
+	/**
+	 * @return next hop with a given index
+	 */
+	NextHop get(int nextHop)
+	{ return this.nextHops[nextHop]; }
+
+	/**
+	 * Get the adjacency to which a packet should be sent.
+	 * @param nextHop index of the next hop for the packet's destination
+	 * @param dstIp destination IP address of the packet
+	 * @return adjacency of the gateway, or of the destination itself if the
+	 *         next hop is directly connected and the destination is in the
+	 *         ARP cache; otherwise the next hop's adjacency with IP address
+	 *         0, which is never resolved, so the packet is sent through the
+	 *         ARP resolver
+	 */
+	Adjacency getAdjacency(int nextHop, int dstIp)
+	{
+		Adjacency adjacency = this.nextHops[nextHop].getAdjacency();
+		if (adjacency.getIpAddress() != 0)
+		{ return adjacency; }
+
+		Iface iface = adjacency.getInterface();
+		for (Adjacency host = this.neighbors.get(dstIp); host != null;
+				host = host.next)
+		{
+			if (host.getInterface() == iface)
+			{ return host; }
+		}
+
+		// Only add hosts that are resolved, so unknown hosts cost nothing
+		ArpCache arpCache = this.arpCache;
+		if (null == arpCache || ArpCache.NO_MAC == arpCache.lookupMac(dstIp))
+		{ return adjacency; }
+		Adjacency host = this.getNeighbor(dstIp, iface, false);
+		return (null == host) ? adjacency : host;
+	}
+
+	/**
+	 * Get the adjacency for a neighbor, adding the adjacency if necessary.
+	 * @param ip IP address of the neighbor
+	 * @param iface interface out which the neighbor is reached
+	 * @param gateway true if the neighbor is a next hop's gateway
+	 * @return adjacency for the neighbor; null if the neighbor is a host
+	 *         and {@link #MAX_HOSTS} hosts already have adjacencies
+	 */
+	private Adjacency getNeighbor(int ip, Iface iface, boolean gateway)
+	{
+		Adjacency adjacency;
+		synchronized(this.neighbors)
+		{
+			Adjacency head = this.neighbors.get(ip);
+			for (adjacency = head; adjacency != null; adjacency = adjacency.next)
+			{
+				if (adjacency.getInterface() == iface)
+				{
+					if (gateway && !adjacency.gateway)
+					{
+						adjacency.gateway = true;
+						this.hostCount--;
+					}
+					return adjacency;
+				}
+			}
+			if (!gateway)
+			{
+				if (this.hostCount >= MAX_HOSTS)
+				{ return null; }
+				this.hostCount++;
+			}
+			adjacency = new Adjacency(ip, iface);
+			adjacency.gateway = gateway;
+			adjacency.next = head;
+			this.neighbors.put(ip, adjacency);
+		}
+
+		// Resolve after adding, so an ARP change made meanwhile is not missed
+		adjacency.resolve(this.arpCache);
+		if (!gateway && null == adjacency.getRewrite())
+		{ this.removeUnresolvedHosts(ip); }
+		return adjacency;
+	}
+
+	/**
+	 * Remove the adjacencies for a neighbor that are unresolved and used by
+	 * no next hop, since the neighbor left the ARP cache.
+	 * @param ip IP address of the neighbor
+	 */
+	private void removeUnresolvedHosts(int ip)
+	{
+		synchronized(this.neighbors)
+		{
+			Adjacency head = this.neighbors.get(ip);
+			Adjacency previous = null;
+			for (Adjacency adjacency = head; adjacency != null;
+					adjacency = adjacency.next)
+			{
+				if (adjacency.gateway || adjacency.getRewrite() != null)
+				{
+					previous = adjacency;
+					continue;
+				}
+				if (null == previous)
+				{ head = adjacency.next; }
+				else
+				{ previous.next = adjacency.next; }
+				this.hostCount--;
+			}
+			if (null == head)
+			{ this.neighbors.remove(ip); }
+			else if (head != this.neighbors.get(ip))
+			{ this.neighbors.put(ip, head); }
+		}
+	}
+
+	public void arpEntryChanged(int ip)
+	{
+		boolean unresolved = false;
+		for (Adjacency adjacency = this.neighbors.get(ip); adjacency != null;
+				adjacency = adjacency.next)
+		{
+			adjacency.resolve(this.arpCache);
+			if (!adjacency.gateway && null == adjacency.getRewrite())
+			{ unresolved = true; }
+		}
+		if (unresolved)
+		{ this.removeUnresolvedHosts(ip); }
+	}
+
+	/**
+	 * @return number of directly connected hosts with adjacencies
+	 */
+	int getHostCount()
+	{
+		synchronized(this.neighbors)
+		{ return this.hostCount; }
+	}
+
+	/**
+	 * @return number of next hops in the table
+	 */
+	int size()
+	{ return this.size; }
+}
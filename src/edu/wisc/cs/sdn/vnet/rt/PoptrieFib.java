@@ -0,0 +1,437 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A compact multibit trie (Poptrie) forwarding table stored off-heap. The top
+ * 18 bits of the destination index a direct table whose entries are either a
+ * next hop or the root of a subtree. Subtree nodes consume 6 bits per level
+ * and hold two 64-bit bitmaps: one marks the slots that have a child node,
+ * the other marks where runs of identical next hops begin. Children and
+ * leaves of a node are stored contiguously, so a population count of a
+ * bitmap gives the offset of the child or leaf for a slot.
+ * <p>
+ * Lookups read an immutable snapshot of the tables. Updates modify a private
+ * copy of the direct table and append new subtrees after the nodes and
+ * leaves that published snapshots can reach, so the node and leaf buffers
+ * can be shared between snapshots. Publishing costs one copy of the direct
+ * table, regardless of how many updates were made.
+ */
+class PoptrieFib implements Fib
+{
+	private static final int DIRECT_BITS = 18;
+	private static final int DIRECT_SIZE = 1 << DIRECT_BITS;
+	private static final int DIRECT_SHIFT = 32 - DIRECT_BITS;
+	private static final int STRIDE = 6;
+
+	/** Direct table entries with this bit set hold next-hop group + 1 */
+	private static final int LEAF_FLAG = 0x80000000;
+
+	/** Node layout: child bitmap, leaf bitmap, first leaf, first child */
+	private static final int NODE_SIZE = 24;
+	private static final int NODE_LEAF_BITMAP = 8;
+	private static final int NODE_LEAF_BASE = 16;
+	private static final int NODE_CHILD_BASE = 20;
+
+	/** Leaves hold next-hop group + 1, or 0 if no route */
+	private static final int LEAF_SIZE = 2;
+
+	/** Tables used by lookups */
+	private static class Snapshot
+	{
+		final ByteBuffer direct;
+		final ByteBuffer nodes;
+		final ByteBuffer leaves;
+
+		Snapshot(ByteBuffer direct, ByteBuffer nodes, ByteBuffer leaves)
+		{
+			this.direct = direct;
+			this.nodes = nodes;
+			this.leaves = leaves;
+		}
+	}
+
+	/** Route entries the table is compiled from */
+	private PrefixTrie trie;
+
+	/** Most recently published tables */
+	private volatile Snapshot snapshot;
+
+	/** Entries for each /18 */
+	private ByteBuffer direct;
+
+	/** True if the direct table is shared with the published snapshot */
+	private boolean directShared;
+
+	/** Subtree nodes */
+	private ByteBuffer nodes;
+
+	/** Number of nodes allocated, including garbage */
+	private int nodeCount;
+
+	/** Runs of next hops */
+	private ByteBuffer leaves;
+
+	/** Number of leaves allocated, including garbage */
+	private int leafCount;
+
+	/** Number of nodes that belong to replaced subtrees */
+	private int garbageNodes;
+
+	/** Number of leaves that belong to replaced subtrees */
+	private int garbageLeaves;
+
+	/**
+	 * Build a Poptrie from the route entries in a trie.
+	 * @param trie trie holding the route entries
+	 */
+	PoptrieFib(PrefixTrie trie)
+	{
+		this.trie = trie;
+		this.rebuild();
+	}
+
+	/**
+	 * Use tables written by {@link #writeImage(ByteBuffer, int[])}, without
+	 * copying them. The tables are copied only when they are first updated,
+	 * so they may be read-only, such as a memory-mapped file.
+	 * @param trie trie holding the route entries the tables were built
+	 *        from; needed only for updates
+	 * @param image buffer positioned at the tables, in little-endian order;
+	 *        positioned after the tables on return
+	 */
+	PoptrieFib(PrefixTrie trie, ByteBuffer image)
+	{
+		this.trie = trie;
+		this.nodeCount = image.getInt();
+		this.leafCount = image.getInt();
+		this.direct = slice(image, 4 * DIRECT_SIZE);
+		this.nodes = slice(image, NODE_SIZE * this.nodeCount);
+		this.leaves = slice(image, LEAF_SIZE * this.leafCount);
+		this.garbageNodes = 0;
+		this.garbageLeaves = 0;
+		this.publish();
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int length)
+	{
+		ByteBuffer slice = buffer.slice();
+		slice.limit(length);
+		buffer.position(buffer.position() + length);
+		return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @return number of bytes {@link #writeImage(ByteBuffer, int[])} writes
+	 */
+	int getImageSize()
+	{
+		return 8 + 4 * DIRECT_SIZE + NODE_SIZE * this.nodeCount
+				+ LEAF_SIZE * this.leafCount;
+	}
+
+	/**
+	 * Write the tables in a form that can be used directly for lookups by
+	 * {@link #PoptrieFib(PrefixTrie, ByteBuffer)}. Garbage is written too, so
+	 * the tables should be freshly built.
+	 * @param image buffer to write to, in little-endian order
+	 * @param groups maps the index of each next-hop group to the index to
+	 *        write in its place
+	 */
+	void writeImage(ByteBuffer image, int[] groups)
+	{
+		image.putInt(this.nodeCount);
+		image.putInt(this.leafCount);
+		for (int slot = 0; slot < DIRECT_SIZE; slot++)
+		{
+			int code = this.direct.getInt(slot * 4);
+			if (code < 0)
+			{ code = LEAF_FLAG | remap(code & ~LEAF_FLAG, groups); }
+			image.putInt(code);
+		}
+		for (int node = 0; node < this.nodeCount; node++)
+		{
+			int base = node * NODE_SIZE;
+			image.putLong(this.nodes.getLong(base));
+			image.putLong(this.nodes.getLong(base + NODE_LEAF_BITMAP));
+			image.putInt(this.nodes.getInt(base + NODE_LEAF_BASE));
+			image.putInt(this.nodes.getInt(base + NODE_CHILD_BASE));
+		}
+		for (int leaf = 0; leaf < this.leafCount; leaf++)
+		{
+			image.putShort((short)remap(
+					this.leaves.getShort(leaf * LEAF_SIZE), groups));
+		}
+	}
+
+	private static int remap(int code, int[] groups)
+	{ return (0 == code) ? 0 : (groups[code - 1] + 1); }
+
+	private static int encode(RouteEntry entry)
+	{ return (null == entry) ? 0 : (entry.getNextHopGroup() + 1); }
+
+	/**
+	 * @return the 6 bits of an IP address that select a slot in a node at a
+	 *         given depth; addresses are padded with zeros past 32 bits
+	 */
+	private static int slotOf(int ip, int depth)
+	{
+		if (depth <= 32 - STRIDE)
+		{ return (ip >>> (32 - STRIDE - depth)) & 0x3f; }
+		return (ip << (depth - (32 - STRIDE))) & 0x3f;
+	}
+
+	/**
+	 * @return the first address covered by a slot in a node at a given depth
+	 */
+	private static int slotAddress(int prefix, int depth, int slot)
+	{
+		if (depth <= 32 - STRIDE)
+		{ return prefix | (slot << (32 - STRIDE - depth)); }
+		return prefix | (slot >>> (depth - (32 - STRIDE)));
+	}
+
+	public int lookup(int ip)
+	{
+		Snapshot snapshot = this.snapshot;
+		ByteBuffer nodes = snapshot.nodes;
+		int code = snapshot.direct.getInt((ip >>> DIRECT_SHIFT) * 4);
+		if (code < 0)
+		{ return (code & ~LEAF_FLAG) - 1; }
+
+		int index = code;
+		int depth = DIRECT_BITS;
+		while (true)
+		{
+			int base = index * NODE_SIZE;
+			long childBitmap = nodes.getLong(base);
+			int slot = slotOf(ip, depth);
+			long upToSlot = (2L << slot) - 1;
+			if ((childBitmap & (1L << slot)) != 0)
+			{
+				index = nodes.getInt(base + NODE_CHILD_BASE)
+						+ Long.bitCount(childBitmap & upToSlot) - 1;
+				depth += STRIDE;
+			}
+			else
+			{
+				long leafBitmap = nodes.getLong(base + NODE_LEAF_BITMAP);
+				int leaf = nodes.getInt(base + NODE_LEAF_BASE)
+						+ Long.bitCount(leafBitmap & upToSlot) - 1;
+				return snapshot.leaves.getShort(leaf * LEAF_SIZE) - 1;
+			}
+		}
+	}
+
+	public void update(int dstIp, int maskIp)
+	{
+		int length = PrefixTrie.lengthOf(maskIp);
+		int start = (dstIp & maskIp) >>> DIRECT_SHIFT;
+		int end = start + ((length >= DIRECT_BITS) ? 1
+				: (1 << (DIRECT_BITS - length)));
+		if (this.directShared)
+		{
+			this.direct = ensureCapacity(this.direct, 0, true);
+			this.directShared = false;
+		}
+		for (int slot = start; slot < end; slot++)
+		{
+			// Replace the slot's subtree; the old one becomes garbage
+			int old = this.direct.getInt(slot * 4);
+			if (old >= 0)
+			{ this.collectGarbage(old); }
+			this.buildDirect(slot);
+		}
+
+		// Compact once more space is wasted than used, counting the direct
+		// table, so the cost of a rebuild is spread over many updates
+		long garbage = (long)NODE_SIZE * this.garbageNodes 
+				+ (long)LEAF_SIZE * this.garbageLeaves;
+		if (garbage > this.getUsedBytes())
+		{ this.rebuild(); }
+	}
+
+	public void publish()
+	{
+		this.snapshot = new Snapshot(this.direct, this.nodes, this.leaves);
+		this.directShared = true;
+	}
+
+	public boolean hasReleased()
+	{ return false; }
+
+	public void reclaim()
+	{
+		// Snapshots keep the buffers they use, so nothing is reused
+	}
+
+	/**
+	 * Build the entire table from scratch.
+	 */
+	private void rebuild()
+	{
+		this.direct = ByteBuffer.allocateDirect(DIRECT_SIZE * 4)
+				.order(ByteOrder.nativeOrder());
+		this.nodes = ByteBuffer.allocateDirect(64 * NODE_SIZE)
+				.order(ByteOrder.nativeOrder());
+		this.leaves = ByteBuffer.allocateDirect(256 * LEAF_SIZE)
+				.order(ByteOrder.nativeOrder());
+		this.nodeCount = 0;
+		this.leafCount = 0;
+		this.garbageNodes = 0;
+		this.garbageLeaves = 0;
+		this.directShared = false;
+		for (int slot = 0; slot < DIRECT_SIZE; slot++)
+		{ this.buildDirect(slot); }
+	}
+
+	private void buildDirect(int slot)
+	{
+		int prefix = slot << DIRECT_SHIFT;
+		if (this.trie.hasMoreSpecific(prefix, DIRECT_BITS))
+		{
+			int root = this.allocateNodes(1);
+			this.buildNode(root, prefix, DIRECT_BITS);
+			this.direct.putInt(slot * 4, root);
+		}
+		else
+		{
+			this.direct.putInt(slot * 4,
+					LEAF_FLAG | encode(this.trie.lookup(prefix)));
+		}
+	}
+
+	private void buildNode(int index, int prefix, int depth)
+	{
+		int slotLength = Math.min(depth + STRIDE, 32);
+
+		// Find slots that need a child node
+		long childBitmap = 0;
+		if (slotLength < 32)
+		{
+			for (int slot = 0; slot < 64; slot++)
+			{
+				if (this.trie.hasMoreSpecific(
+						slotAddress(prefix, depth, slot), slotLength))
+				{ childBitmap |= 1L << slot; }
+			}
+		}
+		int childBase = this.allocateNodes(Long.bitCount(childBitmap));
+
+		// Store one leaf per run of slots with the same next hop
+		long leafBitmap = 0;
+		int leafBase = this.leafCount;
+		int previous = -1;
+		for (int slot = 0; slot < 64; slot++)
+		{
+			if ((childBitmap & (1L << slot)) != 0)
+			{ continue; }
+			int code = encode(this.trie.lookup(
+					slotAddress(prefix, depth, slot)));
+			if (code != previous)
+			{
+				leafBitmap |= 1L << slot;
+				this.appendLeaf(code);
+				previous = code;
+			}
+		}
+
+		int base = index * NODE_SIZE;
+		this.nodes.putLong(base, childBitmap);
+		this.nodes.putLong(base + NODE_LEAF_BITMAP, leafBitmap);
+		this.nodes.putInt(base + NODE_LEAF_BASE, leafBase);
+		this.nodes.putInt(base + NODE_CHILD_BASE, childBase);
+
+		int child = childBase;
+		for (int slot = 0; slot < 64; slot++)
+		{
+			if ((childBitmap & (1L << slot)) != 0)
+			{
+				this.buildNode(child++, slotAddress(prefix, depth, slot),
+						depth + STRIDE);
+			}
+		}
+	}
+
+	private void collectGarbage(int index)
+	{
+		int base = index * NODE_SIZE;
+		long childBitmap = this.nodes.getLong(base);
+		this.garbageNodes++;
+		this.garbageLeaves += Long.bitCount(
+				this.nodes.getLong(base + NODE_LEAF_BITMAP));
+		int childBase = this.nodes.getInt(base + NODE_CHILD_BASE);
+		for (int i = 0; i < Long.bitCount(childBitmap); i++)
+		{ this.collectGarbage(childBase + i); }
+	}
+
+	private int allocateNodes(int count)
+	{
+		int first = this.nodeCount;
+		this.nodeCount += count;
+		this.nodes = ensureCapacity(this.nodes, this.nodeCount * NODE_SIZE,
+				false);
+		return first;
+	}
+
+	private void appendLeaf(int code)
+	{
+		this.leaves = ensureCapacity(this.leaves,
+				(this.leafCount + 1) * LEAF_SIZE, false);
+		this.leaves.putShort(this.leafCount * LEAF_SIZE, (short)code);
+		this.leafCount++;
+	}
+
+	/**
+	 * Get a buffer with at least the given capacity and the same contents.
+	 * @param buffer current buffer
+	 * @param size capacity needed
+	 * @param copy true if a new buffer is needed even if the current buffer
+	 *        is large enough
+	 * @return the current buffer or a new, larger copy of it
+	 */
+	private static ByteBuffer ensureCapacity(ByteBuffer buffer, int size,
+			boolean copy)
+	{
+		if (size <= buffer.capacity() && !copy)
+		{ return buffer; }
+		int capacity = buffer.capacity();
+		if (size > capacity)
+		{ capacity = Math.max(size, capacity * 2); }
+		ByteBuffer larger = ByteBuffer.allocateDirect(capacity)
+				.order(buffer.order());
+		ByteBuffer source = buffer.duplicate();
+		source.clear();
+		larger.put(source);
+		larger.clear();
+		return larger;
+	}
+
+	/**
+	 * @return bytes used by the direct table and live nodes and leaves
+	 */
+	private long getUsedBytes()
+	{
+		return 4L * DIRECT_SIZE
+				+ (long)NODE_SIZE * (this.nodeCount - this.garbageNodes)
+				+ (long)LEAF_SIZE * (this.leafCount - this.garbageLeaves);
+	}
+
+	public long getMemoryUsage()
+	{
+		return this.direct.capacity() + this.nodes.capacity()
+				+ this.leaves.capacity();
+	}
+
+	public String toString()
+	{
+		int prefixes = this.trie.size();
+		return String.format("Poptrie: %d nodes, %d leaves, %d bytes"
+				+ " (%.2f bytes per prefix, %d allocated)",
+				this.nodeCount - this.garbageNodes,
+				this.leafCount - this.garbageLeaves, this.getUsedBytes(),
+				(0 == prefixes) ? 0.0 : ((double)this.getUsedBytes() / prefixes),
+				this.getMemoryUsage());
+	}
+}
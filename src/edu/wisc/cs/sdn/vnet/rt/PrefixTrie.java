@@ -0,0 +1,411 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.List;
+
+/**
+ * A path-compressed binary (Patricia) trie that maps IPv4 prefixes to route
+ * entries. Each node stores the prefix bits it covers, so a longest prefix
+ * match visits at most 33 nodes regardless of how many routes are stored.
+ * Subnet masks are assumed to be contiguous.
+ * <p>
+ * Updates copy the nodes on the path to the changed prefix instead of
+ * modifying nodes that a {@link #snapshot()} may share, so snapshots never
+ * change and can be read without locking. Nodes created since the last
+ * snapshot are modified in place, so a batch of updates copies each path at
+ * most once.
+ */
+class PrefixTrie
+{
+	/** A node in the trie; glue nodes have a null entry */
+	private static class Node
+	{
+		/** Prefix bits covered by the node (host bits are zero) */
+		int prefix;
+
+		/** Number of significant bits in the prefix */
+		int length;
+
+		/** Route entry for the prefix; null for glue nodes */
+		RouteEntry entry;
+
+		/** Children for the next bit being 0 and 1 */
+		Node zero, one;
+
+		/** Trie version that created the node and may modify it in place */
+		Object owner;
+
+		Node(int prefix, int length, Object owner)
+		{
+			this.prefix = prefix;
+			this.length = length;
+			this.owner = owner;
+		}
+
+		Node copy(Object owner)
+		{
+			Node copy = new Node(this.prefix, this.length, owner);
+			copy.entry = this.entry;
+			copy.zero = this.zero;
+			copy.one = this.one;
+			return copy;
+		}
+
+		Node getChild(int bit)
+		{ return (0 == bit) ? this.zero : this.one; }
+
+		void setChild(int bit, Node child)
+		{
+			if (0 == bit)
+			{ this.zero = child; }
+			else
+			{ this.one = child; }
+		}
+
+		int getChildCount()
+		{ return ((null == this.zero) ? 0 : 1) + ((null == this.one) ? 0 : 1); }
+
+		Node getOnlyChild()
+		{ return (null == this.zero) ? this.one : this.zero; }
+	}
+
+	/** Root of the trie; null if the trie is empty */
+	private Node root;
+
+	/** Number of prefixes stored in the trie */
+	private int size;
+
+	/** Marks nodes this trie may modify in place */
+	private Object owner;
+
+	/**
+	 * Create an empty trie.
+	 */
+	PrefixTrie()
+	{ this(null, 0); }
+
+	private PrefixTrie(Node root, int size)
+	{
+		this.root = root;
+		this.size = size;
+		this.owner = new Object();
+	}
+
+	/**
+	 * Create a trie with the same contents that is unaffected by future 
+	 * updates to this trie.
+	 * @return the snapshot
+	 */
+	PrefixTrie snapshot()
+	{
+		// Stop modifying the nodes the snapshot shares in place
+		this.owner = new Object();
+		return new PrefixTrie(this.root, this.size);
+	}
+
+	/**
+	 * @param length number of significant bits
+	 * @return the subnet mask with the given number of leading one bits
+	 */
+	static int maskOf(int length)
+	{ return (0 == length) ? 0 : (-1 << (32 - length)); }
+
+	/**
+	 * @param mask a contiguous subnet mask
+	 * @return number of leading one bits in the mask
+	 */
+	static int lengthOf(int mask)
+	{ return Integer.numberOfLeadingZeros(~mask); }
+
+	/**
+	 * @return value (0 or 1) of the bit at a position, counting from the most
+	 *         significant bit
+	 */
+	private static int bitAt(int ip, int position)
+	{ return (ip >>> (31 - position)) & 1; }
+
+	/**
+	 * @return true if the first length bits of ip equal the prefix
+	 */
+	private static boolean matches(int ip, int prefix, int length)
+	{ return ((ip ^ prefix) & maskOf(length)) == 0; }
+
+	/**
+	 * @return number of leading bits two prefixes have in common, bounded by
+	 *         the shorter of the two lengths
+	 */
+	private static int commonLength(int a, int aLength, int b, int bLength)
+	{
+		int common = Integer.numberOfLeadingZeros(a ^ b);
+		return Math.min(common, Math.min(aLength, bLength));
+	}
+
+	/**
+	 * @return number of prefixes stored in the trie
+	 */
+	int size()
+	{ return this.size; }
+
+	/**
+	 * Find the entry with the longest prefix matching an IP address.
+	 * @param ip IP address
+	 * @return the matching entry, null if none exists
+	 */
+	RouteEntry lookup(int ip)
+	{
+		RouteEntry bestMatch = null;
+		Node node = this.root;
+		while (node != null && matches(ip, node.prefix, node.length))
+		{
+			if (node.entry != null)
+			{ bestMatch = node.entry; }
+			if (32 == node.length)
+			{ break; }
+			node = node.getChild(bitAt(ip, node.length));
+		}
+		return bestMatch;
+	}
+
+	/**
+	 * Find the entry with the longest prefix that contains, and is shorter
+	 * than, a given prefix.
+	 * @param prefix prefix bits
+	 * @param length number of significant bits
+	 * @return the covering entry, null if none exists
+	 */
+	RouteEntry lookupCovering(int prefix, int length)
+	{
+		RouteEntry bestMatch = null;
+		Node node = this.root;
+		while (node != null && node.length < length
+				&& matches(prefix, node.prefix, node.length))
+		{
+			if (node.entry != null)
+			{ bestMatch = node.entry; }
+			node = node.getChild(bitAt(prefix, node.length));
+		}
+		return bestMatch;
+	}
+
+	/**
+	 * Find the entry stored for an exact prefix.
+	 * @param prefix prefix bits
+	 * @param length number of significant bits
+	 * @return the entry for the prefix, null if none exists
+	 */
+	RouteEntry get(int prefix, int length)
+	{
+		prefix &= maskOf(length);
+		Node node = this.root;
+		while (node != null && node.length <= length
+				&& matches(prefix, node.prefix, node.length))
+		{
+			if (node.length == length)
+			{ return node.entry; }
+			node = node.getChild(bitAt(prefix, node.length));
+		}
+		return null;
+	}
+
+	/**
+	 * Check whether any entry has a prefix that is more specific than, and
+	 * contained in, a given prefix.
+	 * @param prefix prefix bits
+	 * @param length number of significant bits
+	 * @return true if a more specific entry exists, otherwise false
+	 */
+	boolean hasMoreSpecific(int prefix, int length)
+	{
+		Node node = this.root;
+		while (node != null)
+		{
+			// Every node has at least one entry at or below it
+			if (node.length > length)
+			{ return matches(node.prefix, prefix, length); }
+			if (!matches(prefix, node.prefix, node.length))
+			{ return false; }
+			if (node.length == length)
+			{ return node.getChildCount() > 0; }
+			node = node.getChild(bitAt(prefix, node.length));
+		}
+		return false;
+	}
+
+	/**
+	 * Add all entries in the trie to a list, shorter prefixes before the
+	 * longer prefixes they contain.
+	 * @param result list to which entries are added
+	 */
+	void collect(List<RouteEntry> result)
+	{ collect(this.root, result); }
+
+	/**
+	 * Add all entries for a prefix and the prefixes it contains to a list,
+	 * shorter prefixes before the longer prefixes they contain.
+	 * @param prefix prefix bits
+	 * @param length number of significant bits
+	 * @param result list to which entries are added
+	 */
+	void collect(int prefix, int length, List<RouteEntry> result)
+	{
+		Node node = this.root;
+		while (node != null)
+		{
+			if (node.length >= length)
+			{
+				if (matches(node.prefix, prefix, length))
+				{ collect(node, result); }
+				return;
+			}
+			if (!matches(prefix, node.prefix, node.length))
+			{ return; }
+			node = node.getChild(bitAt(prefix, node.length));
+		}
+	}
+
+	private static void collect(Node node, List<RouteEntry> result)
+	{
+		if (null == node)
+		{ return; }
+		if (node.entry != null)
+		{ result.add(node.entry); }
+		collect(node.zero, result);
+		collect(node.one, result);
+	}
+
+	/**
+	 * Store an entry for a prefix, unless the prefix already has an entry.
+	 * @param prefix prefix bits
+	 * @param length number of significant bits
+	 * @param entry entry to store
+	 * @return the entry now stored for the prefix
+	 */
+	RouteEntry putIfAbsent(int prefix, int length, RouteEntry entry)
+	{
+		prefix &= maskOf(length);
+		RouteEntry existing = this.get(prefix, length);
+		if (existing != null)
+		{ return existing; }
+
+		Node parent = null;
+		Node node = this.root;
+		while (node != null)
+		{
+			int common = commonLength(prefix, length, node.prefix, node.length);
+			if (common == node.length)
+			{
+				// Node covers the prefix; stop here or descend
+				node = this.writable(parent, node);
+				if (node.length == length)
+				{
+					node.entry = entry;
+					this.size++;
+					return entry;
+				}
+				parent = node;
+				node = node.getChild(bitAt(prefix, node.length));
+				continue;
+			}
+
+			// Prefix diverges from the node; split the path above the node
+			Node leaf = new Node(prefix, length, this.owner);
+			leaf.entry = entry;
+			Node split;
+			if (common == length)
+			{
+				leaf.setChild(bitAt(node.prefix, length), node);
+				split = leaf;
+			}
+			else
+			{
+				split = new Node(prefix & maskOf(common), common, this.owner);
+				split.setChild(bitAt(prefix, common), leaf);
+				split.setChild(bitAt(node.prefix, common), node);
+			}
+			this.replaceChild(parent, node, split);
+			this.size++;
+			return entry;
+		}
+
+		// Reached an empty slot; attach a new leaf
+		Node leaf = new Node(prefix, length, this.owner);
+		leaf.entry = entry;
+		if (null == parent)
+		{ this.root = leaf; }
+		else
+		{ parent.setChild(bitAt(prefix, parent.length), leaf); }
+		this.size++;
+		return entry;
+	}
+
+	/**
+	 * Remove the entry stored for an exact prefix.
+	 * @param prefix prefix bits
+	 * @param length number of significant bits
+	 * @return the entry that was removed, null if none existed
+	 */
+	RouteEntry remove(int prefix, int length)
+	{
+		prefix &= maskOf(length);
+		if (null == this.get(prefix, length))
+		{ return null; }
+
+		Node grandparent = null;
+		Node parent = null;
+		Node node = this.writable(null, this.root);
+		while (node.length < length)
+		{
+			grandparent = parent;
+			parent = node;
+			node = this.writable(parent, 
+					node.getChild(bitAt(prefix, node.length)));
+		}
+
+		RouteEntry removed = node.entry;
+		node.entry = null;
+		this.size--;
+
+		// Drop nodes that no longer distinguish between two subtrees
+		int children = node.getChildCount();
+		if (children == 2)
+		{ return removed; }
+		this.replaceChild(parent, node, node.getOnlyChild());
+		if (0 == children && parent != null && null == parent.entry)
+		{ this.replaceChild(grandparent, parent, parent.getOnlyChild()); }
+		return removed;
+	}
+
+	/**
+	 * Remove all entries from the trie.
+	 */
+	void clear()
+	{
+		this.root = null;
+		this.size = 0;
+	}
+
+	/**
+	 * Get a version of a node this trie may modify, copying the node into
+	 * its parent's place if the node may be shared with a snapshot.
+	 * @param parent writable parent of the node; null if the node is the root
+	 * @param node node to be modified
+	 * @return the writable node
+	 */
+	private Node writable(Node parent, Node node)
+	{
+		if (node.owner == this.owner)
+		{ return node; }
+		Node copy = node.copy(this.owner);
+		this.replaceChild(parent, node, copy);
+		return copy;
+	}
+
+	private void replaceChild(Node parent, Node oldChild, Node newChild)
+	{
+		if (null == parent)
+		{ this.root = newChild; }
+		else if (parent.zero == oldChild)
+		{ parent.zero = newChild; }
+		else
+		{ parent.one = newChild; }
+	}
+}
@@ -0,0 +1,141 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Hands packets that need more than forwarding, such as packets for the
+ * router itself, ARP packets, and packets that cause ICMP errors, to a
+ * worker thread of their own, so they do not delay the packets behind them.
+ * The queue is bounded; packets punted while it is full are dropped and
+ * counted, so a flood of such packets cannot slow forwarding or exhaust
+ * memory.
+ */
+class PuntQueue implements Runnable
+{
+	/** Handles punted packets on the worker thread */
+	interface Handler
+	{
+		/**
+		 * Called for each punted packet, in the order they were punted.
+		 * @param etherPacket the packet
+		 * @param inIface the interface on which the packet was received
+		 */
+		void handlePunted(Ethernet etherPacket, Iface inIface);
+	}
+
+	/** A punted packet */
+	private static class Punt
+	{
+		final Ethernet etherPacket;
+		final Iface inIface;
+
+		Punt(Ethernet etherPacket, Iface inIface)
+		{
+			this.etherPacket = etherPacket;
+			this.inIface = inIface;
+		}
+	}
+
+	private Handler handler;
+
+	/** Packets waiting for the worker */
+	private BlockingQueue<Punt> queue;
+
+	/** Number of packets queued */
+	private AtomicLong punted;
+
+	/** Number of packets dropped because the queue was full */
+	private AtomicLong dropped;
+
+	/** Number of packets whose handler threw an exception */
+	private AtomicLong failed;
+
+	/** Thread that handles punted packets */
+	private Thread worker;
+
+	/**
+	 * Create a punt queue and start its worker.
+	 * @param handler handles punted packets
+	 * @param capacity largest number of packets waiting
+	 */
+	PuntQueue(Handler handler, int capacity)
+	{
+		this.handler = handler;
+		this.queue = new ArrayBlockingQueue<Punt>(capacity);
+		this.punted = new AtomicLong();
+		this.dropped = new AtomicLong();
+		this.failed = new AtomicLong();
+		this.worker = new Thread(this, "slow-path");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * Queue a packet for the worker, without waiting.
+	 * @param etherPacket the packet
+	 * @param inIface the interface on which the packet was received
+	 * @return true if the packet was queued, false if it was dropped
+	 */
+	boolean punt(Ethernet etherPacket, Iface inIface)
+	{
+		if (!this.queue.offer(new Punt(etherPacket, inIface)))
+		{
+			this.dropped.incrementAndGet();
+			return false;
+		}
+		this.punted.incrementAndGet();
+		return true;
+	}
+
+	public void run()
+	{
+		while (true)
+		{
+			Punt punt;
+			try
+			{ punt = this.queue.take(); }
+			catch (InterruptedException e)
+			{ return; }
+
+			// Keep the worker alive when one packet cannot be handled
+			try
+			{ this.handler.handlePunted(punt.etherPacket, punt.inIface); }
+			catch (RuntimeException e)
+			{
+				this.failed.incrementAndGet();
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return number of packets waiting for the worker
+	 */
+	int size()
+	{ return this.queue.size(); }
+
+	/**
+	 * @return number of packets queued
+	 */
+	long getPunted()
+	{ return this.punted.get(); }
+
+	/**
+	 * @return number of packets dropped because the queue was full
+	 */
+	long getDropped()
+	{ return this.dropped.get(); }
+
+	public String toString()
+	{
+		return String.format("punted %d, dropped %d, failed %d, waiting %d",
+				this.punted.get(), this.dropped.get(), this.failed.get(),
+				this.queue.size());
+	}
+}
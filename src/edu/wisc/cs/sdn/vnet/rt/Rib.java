@@ -0,0 +1,371 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Routing information base for a router. Holds the candidate routes for
+ * each prefix from each source of routes, and compiles the best routes for
+ * each prefix into the route table used for forwarding. The routes from the
+ * source with the lowest administrative distance are best; several best
+ * routes for a prefix are used as equal-cost next hops.
+ * <p>
+ * Changes are compiled by a background thread, which waits a short window
+ * for more changes to arrive and then applies only the prefixes whose best
+ * routes changed, in a single batch. A burst of changes therefore costs
+ * lookups a few snapshot swaps rather than one per change. The route table
+ * entries for a prefix are replaced whenever the prefix's best routes
+ * change, so prefixes managed by the RIB should not be updated in the route
+ * table directly.
+ */
+public class Rib implements Runnable
+{
+	/** Source of routes to the subnets of the router's interfaces */
+	public static final int SOURCE_CONNECTED = 0;
+
+	/** Source of routes from the static route table file */
+	public static final int SOURCE_STATIC = 1;
+
+	/** Source of routes learned with RIP */
+	public static final int SOURCE_RIP = 2;
+
+	/** Administrative distance of each source */
+	private static final int[] DISTANCES = { 0, 1, 120 };
+
+	/** Time (in milliseconds) to wait for more changes before compiling */
+	public static final int WINDOW = 10;
+
+	/** Candidate routes for a prefix */
+	private static class Prefix
+	{
+		int dstIp;
+		int maskIp;
+
+		/** Candidate routes from each source, indexed by source; the lists
+		 *  are replaced rather than modified, so they can be shared */
+		List<List<RouteEntry>> routes;
+
+		/** Best routes most recently applied to the route table */
+		List<RouteEntry> installed;
+
+		/** True if the candidate routes changed since they were compiled */
+		boolean dirty;
+
+		Prefix(int dstIp, int maskIp)
+		{
+			this.dstIp = dstIp;
+			this.maskIp = maskIp;
+			this.routes = new ArrayList<List<RouteEntry>>(DISTANCES.length);
+			for (int source = 0; source < DISTANCES.length; source++)
+			{ this.routes.add(Collections.<RouteEntry>emptyList()); }
+			this.installed = Collections.<RouteEntry>emptyList();
+		}
+
+		/**
+		 * @return routes from the source with the lowest administrative
+		 *         distance that has any routes; empty if there are none
+		 */
+		List<RouteEntry> getBest()
+		{
+			List<RouteEntry> best = Collections.<RouteEntry>emptyList();
+			int bestDistance = Integer.MAX_VALUE;
+			for (int source = 0; source < DISTANCES.length; source++)
+			{
+				if (!this.routes.get(source).isEmpty()
+						&& DISTANCES[source] < bestDistance)
+				{
+					best = this.routes.get(source);
+					bestDistance = DISTANCES[source];
+				}
+			}
+			return best;
+		}
+
+		boolean isEmpty()
+		{
+			for (List<RouteEntry> sourceRoutes : this.routes)
+			{
+				if (!sourceRoutes.isEmpty())
+				{ return false; }
+			}
+			return this.installed.isEmpty();
+		}
+	}
+
+	/** A change to the best routes for a prefix */
+	private static class Change
+	{
+		int dstIp;
+		int maskIp;
+		List<RouteEntry> routes;
+
+		Change(int dstIp, int maskIp, List<RouteEntry> routes)
+		{
+			this.dstIp = dstIp;
+			this.maskIp = maskIp;
+			this.routes = routes;
+		}
+	}
+
+	/** Route table into which best routes are compiled */
+	private RouteTable routeTable;
+
+	/** Candidate routes, keyed by prefix */
+	private Map<Long,Prefix> prefixes;
+
+	/** Prefixes whose candidate routes changed since they were last
+	 *  compiled */
+	private List<Prefix> dirty;
+
+	/** Thread for compiling changes */
+	private Thread compileThread;
+
+	/**
+	 * Initializes an empty RIB for a router.
+	 * @param routeTable route table into which best routes are compiled
+	 */
+	public Rib(RouteTable routeTable)
+	{
+		this.routeTable = routeTable;
+		this.prefixes = new HashMap<Long,Prefix>();
+		this.dirty = new ArrayList<Prefix>();
+		this.compileThread = new Thread(this);
+		this.compileThread.setDaemon(true);
+		this.compileThread.start();
+	}
+
+	/**
+	 * Add a candidate route.
+	 * @param source source of the route
+	 * @param dstIp destination IP
+	 * @param gwIp gateway IP
+	 * @param maskIp subnet mask
+	 * @param iface router interface out which to send packets to reach the
+	 *        destination or gateway
+	 */
+	public void add(int source, int dstIp, int gwIp, int maskIp, Iface iface)
+	{
+		synchronized(this.prefixes)
+		{
+			Prefix prefix = this.getPrefix(dstIp, maskIp);
+			if (this.addRoute(prefix, source, gwIp, iface))
+			{ this.markDirty(prefix); }
+		}
+	}
+
+	/**
+	 * Get the candidate routes for a prefix, adding the prefix if necessary.
+	 * Must be called while holding the lock on the prefixes.
+	 */
+	private Prefix getPrefix(int dstIp, int maskIp)
+	{
+		long key = RouteTable.prefixKey(dstIp, maskIp);
+		Prefix prefix = this.prefixes.get(key);
+		if (null == prefix)
+		{
+			prefix = new Prefix(dstIp & maskIp, maskIp);
+			this.prefixes.put(key, prefix);
+		}
+		return prefix;
+	}
+
+	/**
+	 * Add a candidate route for a prefix. Must be called while holding the
+	 * lock on the prefixes.
+	 * @return true if the route was added, false if the source already had
+	 *         the route
+	 */
+	private boolean addRoute(Prefix prefix, int source, int gwIp, Iface iface)
+	{
+		List<RouteEntry> sourceRoutes = prefix.routes.get(source);
+		for (RouteEntry route : sourceRoutes)
+		{
+			if (route.getGatewayAddress() == gwIp
+					&& route.getInterface() == iface)
+			{ return false; }
+		}
+		RouteEntry route = new RouteEntry(prefix.dstIp, gwIp, prefix.maskIp,
+				iface);
+		if (sourceRoutes.isEmpty())
+		{ sourceRoutes = Collections.singletonList(route); }
+		else
+		{
+			sourceRoutes = new ArrayList<RouteEntry>(sourceRoutes);
+			sourceRoutes.add(route);
+		}
+		prefix.routes.set(source, sourceRoutes);
+		return true;
+	}
+
+	/**
+	 * Remove all candidate routes for a prefix from a source.
+	 * @param source source of the routes
+	 * @param dstIp destination IP of the prefix
+	 * @param maskIp subnet mask of the prefix
+	 * @return true if any routes were removed, otherwise false
+	 */
+	public boolean remove(int source, int dstIp, int maskIp)
+	{
+		synchronized(this.prefixes)
+		{
+			long key = RouteTable.prefixKey(dstIp, maskIp);
+			Prefix prefix = this.prefixes.get(key);
+			if (null == prefix || prefix.routes.get(source).isEmpty())
+			{ return false; }
+			prefix.routes.set(source, Collections.<RouteEntry>emptyList());
+			this.markDirty(prefix);
+		}
+		return true;
+	}
+
+	/**
+	 * Add the routes in a static route table file as candidate routes. The
+	 * routes are added as one change, so they are compiled in one batch.
+	 * @param filename name of the file containing the static route table
+	 * @param router the RIB is associated with
+	 * @return true if the file was successfully loaded, otherwise false
+	 */
+	public boolean load(String filename, Router router)
+	{
+		synchronized(this.prefixes)
+		{
+			return RouteTable.parse(filename, router, 
+					new RouteTable.EntryHandler() {
+						public void handleEntry(int dstIp, int gwIp, 
+								int maskIp, Iface iface)
+						{ add(SOURCE_STATIC, dstIp, gwIp, maskIp, iface); }
+					});
+		}
+	}
+
+	/**
+	 * Add the entries already in the route table, such as after it is
+	 * restored from a snapshot, as candidate routes that are already
+	 * compiled. Entries without a gateway for the subnet of the interface
+	 * they use are added as connected routes, and all others as static
+	 * routes; routes that were not installed are not known.
+	 */
+	public void restore()
+	{
+		synchronized(this.prefixes)
+		{
+			this.routeTable.forEachEntry(new RouteTable.EntryHandler() {
+				public void handleEntry(int dstIp, int gwIp, int maskIp,
+						Iface iface)
+				{
+					boolean connected = (0 == gwIp)
+							&& iface.getSubnetMask() == maskIp
+							&& ((iface.getIpAddress() ^ dstIp) & maskIp) == 0;
+					Prefix prefix = getPrefix(dstIp, maskIp);
+					addRoute(prefix, connected ? SOURCE_CONNECTED 
+							: SOURCE_STATIC, gwIp, iface);
+					prefix.installed = prefix.getBest();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Must be called while holding the lock on the prefixes.
+	 */
+	private void markDirty(Prefix prefix)
+	{
+		if (prefix.dirty)
+		{ return; }
+		if (this.dirty.isEmpty())
+		{ this.prefixes.notify(); }
+		prefix.dirty = true;
+		this.dirty.add(prefix);
+	}
+
+	/**
+	 * Compile all changes made so far into the route table without waiting
+	 * for the background thread.
+	 */
+	public void flush()
+	{ this.compile(); }
+
+	/**
+	 * Apply the best routes for prefixes whose candidate routes changed to
+	 * the route table, in one batch.
+	 */
+	private synchronized void compile()
+	{
+		List<Change> changes = new ArrayList<Change>();
+		synchronized(this.prefixes)
+		{
+			for (Prefix prefix : this.dirty)
+			{
+				prefix.dirty = false;
+				List<RouteEntry> best = prefix.getBest();
+				if (!sameRoutes(best, prefix.installed))
+				{
+					// The list is never modified, so it can be shared
+					prefix.installed = best;
+					changes.add(new Change(prefix.dstIp, prefix.maskIp, best));
+				}
+				if (prefix.isEmpty())
+				{
+					this.prefixes.remove(
+							RouteTable.prefixKey(prefix.dstIp, prefix.maskIp));
+				}
+			}
+			this.dirty = new ArrayList<Prefix>();
+		}
+		if (changes.isEmpty())
+		{ return; }
+
+		this.routeTable.beginBatch();
+		try
+		{
+			for (Change change : changes)
+			{
+				this.routeTable.replace(change.dstIp, change.maskIp,
+						change.routes);
+			}
+		}
+		finally
+		{ this.routeTable.endBatch(); }
+	}
+
+	private static boolean sameRoutes(List<RouteEntry> a, List<RouteEntry> b)
+	{
+		if (a.size() != b.size())
+		{ return false; }
+		for (int i = 0; i < a.size(); i++)
+		{
+			if (a.get(i).getGatewayAddress() != b.get(i).getGatewayAddress()
+					|| a.get(i).getInterface() != b.get(i).getInterface())
+			{ return false; }
+		}
+		return true;
+	}
+
+	/**
+	 * Compile changes a short window after the first of them arrives.
+	 */
+	public void run()
+	{
+		while (true)
+		{
+			try
+			{
+				synchronized(this.prefixes)
+				{
+					while (this.dirty.isEmpty())
+					{ this.prefixes.wait(); }
+				}
+				Thread.sleep(WINDOW);
+			}
+			catch (InterruptedException e)
+			{ break; }
+
+			this.compile();
+		}
+	}
+}
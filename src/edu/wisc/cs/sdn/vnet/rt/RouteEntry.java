@@ -21,6 +21,18 @@ public class RouteEntry
 	/** Router interface out which packets should be sent to reach
 	 * the destination or gateway */
 	private Iface iface;
+
+	/** Next hop shared with other entries with the same gateway and
+	 * interface; null until the entry is added to a route table */
+	private NextHop nextHop;
+
+	/** Index of the group of next hops of all entries for the entry's 
+	 * prefix; only set on the entries a route table uses for lookups */
+	private int nextHopGroup;
+
+	/** True if the entry marks a prefix with no route, inside a shorter 
+	 * prefix that has one */
+	private boolean hole;
 	
 	/**
 	 * Create a new route table entry.
@@ -37,7 +49,32 @@ public class RouteEntry
 		this.gatewayAddress = gatewayAddress;
 		this.maskAddress = maskAddress;
 		this.iface = iface;
+		this.nextHop = null;
+		this.nextHopGroup = -1;
+		this.hole = false;
 	}
+
+	/**
+	 * Create an entry that marks a prefix with no route, inside a shorter
+	 * prefix that has one. Such entries have no gateway, interface, or next
+	 * hops, and are only used by aggregated forwarding tables.
+	 * @param destinationAddress destination IP address
+	 * @param maskAddress subnet mask
+	 * @return the entry
+	 */
+	static RouteEntry hole(int destinationAddress, int maskAddress)
+	{
+		RouteEntry entry = new RouteEntry(destinationAddress, 0, 
+				maskAddress, null);
+		entry.hole = true;
+		return entry;
+	}
+
+	/**
+	 * @return true if the entry marks a prefix with no route
+	 */
+	boolean isHole()
+	{ return this.hole; }
 	
 	/**
 	 * @return destination IP address
@@ -46,13 +83,28 @@ public class RouteEntry
 	{ return this.destinationAddress; }
 	
 	/**
-	 * @return gateway IP address
+	 * @return gateway IP address; follows the shared next hop once the entry
+	 *         is added to a route table
 	 */
 	public int getGatewayAddress()
-	{ return this.gatewayAddress; }
+	{
+		NextHop nextHop = this.nextHop;
+		return (null == nextHop) ? this.gatewayAddress 
+				: nextHop.getGatewayAddress();
+	}
 
-    public void setGatewayAddress(int gatewayAddress)
-    { this.gatewayAddress = gatewayAddress; }
+	/**
+	 * Set the gateway of an entry that is not in a route table; change the 
+	 * gateway of an entry in a route table with 
+	 * {@link RouteTable#update(int, int, int, Iface)}.
+	 * @param gatewayAddress gateway IP address
+	 * @throws IllegalStateException if the entry is in a route table
+	 */
+	public void setGatewayAddress(int gatewayAddress)
+	{
+		this.checkUnlinked();
+		this.gatewayAddress = gatewayAddress;
+	}
 	
 	/**
 	 * @return subnet mask 
@@ -62,20 +114,69 @@ public class RouteEntry
 	
 	/**
 	 * @return the router interface out which packets should be sent to 
-	 *         reach the destination or gateway
+	 *         reach the destination or gateway; follows the shared next hop
+	 *         once the entry is added to a route table
 	 */
 	public Iface getInterface()
-	{ return this.iface; }
+	{
+		NextHop nextHop = this.nextHop;
+		return (null == nextHop) ? this.iface : nextHop.getInterface();
+	}
+
+	/**
+	 * Set the interface of an entry that is not in a route table; change the
+	 * interface of an entry in a route table with 
+	 * {@link RouteTable#update(int, int, int, Iface)}.
+	 * @param iface the router interface out which packets should be sent to
+	 *        reach the destination or gateway
+	 * @throws IllegalStateException if the entry is in a route table
+	 */
+	public void setInterface(Iface iface)
+	{
+		this.checkUnlinked();
+		this.iface = iface;
+	}
+
+	/**
+	 * The gateway and interface of an entry in a route table are those of 
+	 * its shared next hop, so they must be changed through the table.
+	 */
+	private void checkUnlinked()
+	{
+		if (this.nextHop != null)
+		{
+			throw new IllegalStateException(
+					"Route entry is in a route table; use RouteTable.update");
+		}
+	}
+
+	/**
+	 * @return next hop shared with other entries with the same gateway and
+	 *         interface; null if not yet assigned
+	 */
+	NextHop getNextHop()
+	{ return this.nextHop; }
+
+	void setNextHop(NextHop nextHop)
+	{ this.nextHop = nextHop; }
+
+	/**
+	 * @return index of the group of next hops of all entries for the 
+	 *         entry's prefix; -1 if not yet assigned
+	 */
+	int getNextHopGroup()
+	{ return this.nextHopGroup; }
 
-    public void setInterface(Iface iface)
-    { this.iface = iface; }
+	void setNextHopGroup(int nextHopGroup)
+	{ this.nextHopGroup = nextHopGroup; }
 	
 	public String toString()
 	{
+		Iface iface = this.getInterface();
 		return String.format("%s \t%s \t%s \t%s",
 				IPv4.fromIPv4Address(this.destinationAddress),
-				IPv4.fromIPv4Address(this.gatewayAddress),
+				IPv4.fromIPv4Address(this.getGatewayAddress()),
 				IPv4.fromIPv4Address(this.maskAddress),
-				this.iface.getName());
+				(null == iface) ? "-" : iface.getName());
 	}
 }
@@ -1,32 +1,253 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
 
 import net.floodlightcontroller.packet.IPv4;
 
 import edu.wisc.cs.sdn.vnet.Iface;
 
 /**
- * Route table for a router.
+ * Route table for a router. Lookups read an immutable snapshot of the table
+ * without locking; updates are serialized and publish a new snapshot when
+ * they complete, or when the outermost batch of updates ends.
+ * <p>
+ * A prefix may have several entries with different next hops. Lookups
+ * return the first entry for the prefix, and packets are forwarded across
+ * the next hops of all the entries for the prefix.
  * @author Aaron Gember-Jacobson
  */
 public class RouteTable
 {
-	/** Entries in the route table */
-	private List<RouteEntry> entries;
+	/** Forwarding table type that answers lookups from the trie */
+	public static final String FIB_TRIE = "trie";
+
+	/** Forwarding table type that answers lookups from a DIR-24-8 table */
+	public static final String FIB_DIR248 = "dir248";
+
+	/** Forwarding table type that answers lookups from an off-heap Poptrie */
+	public static final String FIB_POPTRIE = "poptrie";
+
+	/** Identifies a route table snapshot file */
+	private static final int SNAPSHOT_MAGIC = 0x52544231;
+
+	/** Bytes reserved for an interface name in a snapshot */
+	private static final int SNAPSHOT_NAME_SIZE = 32;
+
+	/** Entries in the route table, grouped by prefix; prefixes are in the
+	 *  order they were first added */
+	private Map<Long,List<RouteEntry>> entries;
+
+	/** Longest prefix match index over the entries; holds a copy of the 
+	 *  first entry for each prefix, with the prefix's next-hop group; only
+	 *  accessed by updates */
+	private PrefixTrie trie;
+
+	/** Most recently published snapshot of the trie; used by lookups */
+	private volatile PrefixTrie snapshot;
+
+	/** Number of batches of updates in progress */
+	private int batchDepth;
+
+	/** Distinct next hops used by the entries */
+	private NextHopTable nextHops;
+
+	/** Tracks lookups of next-hop groups, so released groups and overflow
+	 *  blocks are not reused while lookups may still read them */
+	private GracePeriod lookups;
+
+	/** Forwarding table compiled from the trie, or from the aggregated
+	 *  prefixes if aggregation is on; null if lookups for forwarding should
+	 *  use the trie or aggregated prefixes directly */
+	private volatile Fib fib;
+
+	/** Type of the forwarding table */
+	private String fibType;
+
+	/** Aggregates the prefixes in the trie for forwarding; null if 
+	 *  aggregation is off */
+	private volatile FibAggregator aggregator;
+
+	/** Entries restored from a snapshot that have not yet been added to the
+	 *  entries and trie; null if there are none */
+	private volatile ByteBuffer restoredRoutes;
+
+	/** Number of entries restored from a snapshot */
+	private int restoredSize;
+
+	/** Number of next-hop groups restored from a snapshot, which keep a
+	 *  reference until the restored entries are added */
+	private int restoredGroups;
+
+	/** True while restored entries are added, which are already in the
+	 *  forwarding table */
+	private boolean restoring;
 
 	/**
 	 * Initialize an empty route table.
 	 */
 	public RouteTable()
-	{ this.entries = new LinkedList<RouteEntry>(); }
+	{
+		this.entries = new LinkedHashMap<Long,List<RouteEntry>>();
+		this.trie = new PrefixTrie();
+		this.snapshot = this.trie.snapshot();
+		this.batchDepth = 0;
+		this.nextHops = new NextHopTable();
+		this.lookups = new GracePeriod();
+		this.fib = null;
+		this.fibType = FIB_TRIE;
+		this.aggregator = null;
+		this.restoredRoutes = null;
+		this.restoring = false;
+	}
+
+	/**
+	 * Start a batch of updates. Lookups do not see the effect of updates 
+	 * made during the batch until the outermost batch ends.
+	 */
+	public void beginBatch()
+	{
+		synchronized(this.entries)
+		{ this.batchDepth++; }
+	}
+
+	/**
+	 * End a batch of updates, publishing the updates if this is the 
+	 * outermost batch.
+	 */
+	public void endBatch()
+	{
+		synchronized(this.entries)
+		{
+			this.batchDepth--;
+			this.publish();
+		}
+	}
+
+	/**
+	 * Make updates visible to lookups, unless a batch is in progress. Must be
+	 * called while holding the lock on the entries.
+	 */
+	private void publish()
+	{
+		if (this.batchDepth > 0)
+		{ return; }
+		Fib fib = this.fib;
+		this.snapshot = this.trie.snapshot();
+		if (this.aggregator != null)
+		{ this.aggregator.publish(fib); }
+		if (fib != null)
+		{ fib.publish(); }
+
+		// Lookups that started before the publish may still read groups
+		// or overflow blocks released by the updates, so wait for them 
+		// before reusing any
+		if (this.nextHops.hasReleasedGroups() 
+				|| (fib != null && fib.hasReleased()))
+		{
+			this.lookups.await();
+			if (fib != null)
+			{ fib.reclaim(); }
+			this.nextHops.reclaim();
+		}
+	}
+
+	/**
+	 * Select the structure used to answer next-hop lookups for forwarding.
+	 * @param type {@link #FIB_TRIE}, {@link #FIB_DIR248}, or 
+	 *        {@link #FIB_POPTRIE}
+	 * @return true if the type is known, otherwise false
+	 */
+	public boolean setForwardingTable(String type)
+	{
+		if (!type.equals(FIB_TRIE) && !type.equals(FIB_DIR248)
+				&& !type.equals(FIB_POPTRIE))
+		{ return false; }
+		synchronized(this.entries)
+		{
+			// Keep a forwarding table restored from a snapshot
+			if (type.equals(this.fibType) && this.fib != null)
+			{ return true; }
+			this.materialize();
+			this.fibType = type;
+			this.fib = this.createFib(type, (null == this.aggregator) 
+					? this.trie : this.aggregator.getTrie());
+		}
+		return true;
+	}
+
+	/**
+	 * Turn aggregation of the prefixes used for forwarding on or off. When
+	 * on, forwarding tables are compiled from the smallest set of prefixes
+	 * that forwards every address the same way as the table's entries, 
+	 * which is kept up to date as the entries change. Lookups of route 
+	 * entries are unaffected.
+	 * @param aggregate true to aggregate prefixes, false to use them as is
+	 */
+	public void setAggregation(boolean aggregate)
+	{
+		synchronized(this.entries)
+		{
+			if (aggregate == (this.aggregator != null))
+			{ return; }
+			this.materialize();
+			FibAggregator aggregator = null;
+			if (aggregate)
+			{ aggregator = new FibAggregator(this.trie, this.nextHops); }
+			Fib fib = this.createFib(this.fibType, (null == aggregator) 
+					? this.trie : aggregator.getTrie());
+			this.aggregator = aggregator;
+			this.fib = fib;
+		}
+	}
+
+	/**
+	 * Build a forwarding table.
+	 * @param type {@link #FIB_TRIE}, {@link #FIB_DIR248}, or 
+	 *        {@link #FIB_POPTRIE}
+	 * @param trie prefixes the table is compiled from
+	 * @return the forwarding table; null for {@link #FIB_TRIE}
+	 */
+	private Fib createFib(String type, PrefixTrie trie)
+	{
+		Fib fib;
+		if (type.equals(FIB_DIR248))
+		{ fib = new Dir248Fib(trie); }
+		else if (type.equals(FIB_POPTRIE))
+		{ fib = new PoptrieFib(trie); }
+		else
+		{ return null; }
+		fib.publish();
+		return fib;
+	}
+
+	/**
+	 * @return description of the structure used to answer next-hop lookups
+	 */
+	public String getForwardingTableInfo()
+	{
+		synchronized(this.entries)
+		{
+			StringBuilder result = new StringBuilder();
+			if (null == this.fib)
+			{
+				result.append(String.format("Trie: %d prefixes", 
+						(null == this.aggregator) ? this.trie.size() 
+								: this.aggregator.getTrie().size()));
+			}
+			else
+			{ result.append(this.fib.toString()); }
+			if (this.aggregator != null)
+			{ result.append('\n').append(this.aggregator.toString()); }
+			return result.toString();
+		}
+	}
 
 	/**
 	 * Lookup the route entry that matches a given IP address.
@@ -35,28 +256,97 @@ public class RouteTable
 	 */
 	public RouteEntry lookup(int ip)
 	{
-		synchronized(this.entries)
+		if (this.restoredRoutes != null)
+		{
+			synchronized(this.entries)
+			{ this.materialize(); }
+		}
+		return this.snapshot.lookup(ip);
+	}
+
+	/**
+	 * Lookup the next-hop group for the route entries that match a given IP
+	 * address.
+	 * @param ip IP address
+	 * @return index of the next-hop group in the next-hop table, -1 if no 
+	 *         entry matches
+	 */
+	int lookupNextHopGroup(int ip)
+	{
+		Fib fib = this.fib;
+		if (fib != null)
+		{ return fib.lookup(ip); }
+		FibAggregator aggregator = this.aggregator;
+		if (aggregator != null)
+		{ return aggregator.lookup(ip); }
+		RouteEntry entry = this.snapshot.lookup(ip);
+		return (null == entry) ? -1 : entry.getNextHopGroup();
+	}
+
+	/**
+	 * Lookup the adjacency to which a packet should be sent, according to the
+	 * route entries that match the packet's destination.
+	 * @param ip destination IP address
+	 * @param flowHash hash of the packet's flow, which selects among 
+	 *        equal-cost next hops
+	 * @return adjacency of the gateway, or of the address itself if directly
+	 *         connected; null if no entry matches or no next hop is usable
+	 */
+	Adjacency lookupAdjacency(int ip, int flowHash)
+	{
+		int nextHop;
+		int phase = this.lookups.enter();
+		try
 		{
-			/*****************************************************************/
-			/* TODO: Find the route entry with the longest prefix match      */
+			int group = this.lookupNextHopGroup(ip);
+			if (group < 0)
+			{ return null; }
+			nextHop = this.nextHops.getGroup(group).select(flowHash);
+		}
+		finally
+		{ this.lookups.exit(phase); }
+		if (nextHop < 0)
+		{ return null; }
+		return this.nextHops.getAdjacency(nextHop, ip);
+	}
+
+	/**
+	 * @return distinct next hops used by the entries
+	 */
+	NextHopTable getNextHopTable()
+	{ return this.nextHops; }
 
+	/**
+	 * Lookup the route entry that matches a given IP address by scanning
+	 * every entry in the table. This is the reference implementation the
+	 * trie-based {@link #lookup(int)} must agree with.
+	 * @param ip IP address
+	 * @return the matching route entry, null if none exists
+	 */
+	public RouteEntry lookupLinear(int ip)
+	{
+		synchronized(this.entries)
+		{
+			this.materialize();
 			RouteEntry bestMatch = null;
-			for (RouteEntry entry : this.entries)
+			for (List<RouteEntry> prefixEntries : this.entries.values())
 			{
-				int maskedDst = ip & entry.getMaskAddress();
-				int entrySubnet = entry.getDestinationAddress()
-						& entry.getMaskAddress();
-				if (maskedDst == entrySubnet)
+				for (RouteEntry entry : prefixEntries)
 				{
-					if ((null == bestMatch)
-							|| (entry.getMaskAddress() > bestMatch.getMaskAddress()))
-					{ bestMatch = entry; }
+					int maskedDst = ip & entry.getMaskAddress();
+					int entrySubnet = entry.getDestinationAddress()
+							& entry.getMaskAddress();
+					if (maskedDst == entrySubnet)
+					{
+						if ((null == bestMatch)
+								|| (Integer.compareUnsigned(entry.getMaskAddress(),
+										bestMatch.getMaskAddress()) > 0))
+						{ bestMatch = entry; }
+					}
 				}
 			}
 
 			return bestMatch;
-
-			/*****************************************************************/
 		}
 	}
 
@@ -68,86 +358,74 @@ public class RouteTable
 	 */
 	public boolean load(String filename, Router router)
 	{
-		// Open the file
-		BufferedReader reader;
+		this.beginBatch();
 		try
 		{
-			FileReader fileReader = new FileReader(filename);
-			reader = new BufferedReader(fileReader);
-		}
-		catch (FileNotFoundException e)
-		{
-			System.err.println(e.toString());
-			return false;
+			return parse(filename, router, new EntryHandler() {
+				public void handleEntry(int dstIp, int gwIp, int maskIp,
+						Iface iface)
+				{ insert(dstIp, gwIp, maskIp, iface); }
+			});
 		}
+		finally
+		{ this.endBatch(); }
+	}
 
-		while (true)
-		{
-			// Read a route entry from the file
-			String line = null;
-			try
-			{ line = reader.readLine(); }
-			catch (IOException e)
-			{
-				System.err.println(e.toString());
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
+	/** Receives the entries read from a static route table file */
+	interface EntryHandler
+	{
+		/**
+		 * Called for each entry, in the order the entries appear in the file.
+		 * @param dstIp destination IP
+		 * @param gwIp gateway IP
+		 * @param maskIp subnet mask
+		 * @param iface router interface out which to send packets to reach
+		 *        the destination or gateway
+		 */
+		void handleEntry(int dstIp, int gwIp, int maskIp, Iface iface);
+	}
 
-			// Stop if we have reached the end of the file
-			if (null == line)
-			{ break; }
+	/**
+	 * Read the entries in a static route table file. Entries are passed on
+	 * as they are read, so entries before a malformed line may have been 
+	 * handled when an error is reported.
+	 * @param filename name of the file containing the static route table
+	 * @param router the route table is associated with
+	 * @param handler receives each entry
+	 * @return true if the file was successfully read, otherwise false
+	 */
+	static boolean parse(String filename, Router router, 
+			EntryHandler handler)
+	{
+		TableFileReader reader = TableFileReader.open(filename);
+		if (null == reader)
+		{ return false; }
 
+		while (reader.nextLine())
+		{
 			// Parse fields for route entry
-			String ipPattern = "(\\d+\\.\\d+\\.\\d+\\.\\d+)";
-			String ifacePattern = "([a-zA-Z0-9]+)";
-			Pattern pattern = Pattern.compile(String.format(
-					"%s\\s+%s\\s+%s\\s+%s",
-					ipPattern, ipPattern, ipPattern, ifacePattern));
-			Matcher matcher = pattern.matcher(line);
-			if (!matcher.matches() || matcher.groupCount() != 4)
-			{
-				System.err.println("Invalid entry in routing table file");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-
-			int dstIp = IPv4.toIPv4Address(matcher.group(1));
-			if (0 == dstIp)
-			{
-				System.err.println("Error loading route table, cannot convert "
-						+ matcher.group(1) + " to valid IP");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-
-			int gwIp = IPv4.toIPv4Address(matcher.group(2));
-
-			int maskIp = IPv4.toIPv4Address(matcher.group(3));
-			if (0 == maskIp)
-			{
-				System.err.println("Error loading route table, cannot convert "
-						+ matcher.group(3) + " to valid IP");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-
-			String ifaceName = matcher.group(4).trim();
-			Iface iface = router.getInterface(ifaceName);
+			int dstIp = reader.readIp("destination");
+			int gwIp = reader.readIp("gateway");
+			int maskIp = reader.readIp("mask");
+			if ((~maskIp & (~maskIp + 1)) != 0)
+			{ reader.failField("subnet mask is not contiguous"); }
+			String ifaceName = reader.readName("interface");
+			Iface iface = (null == ifaceName) ? null 
+					: router.getInterface(ifaceName);
 			if (null == iface)
-			{
-				System.err.println("Error loading route table, invalid interface "
-						+ matcher.group(4));
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
+			{ reader.failField("unknown interface " + ifaceName); }
+			if (!reader.endLine())
+			{ break; }
 
-			// Add an entry to the route table
-			this.insert(dstIp, gwIp, maskIp, iface);
+			handler.handleEntry(dstIp, gwIp, maskIp, iface);
 		}
 
-		// Close the file
-		try { reader.close(); } catch (IOException f) {};
+		if (reader.getError() != null)
+		{
+			System.err.println("Error loading route table: " 
+					+ reader.getError());
+			return false;
+		}
 		return true;
 	}
 
@@ -164,7 +442,33 @@ public class RouteTable
 		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface);
 		synchronized(this.entries)
 		{
-			this.entries.add(entry);
+			this.materialize();
+			entry.setNextHop(this.nextHops.intern(gwIp, iface));
+			long key = prefixKey(dstIp, maskIp);
+			List<RouteEntry> prefixEntries = this.entries.get(key);
+			if (null == prefixEntries)
+			{
+				prefixEntries = new ArrayList<RouteEntry>(1);
+				this.entries.put(key, prefixEntries);
+			}
+			prefixEntries.add(entry);
+
+			// Add the next hop to those of any existing entries for the prefix
+			RouteEntry installed = this.trie.get(dstIp, 
+					PrefixTrie.lengthOf(maskIp));
+			if (null == installed)
+			{
+				this.install(dstIp, maskIp, entry, 
+						new int[] { entry.getNextHop().getIndex() });
+			}
+			else
+			{
+				int[] members = this.nextHops.getGroup(
+						installed.getNextHopGroup()).getMembers();
+				this.install(dstIp, maskIp, installed, 
+						withMember(members, entry.getNextHop().getIndex()));
+			}
+			this.publish();
 		}
 	}
 
@@ -178,10 +482,17 @@ public class RouteTable
 	{
 		synchronized(this.entries)
 		{
+			this.materialize();
 			RouteEntry entry = this.find(dstIp, maskIp);
 			if (null == entry)
 			{ return false; }
-			this.entries.remove(entry);
+			long key = prefixKey(dstIp, maskIp);
+			List<RouteEntry> prefixEntries = this.entries.get(key);
+			prefixEntries.remove(entry);
+			if (prefixEntries.isEmpty())
+			{ this.entries.remove(key); }
+			this.reinstall(dstIp, maskIp);
+			this.publish();
 		}
 		return true;
 	}
@@ -199,15 +510,523 @@ public class RouteTable
 	{
 		synchronized(this.entries)
 		{
+			this.materialize();
 			RouteEntry entry = this.find(dstIp, maskIp);
 			if (null == entry)
 			{ return false; }
-			entry.setGatewayAddress(gwIp);
-			entry.setInterface(iface);
+
+			// Replace rather than modify the entry, since lookups may be
+			// reading it
+			RouteEntry updated = new RouteEntry(dstIp, gwIp, maskIp, iface);
+			updated.setNextHop(this.nextHops.intern(gwIp, iface));
+			List<RouteEntry> prefixEntries = 
+					this.entries.get(prefixKey(dstIp, maskIp));
+			prefixEntries.set(prefixEntries.indexOf(entry), updated);
+			this.reinstall(dstIp, maskIp);
+			this.publish();
 		}
 		return true;
 	}
 
+	/**
+	 * Replace all entries for a prefix.
+	 * @param dstIp destination IP of the prefix
+	 * @param maskIp subnet mask of the prefix
+	 * @param routes routes whose gateways and interfaces are used for the new
+	 *        entries; empty to remove all entries for the prefix
+	 */
+	public void replace(int dstIp, int maskIp, List<RouteEntry> routes)
+	{
+		synchronized(this.entries)
+		{
+			this.materialize();
+			long key = prefixKey(dstIp, maskIp);
+			if (routes.isEmpty())
+			{ this.entries.remove(key); }
+			else
+			{
+				List<RouteEntry> prefixEntries = 
+						new ArrayList<RouteEntry>(routes.size());
+				for (RouteEntry route : routes)
+				{
+					RouteEntry entry = new RouteEntry(dstIp, 
+							route.getGatewayAddress(), maskIp, 
+							route.getInterface());
+					entry.setNextHop(this.nextHops.intern(
+							route.getGatewayAddress(), route.getInterface()));
+					prefixEntries.add(entry);
+				}
+				this.entries.put(key, prefixEntries);
+			}
+			this.reinstall(dstIp, maskIp);
+			this.publish();
+		}
+	}
+
+	/**
+	 * Install the entry used for lookups for a prefix, after the entries for
+	 * the prefix changed. Must be called while holding the lock on the
+	 * entries.
+	 * @param dstIp destination IP of the prefix
+	 * @param maskIp subnet mask of the prefix
+	 */
+	private void reinstall(int dstIp, int maskIp)
+	{
+		RouteEntry first = null;
+		int[] members = new int[0];
+		List<RouteEntry> prefixEntries = 
+				this.entries.get(prefixKey(dstIp, maskIp));
+		if (prefixEntries != null)
+		{
+			for (RouteEntry entry : prefixEntries)
+			{
+				if (null == first)
+				{ first = entry; }
+				members = withMember(members, entry.getNextHop().getIndex());
+			}
+		}
+		this.install(dstIp, maskIp, first, members);
+	}
+
+	/**
+	 * Install the entry used for lookups for a prefix in the trie and the
+	 * forwarding table, unless it is unchanged. Must be called while holding
+	 * the lock on the entries.
+	 * @param dstIp destination IP of the prefix
+	 * @param maskIp subnet mask of the prefix
+	 * @param first first entry for the prefix; null if there are none
+	 * @param members next hops of all entries for the prefix, in ascending
+	 *        order
+	 */
+	private void install(int dstIp, int maskIp, RouteEntry first, 
+			int[] members)
+	{
+		int length = PrefixTrie.lengthOf(maskIp);
+		RouteEntry installed = this.trie.get(dstIp, length);
+		if (null == first)
+		{
+			if (null == installed)
+			{ return; }
+			this.trie.remove(dstIp, length);
+			this.nextHops.releaseGroup(installed.getNextHopGroup());
+		}
+		else
+		{
+			int group = this.nextHops.acquireGroup(members);
+			if (installed != null
+					&& installed.getDestinationAddress() 
+							== first.getDestinationAddress()
+					&& installed.getNextHop() == first.getNextHop()
+					&& installed.getNextHopGroup() == group)
+			{
+				this.nextHops.releaseGroup(group);
+				return;
+			}
+
+			// Lookups may be reading the installed entry, so replace it
+			RouteEntry entry = new RouteEntry(first.getDestinationAddress(),
+					first.getGatewayAddress(), maskIp, first.getInterface());
+			entry.setNextHop(first.getNextHop());
+			entry.setNextHopGroup(group);
+			if (installed != null)
+			{
+				this.trie.remove(dstIp, length);
+				this.nextHops.releaseGroup(installed.getNextHopGroup());
+			}
+			this.trie.putIfAbsent(dstIp, length, entry);
+		}
+		if (this.restoring)
+		{ return; }
+		if (this.aggregator != null)
+		{ this.aggregator.update(dstIp, maskIp); }
+		else if (this.fib != null)
+		{ this.fib.update(dstIp, maskIp); }
+	}
+
+	/**
+	 * Add a next hop to a set of next hops.
+	 * @param members next hops, in ascending order
+	 * @param nextHop next hop to add
+	 * @return the given next hops if they include the next hop, otherwise a
+	 *         new array with the next hop added, in ascending order
+	 */
+	private static int[] withMember(int[] members, int nextHop)
+	{
+		int position = Arrays.binarySearch(members, nextHop);
+		if (position >= 0)
+		{ return members; }
+		position = -position - 1;
+		int[] result = new int[members.length + 1];
+		System.arraycopy(members, 0, result, 0, position);
+		result[position] = nextHop;
+		System.arraycopy(members, position, result, position + 1,
+				members.length - position);
+		return result;
+	}
+
+	/**
+	 * @return number of packets forwarded to each next hop of the prefixes
+	 *         that have more than one next hop
+	 */
+	public String getMultipathInfo()
+	{
+		synchronized(this.entries)
+		{
+			StringBuilder result = new StringBuilder(
+					"Group\tGateway\t\tIface\tPackets\n");
+			for (int id = 0; id < this.nextHops.getGroupCount(); id++)
+			{
+				NextHopGroup group = this.nextHops.getGroup(id);
+				int[] members = group.getMembers();
+				if (members.length < 2 || !this.nextHops.isGroupInUse(id))
+				{ continue; }
+				long total = 0;
+				for (int i = 0; i < members.length; i++)
+				{ total += group.getPacketCount(i); }
+				for (int i = 0; i < members.length; i++)
+				{
+					long packets = group.getPacketCount(i);
+					NextHop nextHop = this.nextHops.get(members[i]);
+					result.append(String.format(
+							"%d \t%s \t%s \t%d (%.1f%%)\n", id,
+							IPv4.fromIPv4Address(nextHop.getGatewayAddress()),
+							nextHop.getInterface().getName(), packets,
+							(0 == total) ? 0.0 : (100.0 * packets / total)));
+				}
+			}
+			return result.toString();
+		}
+	}
+
+	/**
+	 * Send packets for every entry that uses a gateway and interface to a
+	 * different gateway and interface. Entries share next hops, so this takes
+	 * effect at once for all of the entries, however many there are, and 
+	 * without waiting for a batch of updates to end.
+	 * @param gwIp gateway IP of the entries to change
+	 * @param iface router interface of the entries to change
+	 * @param newGwIp new gateway IP address
+	 * @param newIface new router interface
+	 * @return true if some entry used the gateway and interface, otherwise 
+	 *         false
+	 */
+	public boolean repoint(int gwIp, Iface iface, int newGwIp, Iface newIface)
+	{
+		synchronized(this.entries)
+		{
+			NextHop nextHop = this.nextHops.find(gwIp, iface);
+			if (null == nextHop)
+			{ return false; }
+			this.nextHops.repoint(nextHop, newGwIp, newIface);
+		}
+		return true;
+	}
+
+	/**
+	 * Mark a router interface as up or down. Packets are not forwarded out
+	 * an interface that is down; prefixes with other equal-cost next hops 
+	 * fail over to them at once, and other prefixes are treated as having
+	 * no route until the interface comes back up.
+	 * @param iface router interface
+	 * @param up true if the interface is up, false if down
+	 */
+	public void setInterfaceUp(Iface iface, boolean up)
+	{
+		synchronized(this.entries)
+		{ this.nextHops.setInterfaceUp(iface, up); }
+	}
+
+	/**
+	 * Pass every entry in the route table to a handler, in the order the
+	 * entries were added.
+	 * @param handler receives each entry
+	 */
+	void forEachEntry(EntryHandler handler)
+	{
+		synchronized(this.entries)
+		{
+			this.materialize();
+			for (List<RouteEntry> prefixEntries : this.entries.values())
+			{
+				for (RouteEntry entry : prefixEntries)
+				{
+					handler.handleEntry(entry.getDestinationAddress(),
+							entry.getGatewayAddress(), entry.getMaskAddress(),
+							entry.getInterface());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the route table to a snapshot file that {@link 
+	 * #readSnapshot(String, String, Router)} can restore without parsing or
+	 * building the forwarding table. The snapshot holds the router's 
+	 * interfaces, the distinct next hops and next-hop groups, the entries,
+	 * and a Poptrie forwarding table in the form used for lookups.
+	 * @param filename name of the snapshot file
+	 * @param textFilename name of the static route table file the table was
+	 *        loaded from, which the snapshot must be newer than to be used
+	 * @param router the route table is associated with
+	 * @return true if the snapshot was written, otherwise false
+	 */
+	public boolean writeSnapshot(String filename, String textFilename,
+			Router router)
+	{
+		synchronized(this.entries)
+		{
+			this.materialize();
+			Iface[] ifaces = router.getInterfaces().values().toArray(
+					new Iface[0]);
+			Map<Iface,Integer> ifaceIndexes = new HashMap<Iface,Integer>();
+			for (int i = 0; i < ifaces.length; i++)
+			{ ifaceIndexes.put(ifaces[i], i); }
+
+			// Number the distinct next hops in the order entries use them;
+			// repointing may have left several indices with the same next hop
+			Map<Long,Integer> nextHopIndexes = new HashMap<Long,Integer>();
+			List<Long> nextHopKeys = new ArrayList<Long>();
+			int[] nextHopMap = new int[this.nextHops.size()];
+			Arrays.fill(nextHopMap, -1);
+			int routeCount = 0;
+			for (List<RouteEntry> prefixEntries : this.entries.values())
+			{
+				for (RouteEntry entry : prefixEntries)
+				{
+					NextHop nextHop = entry.getNextHop();
+					if (nextHopMap[nextHop.getIndex()] >= 0)
+					{ continue; }
+					Integer iface = ifaceIndexes.get(nextHop.getInterface());
+					if (null == iface)
+					{
+						System.err.println("Route table uses interface "
+								+ nextHop.getInterface().getName()
+								+ " that is not on the router");
+						return false;
+					}
+					long key = ((long)nextHop.getGatewayAddress() << 32) | iface;
+					Integer index = nextHopIndexes.get(key);
+					if (null == index)
+					{
+						index = nextHopKeys.size();
+						nextHopIndexes.put(key, index);
+						nextHopKeys.add(key);
+					}
+					nextHopMap[nextHop.getIndex()] = index;
+				}
+				routeCount += prefixEntries.size();
+			}
+
+			// Number the distinct groups the installed entries use
+			List<RouteEntry> installed = new ArrayList<RouteEntry>(
+					this.trie.size());
+			this.trie.collect(installed);
+			Map<List<Integer>,Integer> groupIndexes = 
+					new HashMap<List<Integer>,Integer>();
+			List<int[]> groups = new ArrayList<int[]>();
+			int[] groupMap = new int[this.nextHops.getGroupCount()];
+			Arrays.fill(groupMap, -1);
+			int memberCount = 0;
+			for (RouteEntry entry : installed)
+			{
+				int group = entry.getNextHopGroup();
+				if (groupMap[group] >= 0)
+				{ continue; }
+				int[] members = this.nextHops.getGroup(group).getMembers();
+				int[] mapped = new int[members.length];
+				for (int i = 0; i < members.length; i++)
+				{ mapped[i] = nextHopMap[members[i]]; }
+				Arrays.sort(mapped);
+				List<Integer> key = new ArrayList<Integer>(mapped.length);
+				for (int member : mapped)
+				{
+					if (key.isEmpty() || key.get(key.size() - 1) != member)
+					{ key.add(member); }
+				}
+				Integer index = groupIndexes.get(key);
+				if (null == index)
+				{
+					index = groups.size();
+					groupIndexes.put(key, index);
+					int[] distinct = new int[key.size()];
+					for (int i = 0; i < distinct.length; i++)
+					{ distinct[i] = key.get(i); }
+					groups.add(distinct);
+					memberCount += distinct.length;
+				}
+				groupMap[group] = index;
+			}
+
+			PoptrieFib fib = new PoptrieFib(this.trie);
+			ByteBuffer body = SnapshotFile.allocate(16 
+					+ (8 + SNAPSHOT_NAME_SIZE) * ifaces.length
+					+ 8 * nextHopKeys.size()
+					+ SnapshotFile.aligned(4 * (groups.size() + memberCount))
+					+ SnapshotFile.aligned(12 * routeCount) 
+					+ fib.getImageSize());
+			body.putInt(ifaces.length);
+			body.putInt(nextHopKeys.size());
+			body.putInt(groups.size());
+			body.putInt(routeCount);
+			for (Iface iface : ifaces)
+			{
+				body.putInt(iface.getIpAddress());
+				body.putInt(iface.getSubnetMask());
+				byte[] name = Arrays.copyOf(iface.getName().getBytes(
+						StandardCharsets.US_ASCII), SNAPSHOT_NAME_SIZE);
+				body.put(name);
+			}
+			for (long key : nextHopKeys)
+			{ body.putLong(key); }
+			for (int[] members : groups)
+			{
+				body.putInt(members.length);
+				for (int member : members)
+				{ body.putInt(member); }
+			}
+			SnapshotFile.align(body);
+			for (List<RouteEntry> prefixEntries : this.entries.values())
+			{
+				for (RouteEntry entry : prefixEntries)
+				{
+					body.putInt(entry.getDestinationAddress());
+					body.putInt(entry.getMaskAddress());
+					body.putInt(nextHopMap[entry.getNextHop().getIndex()]);
+				}
+			}
+			SnapshotFile.align(body);
+			fib.writeImage(body, groupMap);
+			return SnapshotFile.write(filename, SNAPSHOT_MAGIC, body,
+					textFilename);
+		}
+	}
+
+	/**
+	 * Restore an empty route table from a snapshot file written by {@link
+	 * #writeSnapshot(String, String, Router)}. The forwarding table is used
+	 * directly from the mapped file, so packets can be forwarded at once;
+	 * the entries themselves are added when first needed, such as by an 
+	 * update or a lookup of a route entry. The forwarding table is a
+	 * Poptrie afterwards.
+	 * @param filename name of the snapshot file
+	 * @param textFilename name of the static route table file the snapshot
+	 *        must be newer than; null to use the snapshot regardless
+	 * @param router the route table is associated with, whose interfaces
+	 *        must match those in the snapshot
+	 * @return true if the table was restored, otherwise false
+	 */
+	public boolean readSnapshot(String filename, String textFilename,
+			Router router)
+	{
+		ByteBuffer body = SnapshotFile.read(filename, SNAPSHOT_MAGIC,
+				textFilename);
+		if (null == body)
+		{ return false; }
+
+		synchronized(this.entries)
+		{
+			if (!this.entries.isEmpty() || this.restoredRoutes != null
+					|| this.nextHops.size() > 0)
+			{
+				System.err.println("Route table must be empty to restore it");
+				return false;
+			}
+
+			int ifaceCount = body.getInt();
+			int nextHopCount = body.getInt();
+			int groupCount = body.getInt();
+			int routeCount = body.getInt();
+			Iface[] ifaces = new Iface[ifaceCount];
+			boolean matches = (ifaceCount == router.getInterfaces().size());
+			for (int i = 0; i < ifaceCount; i++)
+			{
+				int ip = body.getInt();
+				int mask = body.getInt();
+				byte[] name = new byte[SNAPSHOT_NAME_SIZE];
+				body.get(name);
+				int length = 0;
+				while (length < name.length && name[length] != 0)
+				{ length++; }
+				ifaces[i] = router.getInterface(
+						new String(name, 0, length, StandardCharsets.US_ASCII));
+				if (null == ifaces[i] || ifaces[i].getIpAddress() != ip
+						|| ifaces[i].getSubnetMask() != mask)
+				{ matches = false; }
+			}
+			if (!matches)
+			{
+				System.err.println("Snapshot " + filename 
+						+ " does not match the router's interfaces");
+				return false;
+			}
+
+			// The table is empty, so next hops and groups are numbered in
+			// the order they were written, as the forwarding table expects
+			for (int i = 0; i < nextHopCount; i++)
+			{
+				long key = body.getLong();
+				this.nextHops.intern((int)(key >>> 32), ifaces[(int)key]);
+			}
+			for (int i = 0; i < groupCount; i++)
+			{
+				int[] members = new int[body.getInt()];
+				for (int j = 0; j < members.length; j++)
+				{ members[j] = body.getInt(); }
+				this.nextHops.acquireGroup(members);
+			}
+			body.position(SnapshotFile.aligned(body.position()));
+
+			ByteBuffer routes = body.slice().order(body.order());
+			routes.limit(12 * routeCount);
+			body.position(body.position() 
+					+ SnapshotFile.aligned(12 * routeCount));
+			this.fib = new PoptrieFib(this.trie, body);
+			this.fibType = FIB_POPTRIE;
+			this.restoredSize = routeCount;
+			this.restoredGroups = groupCount;
+			this.restoredRoutes = routes;
+			this.publish();
+		}
+		return true;
+	}
+
+	/**
+	 * Add the entries restored from a snapshot to the entries and trie, if
+	 * they have not been added yet. Must be called while holding the lock on
+	 * the entries.
+	 */
+	private void materialize()
+	{
+		ByteBuffer routes = this.restoredRoutes;
+		if (null == routes || this.restoring)
+		{ return; }
+
+		this.restoring = true;
+		this.batchDepth++;
+		try
+		{
+			while (routes.hasRemaining())
+			{
+				int dstIp = routes.getInt();
+				int maskIp = routes.getInt();
+				NextHop nextHop = this.nextHops.get(routes.getInt());
+				this.insert(dstIp, nextHop.getGatewayAddress(), maskIp,
+						nextHop.getInterface());
+			}
+		}
+		finally
+		{
+			this.batchDepth--;
+			this.restoring = false;
+		}
+
+		// The entries now hold their own references to the groups
+		for (int group = 0; group < this.restoredGroups; group++)
+		{ this.nextHops.releaseGroup(group); }
+		this.restoredRoutes = null;
+		this.publish();
+	}
+
 	/**
 	 * Find an entry in the route table.
 	 * @param dstIP destination IP of the entry to find
@@ -218,7 +1037,11 @@ public class RouteTable
 	{
 		synchronized(this.entries)
 		{
-			for (RouteEntry entry : this.entries)
+			List<RouteEntry> prefixEntries = 
+					this.entries.get(prefixKey(dstIp, maskIp));
+			if (null == prefixEntries)
+			{ return null; }
+			for (RouteEntry entry : prefixEntries)
 			{
 				if ((entry.getDestinationAddress() == dstIp)
 						&& (entry.getMaskAddress() == maskIp))
@@ -228,17 +1051,54 @@ public class RouteTable
 		return null;
 	}
 
+	/**
+	 * @return number of entries in the route table
+	 */
+	public int size()
+	{
+		synchronized(this.entries)
+		{
+			if (this.restoredRoutes != null)
+			{ return this.restoredSize; }
+			int size = 0;
+			for (List<RouteEntry> prefixEntries : this.entries.values())
+			{ size += prefixEntries.size(); }
+			return size;
+		}
+	}
+
+	/**
+	 * @return key under which the entries for a prefix are stored
+	 */
+	static long prefixKey(int dstIp, int maskIp)
+	{
+		// Multiplying by an odd constant keeps keys distinct, and carries
+		// the prefix bits into the upper half that a hash table folds into
+		// its bucket index; otherwise prefixes of the same length crowd into
+		// a small fraction of the buckets
+		return (((long)maskIp << 32) | ((dstIp & maskIp) & 0xffffffffL))
+				* 0x9e3779b97f4a7c15L;
+	}
+
 	public String toString()
 	{
 		synchronized(this.entries)
 		{
+			this.materialize();
 			if (0 == this.entries.size())
 			{ return " WARNING: route table empty"; }
 
-			String result = "Destination\tGateway\t\tMask\t\tIface\n";
-			for (RouteEntry entry : entries)
-			{ result += entry.toString()+"\n"; }
-			return result;
+			StringBuilder result = new StringBuilder(
+					"Destination\tGateway\t\tMask\t\tIface\n");
+			for (List<RouteEntry> prefixEntries : this.entries.values())
+			{
+				for (RouteEntry entry : prefixEntries)
+				{
+					if (!entry.isHole())
+					{ result.append(entry.toString()).append('\n'); }
+				}
+			}
+			return result.toString();
 		}
 	}
 }
\ No newline at end of file
@@ -3,25 +3,93 @@ package edu.wisc.cs.sdn.vnet.rt;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.TimerWheel;
+import edu.wisc.cs.sdn.vnet.Trace;
+import edu.wisc.cs.sdn.vnet.vns.VNSComm;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Checksum;
 import net.floodlightcontroller.packet.IPacket;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.MACAddress;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.Data;
 import net.floodlightcontroller.packet.ICMP;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
 
 /**
  * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
  */
 public class Router extends Device
 {
+	/** Largest table printed in full when it is loaded; larger tables are
+	 *  only summarized */
+	private static final int MAX_PRINTED_ENTRIES = 64;
+
+	/** Time (in milliseconds) to wait for neighbors to be resolved when
+	 *  warming the ARP cache */
+	public static final int ARP_WARM_TIMEOUT = 3000;
+
+	/** Length of an Ethernet header without a VLAN tag */
+	private static final int ETHER_HEADER_LENGTH = 14;
+
+	/** Length of an IPv4 header without options */
+	private static final int IP_HEADER_LENGTH = 20;
+
+	/** Length of an IPv4 header with the most options */
+	private static final int MAX_IP_HEADER_LENGTH = 60;
+
+	/** Length of an ICMP error or echo header */
+	private static final int ICMP_HEADER_LENGTH = 8;
+
+	/** ICMP types of echo requests and replies */
+	private static final byte ICMP_ECHO_REQUEST = 8;
+	private static final byte ICMP_ECHO_REPLY = 0;
+
+	/** TTL of echo replies, as in other packets the router sends */
+	private static final byte ECHO_REPLY_TTL = 64;
+
+	/** Largest number of packets waiting for the slow path */
+	public static final int PUNT_QUEUE_CAPACITY = 1024;
+
+	/** Destination MAC address of broadcast ARP requests */
+	private static final byte[] BROADCAST_MAC = { (byte)0xff, (byte)0xff,
+			(byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff };
+
 	/** Routing table for the router */
 	private RouteTable routeTable;
 
+	/** Candidate routes from which the routing table is compiled */
+	private Rib rib;
+
+	/** True if routes to the subnets of the interfaces are added when the 
+	 *  routing table is loaded */
+	private boolean connectedRoutes;
+
 	/** ARP cache for the router */
 	private ArpCache arpCache;
 
+	/** Resolves neighbors that are not in the ARP cache */
+	private ArpResolver arpResolver;
+
+	/** Handles packets that need more than forwarding */
+	private PuntQueue puntQueue;
+
+	/** Limits the rate of ICMP errors */
+	private volatile IcmpRateLimiter icmpRateLimiter;
+
+	/** Frame in which ICMP errors are built; reused, under its lock */
+	private byte[] icmpFrame;
+
 	/**
 	 * Creates a router for a specific host.
 	 * @param host hostname for the router
@@ -30,7 +98,24 @@ public class Router extends Device
 	{
 		super(host,logfile);
 		this.routeTable = new RouteTable();
+		this.rib = new Rib(this.routeTable);
+		this.connectedRoutes = false;
 		this.arpCache = new ArpCache();
+		this.routeTable.getNextHopTable().setArpCache(this.arpCache);
+		this.arpResolver = new ArpResolver(this, this.arpCache);
+		this.arpCache.setProber(new ArpCache.Prober() {
+			public void probe(int ip, MACAddress mac)
+			{ sendArpProbe(ip, mac); }
+		});
+		this.puntQueue = new PuntQueue(new PuntQueue.Handler() {
+			public void handlePunted(Ethernet etherPacket, Iface inIface)
+			{ handleSlowPath(etherPacket, inIface); }
+		}, PUNT_QUEUE_CAPACITY);
+		this.icmpRateLimiter = new IcmpRateLimiter(
+				IcmpRateLimiter.DEFAULT_RATE, IcmpRateLimiter.DEFAULT_BURST,
+				IcmpRateLimiter.DEFAULT_SOURCE_RATE, 
+				IcmpRateLimiter.DEFAULT_SOURCE_BURST);
+		this.icmpFrame = createIcmpFrame();
 	}
 
 	/**
@@ -40,22 +125,139 @@ public class Router extends Device
 	{ return this.routeTable; }
 
 	/**
-	 * Load a new routing table from a file.
+	 * @return candidate routes from which the routing table is compiled
+	 */
+	public Rib getRib()
+	{ return this.rib; }
+
+	/**
+	 * Add a connected route to the subnet of each interface when the routing
+	 * table is loaded from a file. Connected routes have administrative 
+	 * distance 0, so they replace the file's routes for the same prefixes.
+	 * @param connectedRoutes true to add connected routes
+	 */
+	public void setConnectedRoutes(boolean connectedRoutes)
+	{ this.connectedRoutes = connectedRoutes; }
+
+	/**
+	 * Load a new routing table from a file, along with routes to the subnets
+	 * of the router's interfaces if connected routes are enabled.
 	 * @param routeTableFile the name of the file containing the routing table
 	 */
 	public void loadRouteTable(String routeTableFile)
+	{ this.loadRouteTable(routeTableFile, null); }
+
+	/**
+	 * Restore the routing table from a snapshot if the snapshot is valid and
+	 * up to date, otherwise load it from a file and write a new snapshot.
+	 * A restored table forwards packets at once; its entries are added to
+	 * the RIB in the background.
+	 * @param routeTableFile the name of the file containing the routing
+	 *        table; null to require a valid snapshot
+	 * @param snapshotFile the name of the snapshot file; null to always load
+	 *        the routing table from its file
+	 */
+	public void loadRouteTable(String routeTableFile, String snapshotFile)
 	{
-		if (!routeTable.load(routeTableFile, this))
+		long start = System.nanoTime();
+		if (snapshotFile != null 
+				&& this.routeTable.readSnapshot(snapshotFile, routeTableFile,
+						this))
+		{
+			System.out.println(String.format(
+					"Restored route table snapshot: %d entries in %d ms",
+					this.routeTable.size(),
+					(System.nanoTime() - start) / 1000000));
+			System.out.println(this.routeTable.getForwardingTableInfo());
+			Thread restoreThread = new Thread(new Runnable() {
+				public void run()
+				{ rib.restore(); }
+			});
+			restoreThread.setDaemon(true);
+			restoreThread.start();
+			return;
+		}
+		if (null == routeTableFile)
+		{
+			System.err.println("Error restoring routing table from snapshot "
+					+ snapshotFile);
+			System.exit(1);
+		}
+
+		// Connected routes win over the file's routes for the same prefixes
+		for (Iface iface : this.interfaces.values())
+		{
+			if (this.connectedRoutes && iface.getSubnetMask() != 0)
+			{
+				this.rib.add(Rib.SOURCE_CONNECTED, iface.getIpAddress(), 0,
+						iface.getSubnetMask(), iface);
+			}
+		}
+
+		if (!rib.load(routeTableFile, this))
 		{
 			System.err.println("Error setting up routing table from file "
 					+ routeTableFile);
 			System.exit(1);
 		}
+		this.rib.flush();
+
+		int size = this.routeTable.size();
+		System.out.println(String.format(
+				"Loaded static route table: %d entries in %d ms", size,
+				(System.nanoTime() - start) / 1000000));
+		if (size <= MAX_PRINTED_ENTRIES)
+		{
+			System.out.println("-------------------------------------------------");
+			System.out.print(this.routeTable.toString());
+			System.out.println("-------------------------------------------------");
+		}
+
+		if (snapshotFile != null
+				&& this.routeTable.writeSnapshot(snapshotFile, routeTableFile,
+						this))
+		{ System.out.println("Wrote route table snapshot " + snapshotFile); }
+	}
+
+	/**
+	 * Limit the rate at which ICMP errors are sent, in total and to each
+	 * host. Each limit allows a burst as large as one second's worth of
+	 * errors.
+	 * @param rate errors sent per second, in total
+	 * @param sourceRate errors sent to a host per second
+	 */
+	public void setIcmpRateLimit(int rate, int sourceRate)
+	{
+		this.icmpRateLimiter = new IcmpRateLimiter(rate, rate, sourceRate,
+				sourceRate);
+	}
+
+	/**
+	 * Select the structure used to look up next hops when forwarding.
+	 * @param type name of the forwarding table type
+	 */
+	public void setForwardingTable(String type)
+	{
+		if (!routeTable.setForwardingTable(type))
+		{
+			System.err.println("Unknown forwarding table type " + type);
+			System.exit(1);
+		}
 
-		System.out.println("Loaded static route table");
-		System.out.println("-------------------------------------------------");
-		System.out.print(this.routeTable.toString());
-		System.out.println("-------------------------------------------------");
+		System.out.println("Built forwarding table");
+		System.out.println(this.routeTable.getForwardingTableInfo());
+	}
+
+	/**
+	 * Forward using the smallest set of prefixes equivalent to the route
+	 * table, kept up to date as routes change.
+	 */
+	public void aggregateForwardingTable()
+	{
+		this.routeTable.setAggregation(true);
+
+		System.out.println("Aggregated forwarding table");
+		System.out.println(this.routeTable.getForwardingTableInfo());
 	}
 
 	/**
@@ -63,7 +265,35 @@ public class Router extends Device
 	 * @param arpCacheFile the name of the file containing the ARP cache
 	 */
 	public void loadArpCache(String arpCacheFile)
+	{ this.loadArpCache(arpCacheFile, null); }
+
+	/**
+	 * Restore the ARP cache from a snapshot if the snapshot is valid and up
+	 * to date, otherwise load it from a file and write a new snapshot.
+	 * @param arpCacheFile the name of the file containing the ARP cache; null
+	 *        to require a valid snapshot
+	 * @param snapshotFile the name of the snapshot file; null to always load
+	 *        the ARP cache from its file
+	 */
+	public void loadArpCache(String arpCacheFile, String snapshotFile)
 	{
+		long start = System.nanoTime();
+		if (snapshotFile != null 
+				&& this.arpCache.readSnapshot(snapshotFile, arpCacheFile))
+		{
+			System.out.println(String.format(
+					"Restored ARP cache snapshot: %d entries in %d ms",
+					this.arpCache.size(),
+					(System.nanoTime() - start) / 1000000));
+			return;
+		}
+		if (null == arpCacheFile)
+		{
+			System.err.println("Error restoring ARP cache from snapshot "
+					+ snapshotFile);
+			System.exit(1);
+		}
+
 		if (!arpCache.load(arpCacheFile))
 		{
 			System.err.println("Error setting up ARP cache from file "
@@ -71,34 +301,418 @@ public class Router extends Device
 			System.exit(1);
 		}
 
-		System.out.println("Loaded static ARP cache");
-		System.out.println("----------------------------------");
-		System.out.print(this.arpCache.toString());
-		System.out.println("----------------------------------");
+		int size = this.arpCache.size();
+		System.out.println(String.format(
+				"Loaded static ARP cache: %d entries in %d ms", size,
+				(System.nanoTime() - start) / 1000000));
+		if (size <= MAX_PRINTED_ENTRIES)
+		{
+			System.out.println("----------------------------------");
+			System.out.print(this.arpCache.toString());
+			System.out.println("----------------------------------");
+		}
+
+		if (snapshotFile != null
+				&& this.arpCache.writeSnapshot(snapshotFile, arpCacheFile))
+		{ System.out.println("Wrote ARP cache snapshot " + snapshotFile); }
+	}
+
+	/**
+	 * Announce the router's addresses with gratuitous ARP, and resolve the
+	 * gateways in the route table and the hosts it routes to directly, so
+	 * the first packets to them do not wait for ARP. Requests are sent in
+	 * parallel, subject to the ARP resolver's rate limit; neighbors beyond
+	 * the resolver's limit on outstanding resolutions are resolved as 
+	 * earlier resolutions finish. Packets must be
+	 * received while this runs, so the replies are processed.
+	 * @param timeout longest time (in milliseconds) to wait for replies
+	 */
+	public void warmArpCache(int timeout)
+	{
+		long start = System.currentTimeMillis();
+		for (Iface iface : this.interfaces.values())
+		{ this.sendGratuitousArp(iface); }
+
+		// Distinct neighbors, keyed by IP address and interface index
+		final Map<Long,Iface> neighbors = new HashMap<Long,Iface>();
+		this.routeTable.forEachEntry(new RouteTable.EntryHandler() {
+			public void handleEntry(int dstIp, int gwIp, int maskIp,
+					Iface iface)
+			{
+				int ip = (gwIp != 0) ? gwIp : dstIp;
+				if (gwIp != 0 || 0xffffffff == maskIp)
+				{ neighbors.put(((long)ip << 32) | iface.getIndex(), iface); }
+			}
+		});
+		List<Map.Entry<Long,Iface>> waiting = 
+				new ArrayList<Map.Entry<Long,Iface>>(neighbors.entrySet());
+
+		int resolved = 0;
+		while (true)
+		{
+			// Start resolving the neighbors the resolver has room for
+			Iterator<Map.Entry<Long,Iface>> iterator = waiting.iterator();
+			while (iterator.hasNext())
+			{
+				Map.Entry<Long,Iface> neighbor = iterator.next();
+				if (this.arpResolver.resolve((int)(neighbor.getKey() >>> 32),
+						neighbor.getValue()))
+				{ iterator.remove(); }
+			}
+
+			resolved = 0;
+			for (long neighbor : neighbors.keySet())
+			{
+				if (this.arpCache.lookupMac((int)(neighbor >>> 32))
+						!= ArpCache.NO_MAC)
+				{ resolved++; }
+			}
+			long remaining = start + timeout - System.currentTimeMillis();
+			if (resolved == neighbors.size() || remaining <= 0)
+			{ break; }
+			try
+			{ Thread.sleep(Math.min(remaining, TimerWheel.TICK)); }
+			catch (InterruptedException e)
+			{ break; }
+		}
+		System.out.println(String.format(
+				"Warmed ARP cache: resolved %d of %d neighbors in %d ms",
+				resolved, neighbors.size(), 
+				System.currentTimeMillis() - start));
+		if (!waiting.isEmpty())
+		{
+			System.out.println(String.format(
+					"Did not warm %d neighbors: too many were being resolved",
+					waiting.size()));
+		}
+	}
+
+	/**
+	 * Forward an IPv4 packet by rewriting the received frame in place,
+	 * without parsing it into packet objects or allocating. Only the common
+	 * case is handled: an IPv4 packet without options, with a valid checksum
+	 * and a TTL above 1, not addressed to the router, whose next hop is
+	 * resolved. Echo requests to the router are answered in place. All other
+	 * frames, and frames that are traced, are left unmodified for
+	 * {@link #handlePacket(Ethernet, Iface)}.
+	 * @param frame buffer holding the frame
+	 * @param offset position of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the packet was forwarded, false if it should be parsed
+	 */
+	public boolean handleFrame(byte[] frame, int offset, int length,
+			Iface inIface)
+	{
+		int ip = offset + ETHER_HEADER_LENGTH;
+		if (length < ETHER_HEADER_LENGTH + IP_HEADER_LENGTH
+				|| this.trace.isEnabled(Trace.PACKET, inIface)
+				|| getShort(frame, offset + 12) != Ethernet.TYPE_IPv4
+				|| frame[ip] != 0x45)
+		{ return false; }
+		int totalLength = getShort(frame, ip + 2);
+		if (totalLength < IP_HEADER_LENGTH 
+				|| totalLength > length - ETHER_HEADER_LENGTH)
+		{ return false; }
+
+		if (!Checksum.verify(frame, ip, IP_HEADER_LENGTH))
+		{ return false; }
+
+		int ttl = frame[ip + 8] & 0xff;
+		if (ttl <= 1)
+		{ return false; }
+
+		// Answer echo requests to the router in place, and leave other
+		// packets for the router to the slow path
+		int dstIp = getInt(frame, ip + 16);
+		Iface iface;
+		for (int index = 0; (iface = this.getInterface(index)) != null; 
+				index++)
+		{
+			if (dstIp == iface.getIpAddress())
+			{ return this.handleEchoFrame(frame, offset, length, inIface); }
+		}
+
+		// Only use ports if the packet is not a fragment, as getFlowHash does
+		int protocol = frame[ip + 9] & 0xff;
+		int srcPort = 0;
+		int dstPort = 0;
+		boolean fragment = (getShort(frame, ip + 6) & 0x3fff) != 0;
+		if (!fragment && (IPv4.PROTOCOL_TCP == protocol 
+					|| IPv4.PROTOCOL_UDP == protocol)
+				&& totalLength >= IP_HEADER_LENGTH + 4)
+		{
+			srcPort = getShort(frame, ip + IP_HEADER_LENGTH);
+			dstPort = getShort(frame, ip + IP_HEADER_LENGTH + 2);
+		}
+		Adjacency adjacency = this.routeTable.lookupAdjacency(dstIp,
+				NextHopGroup.flowHash(getInt(frame, ip + 12), dstIp, protocol,
+						srcPort, dstPort));
+		if (null == adjacency || adjacency.getInterface() == inIface)
+		{ return false; }
+		Adjacency.Rewrite rewrite = adjacency.getRewrite();
+		if (null == rewrite)
+		{ return false; }
+
+		// Decrement TTL, update the checksum for the changed word, and 
+		// rewrite the MAC addresses
+		short oldWord = (short)getShort(frame, ip + 8);
+		frame[ip + 8] = (byte)(ttl - 1);
+		putShort(frame, ip + 10, Checksum.update(
+				(short)getShort(frame, ip + 10), oldWord,
+				(short)getShort(frame, ip + 8)));
+		System.arraycopy(rewrite.getHeader(), 0, frame, offset,
+				2 * MACAddress.MAC_ADDRESS_LENGTH);
+		this.arpCache.touch(rewrite.getArpEntry());
+		this.sendFrame(frame, offset, length, adjacency.getInterface());
+		return true;
 	}
 
 	/**
-	 * Handle an Ethernet packet received on a specific interface.
+	 * Answer an ICMP echo request to the router by turning the received
+	 * frame into the reply in place: the MAC and IP addresses are swapped,
+	 * the type becomes echo reply, the TTL is reset, and both checksums are
+	 * updated for just the changed words. A sender on the subnet of the
+	 * interface the request arrived on is answered directly, with no
+	 * lookups; any other sender is answered through its next hop, if the
+	 * next hop is resolved. The frame must hold an IPv4 packet without
+	 * options, with a valid checksum, addressed to the router.
+	 * @param frame buffer holding the frame
+	 * @param offset position of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the reply was sent, false if the frame should be 
+	 *         parsed
+	 */
+	private boolean handleEchoFrame(byte[] frame, int offset, int length,
+			Iface inIface)
+	{
+		int ip = offset + ETHER_HEADER_LENGTH;
+		int icmp = ip + IP_HEADER_LENGTH;
+		if ((frame[ip + 9] & 0xff) != IPv4.PROTOCOL_ICMP
+				|| getShort(frame, ip + 2) 
+					< IP_HEADER_LENGTH + ICMP_HEADER_LENGTH
+				|| (getShort(frame, ip + 6) & 0x3fff) != 0
+				|| frame[icmp] != ICMP_ECHO_REQUEST || frame[icmp + 1] != 0)
+		{ return false; }
+
+		// Reply to the neighbor the request came from if the sender is that
+		// neighbor, otherwise to the next hop towards the sender
+		int srcIp = getInt(frame, ip + 12);
+		Iface outIface = inIface;
+		Adjacency.Rewrite rewrite = null;
+		if (((srcIp ^ inIface.getIpAddress()) & inIface.getSubnetMask()) != 0)
+		{
+			Adjacency adjacency = this.routeTable.lookupAdjacency(srcIp,
+					NextHopGroup.flowHash(0, srcIp, 0, 0, 0));
+			if (null == adjacency)
+			{ return false; }
+			rewrite = adjacency.getRewrite();
+			if (null == rewrite)
+			{ return false; }
+			outIface = adjacency.getInterface();
+		}
+
+		// Swap the addresses; swapping the IP addresses leaves the header
+		// checksum unchanged
+		if (null == rewrite)
+		{
+			System.arraycopy(frame, offset + MACAddress.MAC_ADDRESS_LENGTH,
+					frame, offset, MACAddress.MAC_ADDRESS_LENGTH);
+			putMac(frame, offset + MACAddress.MAC_ADDRESS_LENGTH,
+					inIface.getMacAddress().toLong());
+		}
+		else
+		{
+			System.arraycopy(rewrite.getHeader(), 0, frame, offset,
+					2 * MACAddress.MAC_ADDRESS_LENGTH);
+			this.arpCache.touch(rewrite.getArpEntry());
+		}
+		putInt(frame, ip + 12, getInt(frame, ip + 16));
+		putInt(frame, ip + 16, srcIp);
+
+		// Reset TTL and change the type, updating the checksums for the
+		// changed words
+		short oldWord = (short)getShort(frame, ip + 8);
+		frame[ip + 8] = ECHO_REPLY_TTL;
+		putShort(frame, ip + 10, Checksum.update(
+				(short)getShort(frame, ip + 10), oldWord,
+				(short)getShort(frame, ip + 8)));
+		oldWord = (short)getShort(frame, icmp);
+		frame[icmp] = ICMP_ECHO_REPLY;
+		putShort(frame, icmp + 2, Checksum.update(
+				(short)getShort(frame, icmp + 2), oldWord,
+				(short)getShort(frame, icmp)));
+
+		this.sendFrame(frame, offset, length, outIface);
+		return true;
+	}
+
+	private static void putMac(byte[] buffer, int offset, long mac)
+	{
+		for (int i = MACAddress.MAC_ADDRESS_LENGTH - 1; i >= 0; i--)
+		{
+			buffer[offset + i] = (byte)mac;
+			mac >>>= 8;
+		}
+	}
+
+	private static int getShort(byte[] buffer, int offset)
+	{ return ((buffer[offset] & 0xff) << 8) | (buffer[offset + 1] & 0xff); }
+
+	private static void putShort(byte[] buffer, int offset, int value)
+	{
+		buffer[offset] = (byte)(value >>> 8);
+		buffer[offset + 1] = (byte)value;
+	}
+
+	private static int getInt(byte[] buffer, int offset)
+	{ return (getShort(buffer, offset) << 16) | getShort(buffer, offset + 2); }
+
+	private static void putInt(byte[] buffer, int offset, int value)
+	{
+		putShort(buffer, offset, value >>> 16);
+		putShort(buffer, offset + 2, value);
+	}
+
+	/**
+	 * @return the 16-bit header word holding an IPv4 packet's TTL and 
+	 *         protocol, as covered by the header checksum
+	 */
+	private static short getTtlProtocolWord(IPv4 ipPacket)
+	{
+		return (short)(((ipPacket.getTtl() & 0xff) << 8) 
+				| (ipPacket.getProtocol() & 0xff));
+	}
+
+	/**
+	 * Handle an Ethernet packet received on a specific interface. Plain
+	 * transit packets with a route are forwarded at once; all others are 
+	 * punted to the slow path, so they do not delay the packets behind them.
 	 * @param etherPacket the Ethernet packet that was received
 	 * @param inIface the interface on which the packet was received
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
-				etherPacket.toString().replace("\n", "\n\t"));
+		this.trace.logPacket(Trace.PACKET, inIface, 
+				"*** -> Received packet: %s", etherPacket);
+
+		if (this.isTransit(etherPacket) 
+				&& this.forwardTransitPacket(etherPacket, inIface))
+		{ return; }
+		if (!this.puntQueue.punt(etherPacket, inIface))
+		{ this.trace.log(Trace.INFO, "Slow path full; dropped packet"); }
+	}
+
+	/**
+	 * Forward a transit packet, if a route matches it. A packet without a
+	 * route is left unmodified, so the slow path can look it up again and 
+	 * answer it with an ICMP error.
+	 * @param etherPacket the packet, which must be transit traffic
+	 * @param inIface the interface on which the packet was received
+	 * @return true if the packet was handled, false if it should be punted
+	 */
+	private boolean forwardTransitPacket(Ethernet etherPacket, Iface inIface)
+	{
+		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
+		Adjacency adjacency = this.routeTable.lookupAdjacency(
+				ipPacket.getDestinationAddress(), getFlowHash(ipPacket));
+		if (null == adjacency)
+		{ return false; }
+
+		// Make sure we don't send a packet back out the interface it came in
+		if (adjacency.getInterface() == inIface)
+		{ return true; }
+
+		// Decrement TTL, which is above 1, and update the checksum for it
+		short oldWord = getTtlProtocolWord(ipPacket);
+		ipPacket.setTtl((byte)(ipPacket.getTtl()-1));
+		ipPacket.setChecksum(Checksum.update(ipPacket.getChecksum(), oldWord,
+				getTtlProtocolWord(ipPacket)));
 
-		/********************************************************************/
-		/* TODO: Handle packets                                             */
+		this.sendToNeighbor(etherPacket, inIface, adjacency);
+		return true;
+	}
+
+	/**
+	 * Check whether a packet only needs to be forwarded: an IPv4 packet
+	 * without options, with a valid checksum and a TTL above 1, that is not
+	 * a fragment and is not addressed to the router. Only the headers are 
+	 * checked, so the check is cheap.
+	 * @param etherPacket the packet
+	 * @return true if the packet is transit traffic, otherwise false
+	 */
+	private boolean isTransit(Ethernet etherPacket)
+	{
+		if (etherPacket.getEtherType() != Ethernet.TYPE_IPv4)
+		{ return false; }
+		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
+		if (!ipPacket.isChecksumValid() || ipPacket.getHeaderLength() != 5
+				|| (ipPacket.getTtl() & 0xff) <= 1
+				|| (ipPacket.getFlags() & 0x1) != 0
+				|| ipPacket.getFragmentOffset() != 0)
+		{ return false; }
+		for (Iface iface : this.interfaces.values())
+		{
+			if (ipPacket.getDestinationAddress() == iface.getIpAddress())
+			{ return false; }
+		}
+		return true;
+	}
 
+	/**
+	 * Handle a packet punted to the slow path, on the slow path's thread.
+	 * @param etherPacket the packet
+	 * @param inIface the interface on which the packet was received
+	 */
+	private void handleSlowPath(Ethernet etherPacket, Iface inIface)
+	{
 		switch(etherPacket.getEtherType())
 		{
 			case Ethernet.TYPE_IPv4:
 				this.handleIpPacket(etherPacket, inIface);
 				break;
+			case Ethernet.TYPE_ARP:
+				this.handleArpPacket(etherPacket, inIface);
+				break;
 			// Ignore all other packet types, for now
 		}
+	}
 
-		/********************************************************************/
+	private void handleArpPacket(Ethernet etherPacket, Iface inIface)
+	{
+		// Make sure it's an ARP packet
+		if (etherPacket.getEtherType() != Ethernet.TYPE_ARP)
+		{ return; }
+
+		// Only handle ARP packets for the interface's IP address
+		ARP arpPacket = (ARP)etherPacket.getPayload();
+		int targetIp = ByteBuffer.wrap(
+				arpPacket.getTargetProtocolAddress()).getInt();
+		if (targetIp != inIface.getIpAddress())
+		{ return; }
+
+		// Learn the sender's address; this sends any packets waiting for it.
+		// Only a reply to the router's own request or probe shows the sender
+		// is reachable; the sender of anything else is probed before use.
+		int senderIp = ByteBuffer.wrap(
+				arpPacket.getSenderProtocolAddress()).getInt();
+		MACAddress mac = 
+				MACAddress.valueOf(arpPacket.getSenderHardwareAddress());
+		if (arpPacket.getOpCode() == ARP.OP_REPLY
+				&& (this.arpResolver.isResolving(senderIp, inIface)
+						|| this.arpCache.isProbing(senderIp)))
+		{ this.arpCache.insert(mac, senderIp); }
+		else
+		{ this.arpCache.insertStale(mac, senderIp); }
+
+		if (arpPacket.getOpCode() == ARP.OP_REQUEST)
+		{
+			this.trace.log(Trace.INFO, "Reply to ARP request");
+			byte[] senderMac = arpPacket.getSenderHardwareAddress();
+			this.sendPacket(this.generateArpPacket(ARP.OP_REPLY, inIface,
+					senderMac, senderIp, senderMac), inIface);
+		}
 	}
 
 	private void handleIpPacket(Ethernet etherPacket, Iface inIface)
@@ -109,28 +723,26 @@ public class Router extends Device
 
 		// Get IP header
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
-		System.out.println("Handle IP packet");
-
-		// Verify checksum
-		short origCksum = ipPacket.getChecksum();
-		ipPacket.resetChecksum();
-		byte[] serialized = ipPacket.serialize();
-		ipPacket.deserialize(serialized, 0, serialized.length);
-		short calcCksum = ipPacket.getChecksum();
-		if (origCksum != calcCksum)
+		this.trace.log(Trace.DEBUG, "Handle IP packet");
+
+		// Verify checksum, which was checked over the received header
+		if (!ipPacket.isChecksumValid())
 		{ return; }
 
 		// Check TTL
+		short oldWord = getTtlProtocolWord(ipPacket);
 		ipPacket.setTtl((byte)(ipPacket.getTtl()-1));
 		if (0 == ipPacket.getTtl())
 		{
-			System.out.println("TTL = 0");
+			this.trace.log(Trace.INFO, "TTL = 0");
 			sendICMPPacket(11, 0, inIface, ipPacket);
 			return;
 		}
 
-		// Reset checksum now that TTL is decremented
-		ipPacket.resetChecksum();
+		// Update checksum for the decremented TTL, rather than recomputing
+		// it over the whole header when the packet is sent
+		ipPacket.setChecksum(Checksum.update(ipPacket.getChecksum(), oldWord,
+				getTtlProtocolWord(ipPacket)));
 
 		// Check if packet is destined for one of router's interfaces
 		for (Iface iface : this.interfaces.values())
@@ -164,151 +776,374 @@ public class Router extends Device
 		// Make sure it's an IP packet
 		if (etherPacket.getEtherType() != Ethernet.TYPE_IPv4)
 		{ return; }
-		System.out.println("Forward IP packet");
+		this.trace.log(Trace.DEBUG, "Forward IP packet");
 
 		// Get IP header
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
 		int dstAddr = ipPacket.getDestinationAddress();
 
-		// Find matching route table entry
-		RouteEntry bestMatch = this.routeTable.lookup(dstAddr);
+		// Find the neighbor to send to from the matching route table entries,
+		// keeping each flow on one of the equal-cost next hops
+		Adjacency adjacency = this.routeTable.lookupAdjacency(dstAddr,
+				getFlowHash(ipPacket));
 
 		// If no entry matched, send ICMP Packet;
-		if (null == bestMatch)
+		if (null == adjacency)
 		{
-			System.out.println("no entry matched in the route table");
+			this.trace.log(Trace.INFO, "no entry matched in the route table");
 			sendICMPPacket(3, 0, inIface, ipPacket);
 			return;
 		}
 
 		// Make sure we don't sent a packet back out the interface it came in
-		Iface outIface = bestMatch.getInterface();
+		Iface outIface = adjacency.getInterface();
 		if (outIface == inIface)
 		{ return; }
 
-		// Set source MAC address in Ethernet header
-		etherPacket.setSourceMACAddress(outIface.getMacAddress().toBytes());
+		this.sendToNeighbor(etherPacket, inIface, adjacency);
+	}
 
-		// If no gateway, then nextHop is IP destination
-		int nextHop = bestMatch.getGatewayAddress();
-		if (0 == nextHop)
-		{ nextHop = dstAddr; }
+	/**
+	 * Send a packet to a neighbor, setting the MAC addresses in its Ethernet
+	 * header. If the neighbor's MAC address is unknown, the packet is held
+	 * while the neighbor is resolved with ARP.
+	 * @param etherPacket the packet to send
+	 * @param inIface the interface on which the packet arrived
+	 * @param adjacency the neighbor to send the packet to; one with IP
+	 *        address 0 stands for the packet's directly connected destination
+	 */
+	private void sendToNeighbor(Ethernet etherPacket, Iface inIface,
+			Adjacency adjacency)
+	{
+		Adjacency.Rewrite rewrite = adjacency.getRewrite();
+		if (null == rewrite)
+		{
+			int ip = adjacency.getIpAddress();
+			if (0 == ip)
+			{ ip = ((IPv4)etherPacket.getPayload()).getDestinationAddress(); }
+			this.arpResolver.enqueue(etherPacket, inIface, ip,
+					adjacency.getInterface());
+			return;
+		}
+		this.arpCache.touch(rewrite.getArpEntry());
+		etherPacket.setSourceMACAddress(rewrite.getSourceMac());
+		etherPacket.setDestinationMACAddress(rewrite.getDestinationMac());
+		this.sendPacket(etherPacket, adjacency.getInterface());
+	}
 
-		// Set destination MAC address in Ethernet header
-		ArpEntry arpEntry = this.arpCache.lookup(nextHop);
-		if (null == arpEntry)
-		{ return; }
-		etherPacket.setDestinationMACAddress(arpEntry.getMac().toBytes());
+	/**
+	 * Broadcast an ARP request for a neighbor.
+	 * @param ip IP address of the neighbor
+	 * @param iface interface out which the neighbor is reached
+	 */
+	void sendArpRequest(int ip, Iface iface)
+	{
+		if (this.trace.isEnabled(Trace.INFO))
+		{
+			this.trace.log(Trace.INFO, "Send ARP request for %s",
+					IPv4.fromIPv4Address(ip));
+		}
+		this.sendPacket(this.generateArpPacket(ARP.OP_REQUEST, iface,
+				new byte[Ethernet.DATALAYER_ADDRESS_LENGTH], ip, BROADCAST_MAC),
+				iface);
+	}
+
+	/**
+	 * Broadcast a gratuitous ARP request for an interface's own IP address,
+	 * so neighbors learn or update the router's MAC address.
+	 * @param iface the interface
+	 */
+	private void sendGratuitousArp(Iface iface)
+	{
+		this.sendPacket(this.generateArpPacket(ARP.OP_REQUEST, iface,
+				new byte[Ethernet.DATALAYER_ADDRESS_LENGTH], 
+				iface.getIpAddress(), BROADCAST_MAC), iface);
+	}
 
-		this.sendPacket(etherPacket, outIface);
+	/**
+	 * Send a unicast ARP request to confirm a neighbor is still reachable,
+	 * out the interface whose subnet contains the neighbor.
+	 * @param ip IP address of the neighbor
+	 * @param mac MAC address the neighbor is known by
+	 */
+	private void sendArpProbe(int ip, MACAddress mac)
+	{
+		for (Iface iface : this.interfaces.values())
+		{
+			if (((iface.getIpAddress() ^ ip) & iface.getSubnetMask()) != 0)
+			{ continue; }
+			if (this.trace.isEnabled(Trace.INFO))
+			{
+				this.trace.log(Trace.INFO, "Send ARP probe for %s",
+						IPv4.fromIPv4Address(ip));
+			}
+			this.sendPacket(this.generateArpPacket(ARP.OP_REQUEST, iface,
+					new byte[Ethernet.DATALAYER_ADDRESS_LENGTH], ip,
+					mac.toBytes()), iface);
+			return;
+		}
 	}
 
-	private MACAddress findNextHopMACAddress(int DestIP){
-		// 1. loop up the routeTable
-		RouteEntry routeEntry = this.routeTable.lookup(DestIP);
-		if(routeEntry == null){
-			System.err.println("No match Dest IP in routeTable.");
-			return null;
+	/**
+	 * Report that a packet's destination is unreachable because its next
+	 * hop could not be resolved, unless the router generated the packet.
+	 * @param etherPacket the packet that could not be sent
+	 * @param inIface the interface on which the packet arrived
+	 */
+	void sendHostUnreachable(Ethernet etherPacket, Iface inIface)
+	{
+		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
+		for (Iface iface : this.interfaces.values())
+		{
+			if (ipPacket.getSourceAddress() == iface.getIpAddress())
+			{ return; }
 		}
-		// 2. get the next hop IP address
-		int nextHopIP = routeEntry.getGatewayAddress();
-		if(nextHopIP == 0){
-			nextHopIP = DestIP;
+		sendICMPPacket(3, 1, inIface, ipPacket);
+	}
+
+	/**
+	 * Hash the addresses, protocol, and ports that identify a packet's flow.
+	 * @param ipPacket the IP packet
+	 * @return hash of the packet's flow
+	 */
+	private static int getFlowHash(IPv4 ipPacket)
+	{
+		short srcPort = 0;
+		short dstPort = 0;
+
+		// Only use ports if the packet is not a fragment, so all fragments 
+		// of a packet take the same path
+		boolean fragment = ((ipPacket.getFlags() & 0x1) != 0)
+				|| (ipPacket.getFragmentOffset() != 0);
+		IPacket payload = ipPacket.getPayload();
+		if (!fragment && payload instanceof TCP)
+		{
+			srcPort = ((TCP)payload).getSourcePort();
+			dstPort = ((TCP)payload).getDestinationPort();
+		}
+		else if (!fragment && payload instanceof UDP)
+		{
+			srcPort = ((UDP)payload).getSourcePort();
+			dstPort = ((UDP)payload).getDestinationPort();
 		}
-		// 3. find next hop MAC address from arpCache
-		ArpEntry arpEntry = this.arpCache.lookup(nextHopIP);
-		if(arpEntry == null){
-			System.err.println("ICMP: no nuch IP in arpCache");
+
+		return NextHopGroup.flowHash(ipPacket.getSourceAddress(),
+				ipPacket.getDestinationAddress(), ipPacket.getProtocol(),
+				srcPort, dstPort);
+	}
+
+	private Adjacency findNextHopAdjacency(int DestIP){
+		// find the next hop from the routeTable
+		Adjacency adjacency = this.routeTable.lookupAdjacency(DestIP,
+				NextHopGroup.flowHash(0, DestIP, 0, 0, 0));
+		if(adjacency == null){
+			this.trace.log(Trace.INFO, "No match Dest IP in routeTable.");
 			return null;
-		};
-		return arpEntry.getMac();
+		}
+		return adjacency;
 	}
 
-	private void sendICMPPacket(int type, int code, Iface iface, IPv4 ipPacket){
-		// 1. set Ethernet header
-		Ethernet ether = new Ethernet();
-		// 1.1. set EtherType
-		ether.setEtherType(Ethernet.TYPE_IPv4);
-		// 1.2. set Source MAC to the MAC address of the out interface
-		ether.setSourceMACAddress(iface.getMacAddress().toBytes());
-
-		// 1.3. set Destination MAC: set to the MAC address of the next hop
-		int DestIP = ipPacket.getSourceAddress();
-		MACAddress nextHopMacAddr = findNextHopMACAddress(DestIP);
-		// 1.3.1. if the MAC address associated with an IP address cannot be resolved using ARP.
-		//if(destMAC == null) {
-		//	RouteEntry rEntry = routeTable.lookup(pktIn.getSourceAddress());
-		//	/* Find the next hop IP Address */
-		//	int nextHopIPAddress = rEntry.getGatewayAddress();
-		//	if(nextHopIPAddress == 0){
-		//		nextHopIPAddress = pktIn.getSourceAddress();
-		//	}
-		//	this.sendARPRequest(ether, inIface, rEntry.getInterface(), nextHopIPAddress);
-		//	return;
-		//}
-
-		ether.setDestinationMACAddress(nextHopMacAddr.toBytes());
-		System.out.println(nextHopMacAddr);
+	/**
+	 * Send an ICMP error about a packet back to the packet's source, unless
+	 * errors are being rate limited. The error is built in a frame reused
+	 * for every error, quoting the packet's IP header and the first 8 bytes
+	 * of its payload from the parsed fields, without serializing the packet.
+	 * @param type ICMP type
+	 * @param code ICMP code
+	 * @param iface interface whose IP address the error is sent from
+	 * @param ipPacket the packet that caused the error
+	 */
+	private void sendICMPPacket(int type, int code, Iface iface, 
+			IPv4 ipPacket)
+	{
+		int dstIp = ipPacket.getSourceAddress();
+		if (!this.icmpRateLimiter.allow(dstIp))
+		{ return; }
 
-		// 2. set IP header
-		IPv4 ip = generateIpPacket(IPv4.PROTOCOL_ICMP, iface.getIpAddress(), ipPacket.getSourceAddress());
-		//IPv4 ip = new IPv4();
-		// 2.1. TTL—setto64
-		//ip.setTtl((byte) 64);
-		// 2.2. Protocol — set to IPv4.PROTOCOL_ICMP
-		//ip.setProtocol(IPv4.PROTOCOL_ICMP);
-		// 2.3. Source IP — set to the IP address of the interface on which the original packet arrived
-		//ip.setSourceAddress(iface.getIpAddress());
-		// 2.4. Destination IP — set to the source IP of the original packet
-		//ip.setDestinationAddress(ipPacket.getSourceAddress());
+		// Find the next hop; its MAC addresses are set when the packet is
+		// sent, once the next hop is resolved using ARP
+		Adjacency adjacency = findNextHopAdjacency(dstIp);
+		if (null == adjacency)
+		{ return; }
 
-		// 3. set ICMP header
-		ICMP icmp = generateIcmpPacket(type, code);
-		//ICMP icmp = new ICMP();
-		// 3.1. set ICMP type
-		//icmp.setIcmpType((byte)type);
-		// 3.2. set ICMP code
-		//icmp.setIcmpCode((byte)code);
-
-		// 4. assemble the ICMP payload
-		Data data = new Data();
-		// 4.1. construct byteArray
-		int origialIPHeaderLength = ipPacket.getHeaderLength() * 4;
-		byte[] byteArray = new byte[4 + origialIPHeaderLength + 8];
-		// 4.2. copy bytes from IpPacket
-		byte[] serializedIpPacket = ipPacket.serialize();
-		int serializedIpPacketLen = serializedIpPacket.length;
-		for(int i = 0; i < origialIPHeaderLength + 8; i++){
-			if (i < serializedIpPacketLen) byteArray[4 + i] = serializedIpPacket[i];
-			else break;
-		}
-
-		// 5. assemble the ICMP Packet
-		data.setData(byteArray);
-		icmp.setPayload(data);
-		ip.setPayload(icmp);
-		ether.setPayload(ip);
+		synchronized(this.icmpFrame)
+		{
+			byte[] frame = this.icmpFrame;
+			int offset = VNSComm.PACKET_HEADER_SIZE;
+			int ip = offset + ETHER_HEADER_LENGTH;
+			int icmp = ip + IP_HEADER_LENGTH;
+			int quoteLength = ipPacket.getHeaderLength() * 4 + 8;
+			int totalLength = IP_HEADER_LENGTH + ICMP_HEADER_LENGTH 
+					+ quoteLength;
+
+			// Quote the packet, then fill in the ICMP header and the fields
+			// of the IP header that differ between errors
+			quoteIpPacket(ipPacket, frame, icmp + ICMP_HEADER_LENGTH,
+					quoteLength);
+			frame[icmp] = (byte)type;
+			frame[icmp + 1] = (byte)code;
+			putShort(frame, icmp + 2, 0);
+			putShort(frame, icmp + 2, Checksum.compute(frame, icmp,
+					ICMP_HEADER_LENGTH + quoteLength));
+			putShort(frame, ip + 2, totalLength);
+			putShort(frame, ip + 10, 0);
+			putInt(frame, ip + 12, iface.getIpAddress());
+			putInt(frame, ip + 16, dstIp);
+			putShort(frame, ip + 10, Checksum.compute(frame, ip, 
+					IP_HEADER_LENGTH));
+
+			this.sendFrameToNeighbor(frame, offset, 
+					ETHER_HEADER_LENGTH + totalLength, iface, adjacency);
+		}
+	}
+
+	/**
+	 * Build the reusable frame for ICMP errors, with room before it for the
+	 * VNS header, filling in the fields that are the same for every error.
+	 */
+	private static byte[] createIcmpFrame()
+	{
+		byte[] frame = new byte[VNSComm.PACKET_HEADER_SIZE 
+				+ ETHER_HEADER_LENGTH + IP_HEADER_LENGTH + ICMP_HEADER_LENGTH
+				+ MAX_IP_HEADER_LENGTH + 8];
+		int offset = VNSComm.PACKET_HEADER_SIZE;
+		int ip = offset + ETHER_HEADER_LENGTH;
+		putShort(frame, offset + 12, Ethernet.TYPE_IPv4);
+		frame[ip] = 0x45;
+		frame[ip + 8] = 64;
+		frame[ip + 9] = IPv4.PROTOCOL_ICMP;
+		return frame;
+	}
+
+	/**
+	 * Write the IP header of a packet and the first 8 bytes of its payload,
+	 * as quoted in ICMP errors, from the packet's parsed fields.
+	 * @param ipPacket the packet
+	 * @param buffer buffer to write to
+	 * @param offset position to write at
+	 * @param length length of the IP header plus 8; bytes the packet does
+	 *        not have are zero
+	 */
+	private static void quoteIpPacket(IPv4 ipPacket, byte[] buffer, 
+			int offset, int length)
+	{
+		Arrays.fill(buffer, offset, offset + length, (byte)0);
+		buffer[offset] = (byte)((ipPacket.getVersion() << 4) 
+				| (ipPacket.getHeaderLength() & 0xf));
+		buffer[offset + 1] = ipPacket.getDiffServ();
+		putShort(buffer, offset + 2, ipPacket.getTotalLength());
+		putShort(buffer, offset + 4, ipPacket.getIdentification());
+		putShort(buffer, offset + 6, (ipPacket.getFlags() << 13) 
+				| (ipPacket.getFragmentOffset() & 0x1fff));
+		buffer[offset + 8] = ipPacket.getTtl();
+		buffer[offset + 9] = ipPacket.getProtocol();
+		putShort(buffer, offset + 10, ipPacket.getChecksum());
+		putInt(buffer, offset + 12, ipPacket.getSourceAddress());
+		putInt(buffer, offset + 16, ipPacket.getDestinationAddress());
+		byte[] options = ipPacket.getOptions();
+		if (options != null)
+		{
+			System.arraycopy(options, 0, buffer, offset + IP_HEADER_LENGTH,
+					Math.min(options.length, length - IP_HEADER_LENGTH - 8));
+		}
+
+		int payload = offset + length - 8;
+		IPacket ipPayload = ipPacket.getPayload();
+		if (ipPayload instanceof UDP)
+		{
+			UDP udp = (UDP)ipPayload;
+			putShort(buffer, payload, udp.getSourcePort());
+			putShort(buffer, payload + 2, udp.getDestinationPort());
+			putShort(buffer, payload + 4, udp.getLength());
+			putShort(buffer, payload + 6, udp.getChecksum());
+		}
+		else if (ipPayload instanceof TCP)
+		{
+			TCP tcp = (TCP)ipPayload;
+			putShort(buffer, payload, tcp.getSourcePort());
+			putShort(buffer, payload + 2, tcp.getDestinationPort());
+			putInt(buffer, payload + 4, tcp.getSequence());
+		}
+		else if (ipPayload instanceof ICMP)
+		{
+			ICMP icmp = (ICMP)ipPayload;
+			buffer[payload] = icmp.getIcmpType();
+			buffer[payload + 1] = icmp.getIcmpCode();
+			putShort(buffer, payload + 2, icmp.getChecksum());
+			quoteData(icmp.getPayload(), buffer, payload + 4, 4);
+		}
+		else
+		{ quoteData(ipPayload, buffer, payload, 8); }
+	}
+
+	/**
+	 * Copy the first bytes of a payload, serializing it only if it is not
+	 * raw data.
+	 */
+	private static void quoteData(IPacket payload, byte[] buffer, int offset,
+			int length)
+	{
+		if (null == payload)
+		{ return; }
+		byte[] data = (payload instanceof Data) ? ((Data)payload).getData()
+				: payload.serialize();
+		if (data != null)
+		{
+			System.arraycopy(data, 0, buffer, offset, 
+					Math.min(data.length, length));
+		}
+	}
 
-		// 6. send ICMP Packet
-		this.sendPacket(ether, iface);
+	/**
+	 * Send a frame built by the router to a neighbor from its raw bytes,
+	 * setting its MAC addresses. If the neighbor's MAC address is unknown, 
+	 * a copy of the frame is parsed and held while the neighbor is resolved
+	 * with ARP.
+	 * @param frame buffer holding the frame, with room before it for the 
+	 *        VNS header
+	 * @param offset position of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the packet the frame responds
+	 *        to arrived
+	 * @param adjacency the neighbor to send the frame to; one with IP
+	 *        address 0 stands for the frame's directly connected destination
+	 */
+	private void sendFrameToNeighbor(byte[] frame, int offset, int length,
+			Iface inIface, Adjacency adjacency)
+	{
+		Adjacency.Rewrite rewrite = adjacency.getRewrite();
+		if (null == rewrite)
+		{
+			int ip = adjacency.getIpAddress();
+			if (0 == ip)
+			{ ip = getInt(frame, offset + ETHER_HEADER_LENGTH + 16); }
+			Ethernet etherPacket = new Ethernet();
+			etherPacket.deserialize(
+					Arrays.copyOfRange(frame, offset, offset + length), 0, 
+					length);
+			this.arpResolver.enqueue(etherPacket, inIface, ip,
+					adjacency.getInterface());
+			return;
+		}
+		this.arpCache.touch(rewrite.getArpEntry());
+		System.arraycopy(rewrite.getHeader(), 0, frame, offset,
+				2 * MACAddress.MAC_ADDRESS_LENGTH);
+		this.sendFrame(frame, offset, length, adjacency.getInterface());
 	}
 
 	private void handleIcmpEchoRequest(IPv4 ipPacket, ICMP icmpPacket, Iface inIface){
-		System.out.println("handling an ICMP echo request");
-		Ethernet echoReply = getCommonEchoReply(ipPacket, icmpPacket, inIface);
-		sendPacket(echoReply, inIface);
+		this.trace.log(Trace.DEBUG, "handling an ICMP echo request");
+		Adjacency adjacency = findNextHopAdjacency(ipPacket.getSourceAddress());
+		if (null == adjacency)
+		{ return; }
+		Ethernet echoReply = getCommonEchoReply(ipPacket, icmpPacket);
+		sendToNeighbor(echoReply, inIface, adjacency);
 	}
 
-	private Ethernet getCommonEchoReply(IPv4 ipPacket, ICMP icmpPacket, Iface inIface){
-		// 1. set Ethernet header
+	private Ethernet getCommonEchoReply(IPv4 ipPacket, ICMP icmpPacket){
+		// 1. set Ethernet header; MAC addresses are set when it is sent
 		Ethernet ether = new Ethernet();
 		ether.setEtherType(Ethernet.TYPE_IPv4);
-		ether.setSourceMACAddress(inIface.getMacAddress().toBytes());
-		int nextHop = this.routeTable.lookup(ipPacket.getSourceAddress()).getGatewayAddress();
-		if (nextHop == 0) {
-			nextHop = ipPacket.getSourceAddress();
-		}
-		ether.setDestinationMACAddress(this.arpCache.lookup(nextHop).getMac().toBytes());
 
 		// 2. set IP header
 		IPv4 ip = generateIpPacket(IPv4.PROTOCOL_ICMP, ipPacket.getDestinationAddress(), ipPacket.getSourceAddress());
@@ -333,6 +1168,38 @@ public class Router extends Device
 		return ip;
 	}
 
+	/**
+	 * Build an ARP packet sent from an interface.
+	 * @param opCode {@link ARP#OP_REQUEST} or {@link ARP#OP_REPLY}
+	 * @param iface interface the packet is sent from
+	 * @param targetMac MAC address of the target; all zeros for a request
+	 * @param targetIp IP address of the target
+	 * @param destinationMac destination MAC address of the Ethernet frame;
+	 *        broadcast for a request, unless it probes a known neighbor
+	 * @return the packet, in an Ethernet frame
+	 */
+	private Ethernet generateArpPacket(short opCode, Iface iface,
+			byte[] targetMac, int targetIp, byte[] destinationMac)
+	{
+		ARP arp = new ARP();
+		arp.setHardwareType(ARP.HW_TYPE_ETHERNET);
+		arp.setProtocolType(ARP.PROTO_TYPE_IP);
+		arp.setHardwareAddressLength((byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
+		arp.setProtocolAddressLength((byte)4);
+		arp.setOpCode(opCode);
+		arp.setSenderHardwareAddress(iface.getMacAddress().toBytes());
+		arp.setSenderProtocolAddress(iface.getIpAddress());
+		arp.setTargetHardwareAddress(targetMac);
+		arp.setTargetProtocolAddress(targetIp);
+
+		Ethernet ether = new Ethernet();
+		ether.setEtherType(Ethernet.TYPE_ARP);
+		ether.setSourceMACAddress(iface.getMacAddress());
+		ether.setDestinationMACAddress(destinationMac);
+		ether.setPayload(arp);
+		return ether;
+	}
+
 	private ICMP generateIcmpPacket(int type, int code){
 		ICMP icmp = new ICMP();
 		icmp.setIcmpType((byte) type);
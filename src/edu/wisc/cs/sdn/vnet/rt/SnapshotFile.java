@@ -0,0 +1,180 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes binary snapshots of tables. A snapshot is a fixed header
+ * followed by a flat, little-endian body that is memory mapped when read,
+ * so tables can use parts of the body directly instead of copying them.
+ * <p>
+ * The header holds a magic number that identifies the kind of table, a
+ * format version, a CRC-32 of the body, and the size and modification time
+ * of the text file the table was loaded from, so a snapshot that is
+ * corrupt, from another version, or older than its text file is rejected.
+ */
+class SnapshotFile
+{
+	/** Version of the snapshot format */
+	static final int VERSION = 1;
+
+	/** Header layout: magic, version, CRC-32 of the body, body length,
+	 *  text file length, text file modification time */
+	private static final int HEADER_SIZE = 40;
+
+	/**
+	 * Create a buffer for the body of a snapshot.
+	 * @param size number of bytes in the body
+	 * @return an empty little-endian buffer
+	 */
+	static ByteBuffer allocate(int size)
+	{ return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN); }
+
+	/**
+	 * Write zeros until a buffer's position is a multiple of 8, so the
+	 * next section can be read with aligned accesses.
+	 */
+	static void align(ByteBuffer buffer)
+	{
+		while ((buffer.position() & 7) != 0)
+		{ buffer.put((byte)0); }
+	}
+
+	/**
+	 * @return a size rounded up to a multiple of 8
+	 */
+	static int aligned(int size)
+	{ return (size + 7) & ~7; }
+
+	/**
+	 * Write a snapshot. The snapshot is written to a temporary file that
+	 * then replaces the file, so a crash never leaves a partial snapshot.
+	 * @param filename name of the snapshot file
+	 * @param magic identifies the kind of table
+	 * @param body the body, from position 0 to the buffer's position
+	 * @param textFilename name of the text file the table was loaded from;
+	 *        null if none
+	 * @return true if the snapshot was written, otherwise false
+	 */
+	static boolean write(String filename, int magic, ByteBuffer body,
+			String textFilename)
+	{
+		body.flip();
+		CRC32 crc = new CRC32();
+		crc.update(body.duplicate());
+
+		ByteBuffer header = allocate(HEADER_SIZE);
+		header.putInt(magic);
+		header.putInt(VERSION);
+		header.putInt((int)crc.getValue());
+		header.putInt(0);
+		header.putLong(body.remaining());
+		File textFile = (null == textFilename) ? null : new File(textFilename);
+		header.putLong((null == textFile) ? 0 : textFile.length());
+		header.putLong((null == textFile) ? 0 : textFile.lastModified());
+		header.flip();
+
+		Path path = Paths.get(filename);
+		Path temporary = Paths.get(filename + ".tmp");
+		try
+		{
+			FileChannel channel = FileChannel.open(temporary,
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			try
+			{
+				while (header.hasRemaining() || body.hasRemaining())
+				{ channel.write(new ByteBuffer[] { header, body }); }
+				channel.force(true);
+			}
+			finally
+			{ channel.close(); }
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Memory map a snapshot and check its header and checksum.
+	 * @param filename name of the snapshot file
+	 * @param magic identifies the kind of table expected
+	 * @param textFilename name of the text file the table should have been
+	 *        loaded from; null to accept a snapshot of any text file
+	 * @return the little-endian body of the snapshot; null if the snapshot
+	 *         could not be read or is not valid, in which case the reason is
+	 *         printed
+	 */
+	static ByteBuffer read(String filename, int magic, String textFilename)
+	{
+		if (!new File(filename).exists())
+		{ return invalid(filename, "file does not exist"); }
+
+		ByteBuffer file;
+		try
+		{
+			FileChannel channel = FileChannel.open(Paths.get(filename),
+					StandardOpenOption.READ);
+			try
+			{
+				if (channel.size() > Integer.MAX_VALUE)
+				{ return invalid(filename, "file is too large"); }
+				file = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+						channel.size());
+			}
+			finally
+			{ channel.close(); }
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return null;
+		}
+		file.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (file.limit() < HEADER_SIZE || file.getInt(0) != magic)
+		{ return invalid(filename, "not a snapshot of this kind of table"); }
+		if (file.getInt(4) != VERSION)
+		{
+			return invalid(filename, "unsupported version " + file.getInt(4)
+					+ ", expected " + VERSION);
+		}
+		if (file.getLong(16) != file.limit() - HEADER_SIZE)
+		{ return invalid(filename, "file is truncated"); }
+		if (textFilename != null)
+		{
+			File textFile = new File(textFilename);
+			if (file.getLong(24) != textFile.length()
+					|| file.getLong(32) != textFile.lastModified())
+			{ return invalid(filename, "out of date with " + textFilename); }
+		}
+
+		file.position(HEADER_SIZE);
+		ByteBuffer body = file.slice().order(ByteOrder.LITTLE_ENDIAN);
+		CRC32 crc = new CRC32();
+		crc.update(body.duplicate());
+		if ((int)crc.getValue() != file.getInt(8))
+		{ return invalid(filename, "checksum mismatch"); }
+		return body;
+	}
+
+	private static ByteBuffer invalid(String filename, String reason)
+	{
+		System.err.println("Invalid snapshot " + filename + ": " + reason);
+		return null;
+	}
+}
@@ -0,0 +1,314 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads whitespace-separated fields from the lines of a table file, such as
+ * a static route table or ARP cache file. The file is memory mapped and its
+ * fields are parsed in place, without regular expressions or a string per
+ * line, so files with millions of lines load quickly. Blank lines are
+ * skipped.
+ * <p>
+ * The first malformed field stops the reader and is reported with its line
+ * and column; reads after an error return nothing.
+ */
+class TableFileReader
+{
+	/** Name of the file, for error messages */
+	private String filename;
+
+	/** Contents of the file */
+	private MappedByteBuffer buffer;
+
+	/** Number of bytes in the file */
+	private int limit;
+
+	/** Offset of the next byte to read */
+	private int position;
+
+	/** Offset of the first byte of the current line */
+	private int lineStart;
+
+	/** Number of the current line, counting from 1; 0 before the first */
+	private int lineNumber;
+
+	/** Offset of the first byte of the most recently read field */
+	private int fieldStart;
+
+	/** Description of the first error; null if none */
+	private String error;
+
+	private TableFileReader(String filename, MappedByteBuffer buffer)
+	{
+		this.filename = filename;
+		this.buffer = buffer;
+		this.limit = buffer.limit();
+		this.position = 0;
+		this.lineStart = 0;
+		this.lineNumber = 0;
+		this.fieldStart = 0;
+		this.error = null;
+	}
+
+	/**
+	 * Open a table file.
+	 * @param filename name of the file
+	 * @return a reader positioned before the first line; null if the file
+	 *         could not be opened, in which case the reason is printed
+	 */
+	static TableFileReader open(String filename)
+	{
+		FileChannel channel;
+		try
+		{ channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ); }
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return null;
+		}
+
+		// The mapping remains valid after the channel is closed
+		try
+		{
+			if (channel.size() > Integer.MAX_VALUE)
+			{
+				System.err.println(filename + ": file is too large");
+				return null;
+			}
+			return new TableFileReader(filename, channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return null;
+		}
+		finally
+		{ try { channel.close(); } catch (IOException f) {}; }
+	}
+
+	/**
+	 * Advance to the next line that is not blank.
+	 * @return true if there is such a line, false at the end of the file or
+	 *         after an error
+	 */
+	boolean nextLine()
+	{
+		if (this.error != null)
+		{ return false; }
+
+		// Skip the rest of the current line
+		if (this.lineNumber > 0)
+		{
+			while (this.position < this.limit && this.peek() != '\n')
+			{ this.position++; }
+			this.position++;
+		}
+
+		while (this.position < this.limit)
+		{
+			this.lineStart = this.position;
+			this.lineNumber++;
+			this.skipSpaces();
+			if (this.position < this.limit && this.peek() != '\n')
+			{ return true; }
+			this.position++;
+		}
+		return false;
+	}
+
+	/**
+	 * Read a dotted-decimal IPv4 address field.
+	 * @param field name of the field, for error messages
+	 * @return the address; 0 if the field is malformed
+	 */
+	int readIp(String field)
+	{
+		if (!this.startField(field))
+		{ return 0; }
+		int ip = 0;
+		for (int octet = 0; octet < 4; octet++)
+		{
+			if (octet > 0)
+			{
+				if (this.position == this.limit || this.peek() != '.')
+				{
+					this.fail("expected '.' in " + field + " IP address");
+					return 0;
+				}
+				this.position++;
+			}
+			int value = 0;
+			int digits = 0;
+			while (this.position < this.limit && digits < 4
+					&& this.peek() >= '0' && this.peek() <= '9')
+			{
+				value = value * 10 + (this.peek() - '0');
+				digits++;
+				this.position++;
+			}
+			if (0 == digits || digits > 3 || value > 255)
+			{
+				this.fail("invalid octet in " + field + " IP address");
+				return 0;
+			}
+			ip = (ip << 8) | value;
+		}
+		return this.endField(field) ? ip : 0;
+	}
+
+	/**
+	 * Read a MAC address field of six colon-separated pairs of hex digits.
+	 * @param field name of the field, for error messages
+	 * @return the address; 0 if the field is malformed
+	 */
+	long readMac(String field)
+	{
+		if (!this.startField(field))
+		{ return 0; }
+		long mac = 0;
+		for (int octet = 0; octet < 6; octet++)
+		{
+			if (octet > 0)
+			{
+				if (this.position == this.limit || this.peek() != ':')
+				{
+					this.fail("expected ':' in " + field + " address");
+					return 0;
+				}
+				this.position++;
+			}
+			for (int digit = 0; digit < 2; digit++)
+			{
+				int value = (this.position == this.limit) ? -1
+						: Character.digit(this.peek(), 16);
+				if (value < 0)
+				{
+					this.fail("expected hex digit in " + field + " address");
+					return 0;
+				}
+				mac = (mac << 4) | value;
+				this.position++;
+			}
+		}
+		return this.endField(field) ? mac : 0;
+	}
+
+	/**
+	 * Read an alphanumeric name field.
+	 * @param field name of the field, for error messages
+	 * @return the name; null if the field is malformed
+	 */
+	String readName(String field)
+	{
+		if (!this.startField(field))
+		{ return null; }
+		while (this.position < this.limit
+				&& isNameCharacter(this.peek()))
+		{ this.position++; }
+		if (this.position == this.fieldStart)
+		{
+			this.fail("invalid character in " + field);
+			return null;
+		}
+		byte[] name = new byte[this.position - this.fieldStart];
+		for (int i = 0; i < name.length; i++)
+		{ name[i] = this.buffer.get(this.fieldStart + i); }
+		return this.endField(field) 
+				? new String(name, StandardCharsets.US_ASCII) : null;
+	}
+
+	/**
+	 * Check that nothing but whitespace remains on the current line.
+	 * @return true if so, false if not or after an error
+	 */
+	boolean endLine()
+	{
+		if (this.error != null)
+		{ return false; }
+		this.skipSpaces();
+		if (this.position < this.limit && this.peek() != '\n')
+		{
+			this.fail("expected end of line");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Report an error at the start of the most recently read field, unless
+	 * an error was already reported.
+	 * @param message description of the error
+	 */
+	void failField(String message)
+	{
+		if (null == this.error)
+		{ this.fail(this.fieldStart, message); }
+	}
+
+	/**
+	 * @return description of the first error, including its line and
+	 *         column; null if there were no errors
+	 */
+	String getError()
+	{ return this.error; }
+
+	private boolean startField(String field)
+	{
+		if (this.error != null)
+		{ return false; }
+		this.skipSpaces();
+		this.fieldStart = this.position;
+		if (this.position == this.limit || this.peek() == '\n')
+		{
+			this.fail("missing " + field);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Check that a field is followed by whitespace or the end of the line.
+	 */
+	private boolean endField(String field)
+	{
+		if (this.position == this.limit || isSpace(this.peek())
+				|| this.peek() == '\n')
+		{ return true; }
+		this.fail("unexpected character '" + (char)this.peek() + "' in "
+				+ field);
+		return false;
+	}
+
+	private void skipSpaces()
+	{
+		while (this.position < this.limit && isSpace(this.peek()))
+		{ this.position++; }
+	}
+
+	private static boolean isSpace(int b)
+	{ return ' ' == b || '\t' == b || '\r' == b; }
+
+	private static boolean isNameCharacter(int b)
+	{
+		return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z')
+				|| (b >= '0' && b <= '9');
+	}
+
+	private int peek()
+	{ return this.buffer.get(this.position) & 0xff; }
+
+	private void fail(String message)
+	{ this.fail(this.position, message); }
+
+	private void fail(int offset, String message)
+	{
+		this.error = String.format("%s:%d:%d: %s", this.filename,
+				this.lineNumber, offset - this.lineStart + 1, message);
+	}
+}
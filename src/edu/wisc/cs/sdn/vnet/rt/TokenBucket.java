@@ -0,0 +1,55 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * Limits the rate of an event with a token bucket. The bucket holds up to a
+ * burst of tokens and refills at a steady rate; each event takes a token,
+ * and events are refused while the bucket is empty.
+ */
+class TokenBucket
+{
+	/** Tokens added per second */
+	private int rate;
+
+	/** Largest number of tokens held, in thousandths of a token */
+	private long capacity;
+
+	/** Tokens held, in thousandths of a token */
+	private long tokens;
+
+	/** Time (in milliseconds) tokens were last added */
+	private long lastRefill;
+
+	/**
+	 * Create a full token bucket.
+	 * @param rate tokens added per second
+	 * @param burst largest number of tokens held
+	 * @param now current time (in milliseconds)
+	 */
+	TokenBucket(int rate, int burst, long now)
+	{
+		this.rate = rate;
+		this.capacity = 1000L * burst;
+		this.tokens = this.capacity;
+		this.lastRefill = now;
+	}
+
+	/**
+	 * Take a token if one is available.
+	 * @param now current time (in milliseconds)
+	 * @return true if a token was taken, false if the event should be
+	 *         refused
+	 */
+	synchronized boolean tryTake(long now)
+	{
+		if (now > this.lastRefill)
+		{
+			this.tokens = Math.min(this.capacity,
+					this.tokens + (now - this.lastRefill) * this.rate);
+			this.lastRefill = now;
+		}
+		if (this.tokens < 1000)
+		{ return false; }
+		this.tokens -= 1000;
+		return true;
+	}
+}
@@ -1,77 +1,375 @@
 package edu.wisc.cs.sdn.vnet.sw;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
 
-import edu.wisc.cs.sdn.vnet.Iface;
-
-import net.floodlightcontroller.packet.MACAddress;
+import edu.wisc.cs.sdn.vnet.TimerWheel;
 
 /**
  * A MAC learning table.
+ * <p>
+ * MAC addresses are kept as 48-bit numbers in an open-addressing hash table
+ * of parallel primitive arrays, probed linearly, along with the index of the
+ * interface each was learned on. Learning and looking up an address reads a
+ * few adjacent array elements and allocates nothing, and the table grows to
+ * hold millions of addresses; it is kept at most half full.
+ * <p>
+ * Lookups take no locks. Updates are serialized, and each bumps a sequence
+ * number to an odd value while it changes the arrays and to an even value
+ * when done; a lookup that sees the number odd, or changed by the time it
+ * is done, retries. Learning an address already known on the same interface
+ * only takes the lock when the entry is due to be refreshed.
+ * <p>
+ * Entries age lazily: a lookup ignores an entry that has timed out, and
+ * timed out entries are removed by a timing wheel of addresses, kept in the
+ * bucket for the tick at which each is due to time out and checked on the
+ * shared {@link TimerWheel}. An address relearned since it was added is
+ * added again for when it will next be due, so removing entries costs time
+ * in the number of entries due, not the size of the table, and switches
+ * need no threads of their own.
  * @author Aaron Gember-Jacobson
  */
-public class MACTable implements Runnable
+public class MACTable
 {
     /** Timeout (in milliseconds) for entries in the MAC table */
     public static final int TIMEOUT = 15 * 1000;
 
-    /** Entries in the MAC table */
-    private Map<MACAddress,MACTableEntry> entries;
+    /** Interface index returned by {@link #lookup(long)} for unknown MAC
+     *  addresses */
+    public static final int NO_IFACE = -1;
+
+    /** Time (in milliseconds) after which relearning an address refreshes
+     *  its entry */
+    private static final int REFRESH_TIME = 1000;
+
+    /** MAC address of an empty slot; MAC addresses are 48 bits, so a real
+     *  MAC address is never negative */
+    private static final long NO_MAC = -1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Number of buckets in the wheel of addresses; a power of two larger
+     *  than the number of ticks in {@link #TIMEOUT}, so a bucket only holds
+     *  addresses due at the same tick */
+    private static final int BUCKETS = 256;
+
+    private static final int INITIAL_BUCKET_CAPACITY = 16;
 
-    /** Thread for timing out requests and entries in the cache */
-    private Thread timeoutThread;
+    /** Arrays of a table; replaced as a whole when the table grows */
+    private static class Slots
+    {
+        /** MAC address in each slot; {@link #NO_MAC} if the slot is empty */
+        final long[] macs;
+
+        /** Index of the interface each MAC address was learned on */
+        final int[] ifaces;
+
+        /** Time (in milliseconds) each entry was last learned */
+        final long[] updated;
+
+        /** Odd while an update is changing the arrays */
+        volatile int sequence;
+
+        Slots(int capacity)
+        {
+            this.macs = new long[capacity];
+            this.ifaces = new int[capacity];
+            this.updated = new long[capacity];
+            for (int i = 0; i < capacity; i++)
+            { this.macs[i] = NO_MAC; }
+            this.sequence = 0;
+        }
+    }
+
+    /** Current arrays */
+    private volatile Slots slots;
+
+    /** Number of entries */
+    private volatile int size;
+
+    /** Addresses of entries in each bucket of the wheel, indexed by the
+     *  tick at which they are due; one per entry */
+    private long[][] buckets;
+
+    /** Number of addresses in each bucket */
+    private int[] bucketSizes;
+
+    /** Last tick whose bucket was checked */
+    private long tick;
+
+    /** Provides the time entries are learned, and checks the wheel */
+    private TimerWheel timers;
+
+    /** Timer for checking the wheel; null if the table is empty */
+    private TimerWheel.Timeout timer;
 
     /**
      * Initializes an empty MAC learning table for a switch.
-     * @param sw switch to which this table belongs
      */
     public MACTable()
     {
-        this.entries = new ConcurrentHashMap<MACAddress, MACTableEntry>();
-        timeoutThread = new Thread(this);
-        timeoutThread.start();
+        this.slots = new Slots(INITIAL_CAPACITY);
+        this.size = 0;
+        this.buckets = new long[BUCKETS][];
+        this.bucketSizes = new int[BUCKETS];
+        this.timers = TimerWheel.getShared();
+        this.tick = this.timers.currentTimeMillis() / TimerWheel.TICK;
+        this.timer = null;
+    }
+
+    private static int slotOf(long mac, int mask)
+    {
+        long hash = mac * 0x9e3779b97f4a7c15L;
+        return (int)(hash >>> 32) & mask;
     }
 
-    public void insert(MACAddress macAddress, Iface iface)
+    /**
+     * @return slot holding a MAC address; -1 if none. The number of slots
+     *         probed is bounded, since a concurrent update may leave no
+     *         empty slot in view.
+     */
+    private static int find(Slots slots, long mac)
     {
-        MACTableEntry entry = this.lookup(macAddress);
-        if(entry != null)
-        { entry.update(iface); }
-        else
+        int mask = slots.macs.length - 1;
+        int slot = slotOf(mac, mask);
+        for (int probes = 0; probes <= mask; probes++)
         {
-            entry = new MACTableEntry(macAddress, iface);
-            this.entries.put(macAddress, entry);
+            long slotMac = slots.macs[slot];
+            if (NO_MAC == slotMac)
+            { return -1; }
+            if (slotMac == mac)
+            { return slot; }
+            slot = (slot + 1) & mask;
         }
+        return -1;
     }
 
-    public MACTableEntry lookup(MACAddress macAddress)
+    /**
+     * Learn that a MAC address is reached through an interface, moving the
+     * address if it was known on another interface.
+     * @param mac the MAC address, as a 48-bit number
+     * @param iface index of the interface
+     */
+    public void learn(long mac, int iface)
     {
-        if (this.entries.containsKey(macAddress))
-        { return this.entries.get(macAddress); }
-        return null;
+        long now = this.timers.currentTimeMillis();
+        while (true)
+        {
+            Slots slots = this.slots;
+            int sequence = slots.sequence;
+            if ((sequence & 1) == 0)
+            {
+                int slot = find(slots, mac);
+                int slotIface = (slot < 0) ? NO_IFACE : slots.ifaces[slot];
+                long updated = (slot < 0) ? 0 : slots.updated[slot];
+                VarHandle.loadLoadFence();
+                if (slots.sequence == sequence)
+                {
+                    if (slotIface == iface && now - updated < REFRESH_TIME)
+                    { return; }
+                    break;
+                }
+            }
+            Thread.onSpinWait();
+        }
+        this.put(mac, iface, now);
     }
 
     /**
-     * Every second: timeout MAC table entries.
+     * Find the interface through which a MAC address is reached.
+     * @param mac the MAC address, as a 48-bit number
+     * @return index of the interface; {@link #NO_IFACE} if the address is
+     *         unknown or its entry has timed out
      */
-    public void run()
+    public int lookup(long mac)
     {
+        long now = this.timers.currentTimeMillis();
         while (true)
         {
-            // Run every second
-            try
-            { Thread.sleep(1000); }
-            catch (InterruptedException e)
-            { break; }
-
-            // Timeout entries
-            for (MACTableEntry entry : this.entries.values())
+            Slots slots = this.slots;
+            int sequence = slots.sequence;
+            if ((sequence & 1) == 0)
+            {
+                int slot = find(slots, mac);
+                int iface = (slot < 0) ? NO_IFACE : slots.ifaces[slot];
+                long updated = (slot < 0) ? 0 : slots.updated[slot];
+                VarHandle.loadLoadFence();
+                if (slots.sequence == sequence)
+                {
+                    if (now - updated > TIMEOUT)
+                    { return NO_IFACE; }
+                    return iface;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Add or update the entry for a MAC address.
+     */
+    private synchronized void put(long mac, int iface, long now)
+    {
+        Slots slots = this.slots;
+        if (2 * (this.size + 1) > slots.macs.length)
+        {
+            slots = grow(slots);
+            this.slots = slots;
+        }
+
+        int mask = slots.macs.length - 1;
+        int slot = slotOf(mac, mask);
+        while (slots.macs[slot] != NO_MAC && slots.macs[slot] != mac)
+        { slot = (slot + 1) & mask; }
+        if (NO_MAC == slots.macs[slot])
+        {
+            this.size++;
+            if (null == this.timer)
+            {
+                // The wheel is empty, so no ticks need to be caught up on
+                this.tick = now / TimerWheel.TICK;
+                this.schedule();
+            }
+            this.addToWheel(mac, now);
+        }
+
+        beginUpdate(slots);
+        slots.macs[slot] = mac;
+        slots.ifaces[slot] = iface;
+        slots.updated[slot] = now;
+        endUpdate(slots);
+    }
+
+    /**
+     * Remove the entry in a slot, shifting later entries of its run back,
+     * so no lookup for them stops early at the emptied slot.
+     */
+    private synchronized void remove(Slots slots, int slot)
+    {
+        int mask = slots.macs.length - 1;
+        beginUpdate(slots);
+        int next = (slot + 1) & mask;
+        while (slots.macs[next] != NO_MAC)
+        {
+            int home = slotOf(slots.macs[next], mask);
+            if (((next - home) & mask) >= ((next - slot) & mask))
+            {
+                slots.macs[slot] = slots.macs[next];
+                slots.ifaces[slot] = slots.ifaces[next];
+                slots.updated[slot] = slots.updated[next];
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+        slots.macs[slot] = NO_MAC;
+        endUpdate(slots);
+        this.size--;
+    }
+
+    private static void beginUpdate(Slots slots)
+    {
+        slots.sequence = slots.sequence + 1;
+        VarHandle.storeStoreFence();
+    }
+
+    private static void endUpdate(Slots slots)
+    { slots.sequence = slots.sequence + 1; }
+
+    /**
+     * Copy the entries into arrays twice as large. The copy is private
+     * until it is published, so it needs no sequence number updates.
+     */
+    private static Slots grow(Slots slots)
+    {
+        Slots grown = new Slots(2 * slots.macs.length);
+        int mask = grown.macs.length - 1;
+        for (int i = 0; i < slots.macs.length; i++)
+        {
+            if (NO_MAC == slots.macs[i])
+            { continue; }
+            int slot = slotOf(slots.macs[i], mask);
+            while (grown.macs[slot] != NO_MAC)
+            { slot = (slot + 1) & mask; }
+            grown.macs[slot] = slots.macs[i];
+            grown.ifaces[slot] = slots.ifaces[i];
+            grown.updated[slot] = slots.updated[i];
+        }
+        return grown;
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int size()
+    { return this.size; }
+
+    /**
+     * Add an address to the bucket for the tick by which its entry, last
+     * learned at a time, will have timed out.
+     */
+    private void addToWheel(long mac, long updated)
+    {
+        long due = updated + TIMEOUT + 1;
+        int bucket = (int)((due + TimerWheel.TICK - 1) / TimerWheel.TICK)
+                & (BUCKETS - 1);
+        long[] macs = this.buckets[bucket];
+        int size = this.bucketSizes[bucket];
+        if (null == macs)
+        {
+            macs = new long[INITIAL_BUCKET_CAPACITY];
+            this.buckets[bucket] = macs;
+        }
+        else if (size == macs.length)
+        {
+            macs = Arrays.copyOf(macs, 2 * size);
+            this.buckets[bucket] = macs;
+        }
+        macs[size] = mac;
+        this.bucketSizes[bucket] = size + 1;
+    }
+
+    private void schedule()
+    {
+        this.timer = this.timers.schedule(new Runnable() {
+            public void run()
+            { expire(); }
+        }, TimerWheel.TICK);
+    }
+
+    /**
+     * Every tick while the table has entries: check the addresses due since
+     * the last tick, removing the entries that have timed out and adding the
+     * others again for when they will next be due.
+     */
+    private synchronized void expire()
+    {
+        long now = this.timers.currentTimeMillis();
+        long tick = now / TimerWheel.TICK;
+        for (; this.tick < tick; this.tick++)
+        {
+            int bucket = (int)(this.tick + 1) & (BUCKETS - 1);
+            long[] macs = this.buckets[bucket];
+            int size = this.bucketSizes[bucket];
+            this.bucketSizes[bucket] = 0;
+            for (int i = 0; i < size; i++)
             {
-                if ((System.currentTimeMillis() - entry.getTimeUpdated())
-                        > TIMEOUT)
-                { this.entries.remove(entry.getMACAddress()); }
+                Slots slots = this.slots;
+                int slot = find(slots, macs[i]);
+                if (slot < 0)
+                { continue; }
+                if (now - slots.updated[slot] > TIMEOUT)
+                { this.remove(slots, slot); }
+                else
+                { this.addToWheel(macs[i], slots.updated[slot]); }
             }
+
+            // Let a bucket that grew for a burst of addresses shrink again
+            if (macs != null && macs.length > INITIAL_BUCKET_CAPACITY)
+            { this.buckets[bucket] = null; }
         }
+
+        this.timer = null;
+        if (this.size > 0)
+        { this.schedule(); }
     }
-}
\ No newline at end of file
+}
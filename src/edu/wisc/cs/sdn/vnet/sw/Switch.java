@@ -4,12 +4,15 @@ import net.floodlightcontroller.packet.Ethernet;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Trace;
 
 /**
  * @author Aaron Gember-Jacobson
  */
 public class Switch extends Device
 {
+	private static final int ETHER_HEADER_LENGTH = 14;
+
 	private MACTable macTable;
 
 	/**
@@ -22,6 +25,68 @@ public class Switch extends Device
 		this.macTable = new MACTable();
 	}
 
+	/**
+	 * Read a MAC address from a frame as a 48-bit number.
+	 */
+	private static long getMac(byte[] frame, int offset)
+	{
+		long mac = 0;
+		for (int i = 0; i < 6; i++)
+		{ mac = (mac << 8) | (frame[offset + i] & 0xff); }
+		return mac;
+	}
+
+	/**
+	 * Forward a frame without parsing it: the source is learned and the
+	 * destination looked up from the frame's bytes, and the frame is sent,
+	 * or flooded if its destination is unknown, from those same bytes.
+	 * Frames that are traced are parsed and handled by
+	 * {@link #handlePacket(Ethernet, Iface)}.
+	 * @param frame buffer holding the frame
+	 * @param offset position of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was handled, false if it should be parsed
+	 */
+	public boolean handleFrame(byte[] frame, int offset, int length,
+			Iface inIface)
+	{
+		if (length < ETHER_HEADER_LENGTH
+				|| this.trace.isEnabled(Trace.PACKET, inIface))
+		{ return false; }
+
+		this.macTable.learn(getMac(frame, offset + 6), inIface.getIndex());
+
+		int index = this.macTable.lookup(getMac(frame, offset));
+		Iface outIface = (MACTable.NO_IFACE == index) ? null
+				: this.getInterface(index);
+		if (outIface != null)
+		{ this.sendFrame(frame, offset, length, outIface); }
+		else
+		{
+			this.floodFrame(frame, offset, length, inIface);
+			this.traceFlood(inIface);
+		}
+		return true;
+	}
+
+	/**
+	 * Trace that a frame was flooded out every interface but one.
+	 */
+	private void traceFlood(Iface inIface)
+	{
+		Iface iface;
+		for (int index = 0; (iface = this.getInterface(index)) != null;
+				index++)
+		{
+			if (iface != inIface)
+			{
+				this.trace.log(Trace.DEBUG, iface, 
+						"Send packet out interface %s", iface);
+			}
+		}
+	}
+
 	/**
 	 * Handle an Ethernet packet received on a specific interface.
 	 * @param etherPacket the Ethernet packet that was received
@@ -29,27 +94,25 @@ public class Switch extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
-				etherPacket.toString().replace("\n", "\n\t"));
+		this.trace.logPacket(Trace.PACKET, inIface, 
+				"*** -> Received packet: %s", etherPacket);
 
 		/********************************************************************/
 		/* TODO: Handle packets                                             */
 
-		this.macTable.insert(etherPacket.getSourceMAC(), inIface);
+		this.macTable.learn(etherPacket.getSourceMAC().toLong(),
+				inIface.getIndex());
 
-		MACTableEntry entry = this.macTable.lookup(etherPacket.getDestinationMAC());
-		if (entry != null)
-		{ this.sendPacket(etherPacket, entry.getInterface()); }
+		int index = this.macTable.lookup(
+				etherPacket.getDestinationMAC().toLong());
+		Iface outIface = (MACTable.NO_IFACE == index) ? null
+				: this.getInterface(index);
+		if (outIface != null)
+		{ this.sendPacket(etherPacket, outIface); }
 		else
 		{
-			for (Iface iface : this.interfaces.values())
-			{
-				if (iface != inIface)
-				{
-					this.sendPacket(etherPacket, iface);
-					System.out.println("Send packet out interface "+iface);
-				}
-			}
+			this.floodPacket(etherPacket, inIface);
+			this.traceFlood(inIface);
 		}
 
 		/********************************************************************/
@@ -1,6 +1,7 @@
 package edu.wisc.cs.sdn.vnet.vns;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import net.floodlightcontroller.packet.Ethernet;
 
@@ -20,9 +21,12 @@ public class CommandPacket extends Command
 		buf.get(tmpBytes);
 		this.mInterfaceName = new String(tmpBytes).trim();
 		
+		// Copy the frame, since the buffer is reused and payloads are copied
+		// to the end of the array they are parsed from
+		byte[] frame = Arrays.copyOfRange(buf.array(), buf.position(),
+				buf.limit());
         this.etherPacket = new Ethernet();
-		this.etherPacket.deserialize(buf.array(), buf.position(),
-				buf.capacity() - buf.position());
+		this.etherPacket.deserialize(frame, 0, frame.length);
 		
 		return this;
 	}
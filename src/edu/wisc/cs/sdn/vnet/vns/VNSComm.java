@@ -7,6 +7,7 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.MACAddress;
@@ -16,13 +17,33 @@ import edu.wisc.cs.sdn.vnet.Iface;
 
 public class VNSComm 
 {
+	/** Size of the fields before the frame in a packet command: length,
+	 *  command type, and interface name */
+	public static final int PACKET_HEADER_SIZE = 24;
+
+	/** Largest command accepted from the server */
+	private static final int MAX_COMMAND_SIZE = 10000;
+
+	/** Size of the interface name field in a packet command */
+	private static final int IFACE_NAME_SIZE = 16;
+
 	private Socket socket;
 	private Device device;
+
+	/** Buffer commands are read into; reused for every command, so packets
+	 *  can be read and forwarded without allocating */
+	private byte[] readBuffer;
+
+	/** Buffer the commands for a flooded frame are built in; reused for
+	 *  every flooded frame, and grown as needed */
+	private byte[] floodBuffer;
 	
 	public VNSComm(Device device)
 	{ 
 		this.device = device;
 		this.device.setVNSComm(this);
+		this.readBuffer = new byte[MAX_COMMAND_SIZE];
+		this.floodBuffer = new byte[MAX_COMMAND_SIZE];
 	}
 	
 	public boolean connectToServer(short port, String server)
@@ -121,12 +142,12 @@ public class VNSComm
 		}
 		
 		// Attempt to read the size of the incoming packet
-		byte[] lenBytes = new byte[4];
+		byte[] readBuffer = this.readBuffer;
 		while (bytesRead < 4)
 		{
 			try 
 			{
-				int ret = inStream.read(lenBytes, bytesRead, 4 - bytesRead);
+				int ret = inStream.read(readBuffer, bytesRead, 4 - bytesRead);
 				if (ret < 0)
 				{ throw new Exception(); }
 				bytesRead += ret;
@@ -138,9 +159,9 @@ public class VNSComm
 			}
 		}
 		
-		int len = ByteBuffer.wrap(lenBytes).getInt();
+		int len = getInt(readBuffer, 0);
 		
-		if (len > 10000 || len < 0)
+		if (len > MAX_COMMAND_SIZE || len < 8)
 		{
 			System.err.println(String.format(
 					"Error: comamnd length too large %d", len));
@@ -148,18 +169,12 @@ public class VNSComm
 			return false;
 		}
 		
-		// Allocate buffer
-		ByteBuffer buf = ByteBuffer.allocate(len);
-		
-		// Set first field of command since we've already read it
-		buf.putInt(len);
-		
 		// Read the rest of the command
 		while (bytesRead < len)
 		{
 			try 
 			{
-				int ret = inStream.read(buf.array(), bytesRead, len - bytesRead);
+				int ret = inStream.read(readBuffer, bytesRead, len - bytesRead);
 				if (ret < 0)
 				{ throw new Exception(); }
 				bytesRead += ret;
@@ -174,7 +189,7 @@ public class VNSComm
 		}
 		
 		// Make sure the command is what we expected if we were expecting something
-		int command = buf.getInt();
+		int command = getInt(readBuffer, 4);
 		if (expectedCmd != 0 && command != expectedCmd)
 		{
 			if (command != Command.VNS_CLOSE) // VNS_CLOSE is always ok
@@ -186,17 +201,30 @@ public class VNSComm
 			}
 		}
 		
-		buf.position(0);
+		if (Command.VNS_PACKET == command && len >= PACKET_HEADER_SIZE)
+		{
+			// Log packet
+			int frameLength = len - PACKET_HEADER_SIZE;
+            if (this.device.getLogFile() != null)
+            {
+				this.device.getLogFile().dump(readBuffer, PACKET_HEADER_SIZE,
+						frameLength);
+			}
+
+			// Let the device handle the frame without parsing it, if it can
+			Iface inIface = this.findInterface(readBuffer, 8);
+			if (inIface != null && this.device.handleFrame(readBuffer,
+					PACKET_HEADER_SIZE, frameLength, inIface))
+			{ return true; }
+		}
+		
+		ByteBuffer buf = ByteBuffer.wrap(readBuffer, 0, len);
 		switch(command)
 		{
 		case Command.VNS_PACKET:
 			CommandPacket cmdPkt = new CommandPacket();
 			cmdPkt.deserialize(buf);
 			
-			// Log packet
-            if (this.device.getLogFile() != null)
-            { this.device.getLogFile().dump(cmdPkt.etherPacket); }
-			
 			// Pass to device, student's code should take over here
 			this.device.handlePacket(cmdPkt.etherPacket, 
 					this.device.getInterface(cmdPkt.mInterfaceName));
@@ -223,6 +251,48 @@ public class VNSComm
 		return true;
 	}
 	
+	private static int getInt(byte[] buffer, int offset)
+	{
+		return ((buffer[offset] & 0xff) << 24) 
+				| ((buffer[offset + 1] & 0xff) << 16)
+				| ((buffer[offset + 2] & 0xff) << 8) 
+				| (buffer[offset + 3] & 0xff);
+	}
+
+	private static void putInt(byte[] buffer, int offset, int value)
+	{
+		buffer[offset] = (byte)(value >>> 24);
+		buffer[offset + 1] = (byte)(value >>> 16);
+		buffer[offset + 2] = (byte)(value >>> 8);
+		buffer[offset + 3] = (byte)value;
+	}
+
+	/**
+	 * Find the interface named by the zero-padded name field of a packet
+	 * command, without building a string.
+	 * @return the interface; null if there is none by that name
+	 */
+	private Iface findInterface(byte[] buffer, int offset)
+	{
+		Iface iface;
+		for (int index = 0; (iface = this.device.getInterface(index)) != null;
+				index++)
+		{
+			String name = iface.getName();
+			int length = name.length();
+			if (length > IFACE_NAME_SIZE 
+					|| (length < IFACE_NAME_SIZE 
+							&& buffer[offset + length] != 0))
+			{ continue; }
+			int i = 0;
+			while (i < length && name.charAt(i) == buffer[offset + i])
+			{ i++; }
+			if (i == length)
+			{ return iface; }
+		}
+		return null;
+	}
+	
 	public boolean etherAddrsMatchInterface(Ethernet etherPacket, 
 			String ifaceName)
 	{
@@ -241,29 +311,73 @@ public class VNSComm
 		return true;
 	}
 	
-	// sr_send_packet
+	// sr_send_packet; the packet is serialized once, and the same bytes are
+	// logged and written by sendFrame
 	public boolean sendPacket(Ethernet etherPacket, String ifaceName)
 	{
-		CommandPacket cmdPacket = new CommandPacket();
-		cmdPacket.mInterfaceName = ifaceName;
-		cmdPacket.etherPacket = etherPacket;
-		
-		byte[] buf = cmdPacket.serialize();
-		
 		/*if (!etherAddrsMatchInterface(etherPacket, ifaceName))
 		{
 			System.err.println("*** Error: problem with ethernet header, check log");
 			return false;
 		}*/
-		
+
+		byte[] frame = etherPacket.serialize();
+		return this.sendFrame(frame, 0, frame.length, ifaceName);
+	}
+
+	/**
+	 * Write the fields of a packet command.
+	 * @param buffer buffer to write the fields into
+	 * @param start position of the command in the buffer
+	 * @param length length of the frame that follows the fields
+	 * @param ifaceName name of the interface on which to send the frame
+	 */
+	private static void putPacketHeader(byte[] buffer, int start, int length,
+			String ifaceName)
+	{
+		putInt(buffer, start, PACKET_HEADER_SIZE + length);
+		putInt(buffer, start + 4, Command.VNS_PACKET);
+		for (int i = 0; i < IFACE_NAME_SIZE; i++)
+		{
+			buffer[start + 8 + i] = (i < ifaceName.length()) 
+					? (byte)ifaceName.charAt(i) : 0;
+		}
+	}
+
+	/**
+	 * Send a frame from its raw bytes. The fields of the packet command are
+	 * written into the buffer just before the frame, so the command is 
+	 * written to the server without copying the frame.
+	 * @param frame buffer holding the frame, with at least {@link
+	 *        #PACKET_HEADER_SIZE} bytes before the frame that may be 
+	 *        overwritten
+	 * @param offset position of the frame in the buffer
+	 * @param length length of the frame
+	 * @param ifaceName name of the interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public synchronized boolean sendFrame(byte[] frame, int offset, 
+			int length, String ifaceName)
+	{
+		if (offset < PACKET_HEADER_SIZE)
+		{
+			byte[] copy = new byte[PACKET_HEADER_SIZE + length];
+			System.arraycopy(frame, offset, copy, PACKET_HEADER_SIZE, length);
+			frame = copy;
+			offset = PACKET_HEADER_SIZE;
+		}
+
+		int start = offset - PACKET_HEADER_SIZE;
+		putPacketHeader(frame, start, length, ifaceName);
+
 		// Log packet
         if (this.device.getLogFile() != null)
-        { this.device.getLogFile().dump(etherPacket); }
-		
+        { this.device.getLogFile().dump(frame, offset, length); }
+
 	    try
 		{
 			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
+			outStream.write(frame, start, PACKET_HEADER_SIZE + length);
             outStream.flush();
 		}
 		catch(IOException e)
@@ -273,4 +387,58 @@ public class VNSComm
 		}
 		return true;
 	}
+
+	/**
+	 * Send a frame out every interface of the device but one. A packet 
+	 * command is built for each interface from the same bytes, differing 
+	 * only in the interface name, and all of the commands are written to the
+	 * server at once.
+	 * @param frame buffer holding the frame
+	 * @param offset position of the frame in the buffer
+	 * @param length length of the frame
+	 * @param exceptIface interface on which not to send the frame; null to
+	 *        send it on every interface
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public synchronized boolean floodFrame(byte[] frame, int offset, 
+			int length, Iface exceptIface)
+	{
+		int size = PACKET_HEADER_SIZE + length;
+		int end = 0;
+		Iface iface;
+		for (int index = 0; (iface = this.device.getInterface(index)) != null;
+				index++)
+		{
+			if (iface == exceptIface)
+			{ continue; }
+			if (end + size > this.floodBuffer.length)
+			{
+				this.floodBuffer = Arrays.copyOf(this.floodBuffer, 
+						Math.max(2 * this.floodBuffer.length, end + size));
+			}
+			putPacketHeader(this.floodBuffer, end, length, iface.getName());
+			System.arraycopy(frame, offset, this.floodBuffer, 
+					end + PACKET_HEADER_SIZE, length);
+			end += size;
+
+			// Log packet
+			if (this.device.getLogFile() != null)
+			{ this.device.getLogFile().dump(frame, offset, length); }
+		}
+		if (0 == end)
+		{ return true; }
+
+		try
+		{
+			OutputStream outStream = socket.getOutputStream();
+			outStream.write(this.floodBuffer, 0, end);
+			outStream.flush();
+		}
+		catch(IOException e)
+		{
+			System.err.println("Error writing packet");
+			return false;
+		}
+		return true;
+	}
 }
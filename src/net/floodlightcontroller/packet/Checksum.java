@@ -0,0 +1,102 @@
+package net.floodlightcontroller.packet;
+
+/**
+ * Computes, verifies, and incrementally updates the Internet checksum used
+ * by IPv4, ICMP, UDP, and TCP (RFC 1071), directly over packet bytes.
+ */
+public final class Checksum {
+    private Checksum() {
+    }
+
+    /**
+     * Add 16-bit big-endian words to a one's complement sum, padding an odd
+     * trailing byte with zero. The sum is not folded, so it can be carried
+     * across several calls; up to 64KB can be added before it overflows.
+     * @param sum sum to add to
+     * @param data buffer holding the words
+     * @param offset position of the first word in the buffer
+     * @param length number of bytes to add
+     * @return the new sum
+     */
+    public static int add(int sum, byte[] data, int offset, int length) {
+        int end = offset + (length & ~1);
+        for (int i = offset; i < end; i += 2) {
+            sum += ((data[i] & 0xff) << 8) | (data[i + 1] & 0xff);
+        }
+        if ((length & 1) != 0) {
+            sum += (data[end] & 0xff) << 8;
+        }
+        return sum;
+    }
+
+    /**
+     * Add the IPv4 pseudo header used by UDP and TCP to a one's complement
+     * sum.
+     * @param sum sum to add to
+     * @param ipv4 IPv4 packet carrying the segment
+     * @param length length of the segment
+     * @return the new sum
+     */
+    public static int addPseudoHeader(int sum, IPv4 ipv4, int length) {
+        int source = ipv4.getSourceAddress();
+        int destination = ipv4.getDestinationAddress();
+        return sum + (source >>> 16) + (source & 0xffff)
+                + (destination >>> 16) + (destination & 0xffff)
+                + (ipv4.getProtocol() & 0xff) + (length & 0xffff);
+    }
+
+    /**
+     * Fold the carries of a one's complement sum back into its low 16 bits.
+     * @param sum the sum
+     * @return the folded sum
+     */
+    public static int fold(int sum) {
+        sum = (sum >>> 16) + (sum & 0xffff);
+        return (sum + (sum >>> 16)) & 0xffff;
+    }
+
+    /**
+     * Compute the checksum of a one's complement sum.
+     * @param sum the sum, folded or not
+     * @return the checksum
+     */
+    public static short finish(int sum) {
+        return (short) ~fold(sum);
+    }
+
+    /**
+     * Compute the checksum of a range of bytes whose checksum field is zero.
+     * @param data buffer holding the bytes
+     * @param offset position of the bytes in the buffer
+     * @param length number of bytes
+     * @return the checksum
+     */
+    public static short compute(byte[] data, int offset, int length) {
+        return finish(add(0, data, offset, length));
+    }
+
+    /**
+     * Verify a range of bytes that includes its checksum field, without
+     * copying or modifying it.
+     * @param data buffer holding the bytes
+     * @param offset position of the bytes in the buffer
+     * @param length number of bytes
+     * @return true if the checksum is valid, otherwise false
+     */
+    public static boolean verify(byte[] data, int offset, int length) {
+        return fold(add(0, data, offset, length)) == 0xffff;
+    }
+
+    /**
+     * Update a checksum for a changed 16-bit word, without summing the rest
+     * of the bytes again (RFC 1624, eqn. 3).
+     * @param checksum the checksum
+     * @param oldWord the word before it changed
+     * @param newWord the word after it changed
+     * @return the updated checksum
+     */
+    public static short update(short checksum, short oldWord, short newWord) {
+        return finish((~checksum & 0xffff) + (~oldWord & 0xffff)
+                + (newWord & 0xffff));
+    }
+}
@@ -58,6 +58,7 @@ public class IPv4 extends BasePacket {
     protected byte[] options;
 
     protected boolean isTruncated;
+    protected boolean isChecksumValid;
 
     /**
      * Default constructor that sets the version to 4.
@@ -66,6 +67,7 @@ public class IPv4 extends BasePacket {
         super();
         this.version = 4;
         isTruncated = false;
+        isChecksumValid = false;
     }
 
     /**
@@ -127,6 +129,14 @@ public class IPv4 extends BasePacket {
         this.isTruncated = isTruncated;
     }
 
+    /**
+     * @return true if the header checksum was valid in the bytes the packet
+     *         was deserialized from, otherwise false
+     */
+    public boolean isChecksumValid() {
+        return isChecksumValid;
+    }
+
     /**
      * @param identification the identification to set
      */
@@ -321,14 +331,7 @@ public class IPv4 extends BasePacket {
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
-            int accumulation = 0;
-            for (int i = 0; i < this.headerLength * 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
-            }
-            accumulation = ((accumulation >> 16) & 0xffff)
-                    + (accumulation & 0xffff);
-            this.checksum = (short) (~accumulation & 0xffff);
+            this.checksum = Checksum.compute(data, 0, this.headerLength * 4);
             bb.putShort(10, this.checksum);
         }
         return data;
@@ -341,6 +344,10 @@ public class IPv4 extends BasePacket {
 
         this.version = bb.get();
         this.headerLength = (byte) (this.version & 0xf);
+        // verify the header where it was received, before it is parsed
+        this.isChecksumValid = this.headerLength >= 5
+                && this.headerLength * 4 <= length
+                && Checksum.verify(data, offset, this.headerLength * 4);
         this.version = (byte) ((this.version >> 4) & 0xf);
         this.diffServ = bb.get();
         this.totalLength = bb.getShort();
@@ -0,0 +1,166 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+/**
+ * Checks the ARP table against a hash map, and checks that lock-free
+ * lookups running alongside updates never see a missing or torn entry.
+ */
+public class ArpTableTest
+{
+	private static final int OPERATIONS = 2000000;
+
+	/** Number of IP addresses the sequential test draws from */
+	private static final int ADDRESSES = 5000;
+
+	/** Number of entries that stay in the table during the concurrent test;
+	 *  with the churning entries, they keep the table densely filled, so
+	 *  removals often shift them */
+	private static final int STABLE = 16;
+
+	/** Most entries added and removed around the stable ones */
+	private static final int CHURN = 16;
+
+	private static final int READERS = 2;
+
+	/** Set when the update thread is done, to stop the lookup threads */
+	private static volatile boolean done;
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		checkSequential();
+		checkConcurrent();
+		System.out.println("ArpTableTest: ok");
+	}
+
+	private static void checkSequential()
+	{
+		ArpTable table = new ArpTable();
+		Map<Integer,ArpEntry> expected = new HashMap<Integer,ArpEntry>();
+		Random random = new Random(1);
+		for (int i = 0; i < OPERATIONS; i++)
+		{
+			int ip = random.nextInt(ADDRESSES) * 7919;
+			if (random.nextInt(3) > 0)
+			{
+				ArpEntry entry = new ArpEntry(
+						MACAddress.valueOf((long)random.nextInt(1 << 30)), ip);
+				table.put(entry);
+				expected.put(ip, entry);
+			}
+			else
+			{
+				ArpEntry entry = expected.remove(ip);
+				if (entry != null && !table.remove(entry))
+				{ throw new AssertionError("Entry for " + ip + " missing"); }
+			}
+
+			ip = random.nextInt(ADDRESSES) * 7919;
+			ArpEntry entry = expected.get(ip);
+			long mac = (null == entry) ? ArpTable.NO_MAC
+					: entry.getMac().toLong();
+			if (table.get(ip) != entry || table.getMac(ip) != mac)
+			{
+				throw new AssertionError(String.format(
+						"Lookup of %s found %s, expected %s",
+						IPv4.fromIPv4Address(ip), table.get(ip), entry));
+			}
+		}
+		if (table.size() != expected.size()
+				|| table.entries().size() != expected.size())
+		{
+			throw new AssertionError(String.format(
+					"Table holds %d entries, expected %d", table.size(),
+					expected.size()));
+		}
+	}
+
+	/**
+	 * Look up entries that are always in the table while an update thread
+	 * moves them, by adding and removing other entries and growing the
+	 * table, and replaces some of them with entries for another MAC address.
+	 */
+	private static void checkConcurrent() throws InterruptedException
+	{
+		final ArpTable table = new ArpTable();
+		for (int i = 0; i < STABLE; i++)
+		{ table.put(new ArpEntry(MACAddress.valueOf((long)i + 1), 2 * i)); }
+
+		done = false;
+		final long[] lookups = new long[READERS];
+		final String[] errors = new String[READERS];
+		Thread[] readers = new Thread[READERS];
+		for (int r = 0; r < READERS; r++)
+		{
+			final int reader = r;
+			readers[r] = new Thread() {
+				public void run()
+				{
+					Random random = new Random(reader);
+					while (!done && null == errors[reader])
+					{
+						int i = random.nextInt(STABLE);
+						long mac = table.getMac(2 * i);
+						ArpEntry entry = table.get(2 * i);
+						// Even entries keep their MAC address; odd entries
+						// are replaced with one of two
+						boolean valid = (0 == i % 2) ? (mac == i + 1)
+								: (mac == i + 1 || mac == -i - 1 + (1L << 40));
+						if (!valid || null == entry || entry.getIp() != 2 * i)
+						{
+							errors[reader] = String.format(
+									"Lookup of %s found %x and %s",
+									IPv4.fromIPv4Address(2 * i), mac, entry);
+						}
+						lookups[reader]++;
+					}
+				}
+			};
+			readers[r].start();
+		}
+
+		Random random = new Random(3);
+		List<ArpEntry> churn = new ArrayList<ArpEntry>();
+		for (int i = 0; i < OPERATIONS; i++)
+		{
+			int op = random.nextInt(8);
+			if (0 == op)
+			{
+				int stable = 2 * random.nextInt(STABLE / 2) + 1;
+				long mac = random.nextBoolean() ? stable + 1
+						: -stable - 1 + (1L << 40);
+				table.put(new ArpEntry(MACAddress.valueOf(mac), 2 * stable));
+			}
+			else if (churn.size() < CHURN && random.nextBoolean())
+			{
+				// Odd addresses never collide with the stable entries
+				ArpEntry entry = new ArpEntry(MACAddress.valueOf(5L),
+						random.nextInt() | 1);
+				if (null == table.get(entry.getIp()))
+				{
+					table.put(entry);
+					churn.add(entry);
+				}
+			}
+			else if (!churn.isEmpty())
+			{ table.remove(churn.remove(random.nextInt(churn.size()))); }
+		}
+
+		done = true;
+		for (int r = 0; r < READERS; r++)
+		{
+			readers[r].join();
+			if (errors[r] != null)
+			{ throw new AssertionError(errors[r]); }
+			if (0 == lookups[r])
+			{ throw new AssertionError("Reader " + r + " made no lookups"); }
+		}
+	}
+}
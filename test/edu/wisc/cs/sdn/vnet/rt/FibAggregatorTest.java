@@ -0,0 +1,137 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.floodlightcontroller.packet.IPv4;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Checks that aggregating a route table's prefixes does not change the next
+ * hops of any address, as routes are added, changed, and removed.
+ */
+public class FibAggregatorTest
+{
+	/** Number of /24 prefixes in 10.0.0.0/8 */
+	private static final int PREFIXES = 1 << 12;
+
+	private static final int CHANGES = 500;
+
+	private static final int LOOKUPS = 200000;
+
+	private Random random;
+
+	private Iface[] ifaces;
+
+	/** Table with aggregation, and the same table without */
+	private RouteTable aggregated, reference;
+
+	private FibAggregatorTest(String type)
+	{
+		this.random = new Random(1);
+		this.ifaces = new Iface[4];
+		for (int i = 0; i < this.ifaces.length; i++)
+		{
+			this.ifaces[i] = new Iface("eth" + i);
+			this.ifaces[i].setIndex(i);
+		}
+
+		this.aggregated = new RouteTable();
+		this.reference = new RouteTable();
+		this.insert(0, 1, 0, this.ifaces[0]);
+		for (int i = 0; i < PREFIXES; i++)
+		{
+			// Runs of prefixes share a next hop, so they aggregate
+			int nextHop = (i >> 5) % this.ifaces.length;
+			if (0 == this.random.nextInt(20))
+			{ nextHop = this.random.nextInt(this.ifaces.length); }
+			this.insert((10 << 24) | (i << 8), nextHop + 1, 0xffffff00,
+					this.ifaces[nextHop]);
+		}
+		this.aggregated.setAggregation(true);
+		this.aggregated.setForwardingTable(type);
+	}
+
+	public static void main(String[] args)
+	{
+		String[] types = { RouteTable.FIB_TRIE, RouteTable.FIB_DIR248,
+				RouteTable.FIB_POPTRIE };
+		for (String type : types)
+		{ new FibAggregatorTest(type).run(); }
+		System.out.println("FibAggregatorTest: ok");
+	}
+
+	private void insert(int dstIp, int gwIp, int maskIp, Iface iface)
+	{
+		this.aggregated.insert(dstIp, gwIp, maskIp, iface);
+		this.reference.insert(dstIp, gwIp, maskIp, iface);
+	}
+
+	private void run()
+	{
+		this.check();
+		for (int i = 0; i < CHANGES; i++)
+		{
+			int dstIp = (10 << 24) | (this.random.nextInt(PREFIXES) << 8);
+			int maskIp = PrefixTrie.maskOf(16 + this.random.nextInt(17));
+			int nextHop = this.random.nextInt(this.ifaces.length);
+			switch (this.random.nextInt(3))
+			{
+			case 0:
+				this.insert(dstIp, nextHop + 1, maskIp, this.ifaces[nextHop]);
+				break;
+			case 1:
+				this.aggregated.remove(dstIp, maskIp);
+				this.reference.remove(dstIp, maskIp);
+				break;
+			default:
+				this.aggregated.update(dstIp, maskIp, nextHop + 1,
+						this.ifaces[nextHop]);
+				this.reference.update(dstIp, maskIp, nextHop + 1,
+						this.ifaces[nextHop]);
+				break;
+			}
+		}
+		this.check();
+
+		// A change to the default route changes every partition
+		this.aggregated.update(0, 0, 2, this.ifaces[1]);
+		this.reference.update(0, 0, 2, this.ifaces[1]);
+		this.check();
+		this.aggregated.remove(0, 0);
+		this.reference.remove(0, 0);
+		this.check();
+
+		// Holes left by removing the default route are not printed
+		if (this.aggregated.toString().contains("null")
+				|| this.aggregated.getForwardingTableInfo().isEmpty())
+		{ throw new AssertionError("Route table dump is incomplete"); }
+	}
+
+	private void check()
+	{
+		NextHopTable aggregatedNextHops = this.aggregated.getNextHopTable();
+		NextHopTable referenceNextHops = this.reference.getNextHopTable();
+		for (int i = 0; i < LOOKUPS; i++)
+		{
+			int ip = this.random.nextBoolean() ? this.random.nextInt()
+					: ((10 << 24) | this.random.nextInt(1 << 24));
+			int group = this.aggregated.lookupNextHopGroup(ip);
+			int referenceGroup = this.reference.lookupNextHopGroup(ip);
+
+			// Both tables intern next hops in the same order
+			int[] members = (group < 0) ? new int[0]
+					: aggregatedNextHops.getGroup(group).getMembers();
+			int[] referenceMembers = (referenceGroup < 0) ? new int[0]
+					: referenceNextHops.getGroup(referenceGroup).getMembers();
+			if (!Arrays.equals(members, referenceMembers))
+			{
+				throw new AssertionError(String.format(
+						"Next hops for %s are %s, expected %s",
+						IPv4.fromIPv4Address(ip), Arrays.toString(members),
+						Arrays.toString(referenceMembers)));
+			}
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import net.floodlightcontroller.packet.IPv4;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Checks that each forwarding table structure, with and without
+ * aggregation, agrees with a linear scan of the route table, over random
+ * tables and random sequences of inserts, removals, and updates.
+ */
+public class FibTest
+{
+	private static final int ROUNDS = 3;
+
+	private static final int INITIAL_ROUTES = 400;
+
+	private static final int STEPS = 200;
+
+	private static final int LOOKUPS = 500;
+
+	private static final int GATEWAYS = 5;
+
+	private Random random;
+
+	private Iface[] ifaces;
+
+	/** Prefixes added so far, as pairs of destination and mask */
+	private List<int[]> prefixes;
+
+	private FibTest(long seed)
+	{
+		this.random = new Random(seed);
+		this.ifaces = new Iface[3];
+		for (int i = 0; i < this.ifaces.length; i++)
+		{
+			this.ifaces[i] = new Iface("eth" + i);
+			this.ifaces[i].setIndex(i);
+		}
+		this.prefixes = new ArrayList<int[]>();
+	}
+
+	public static void main(String[] args)
+	{
+		String[] types = { RouteTable.FIB_TRIE, RouteTable.FIB_DIR248,
+				RouteTable.FIB_POPTRIE };
+		for (String type : types)
+		{
+			new FibTest(1).run(type, false);
+			new FibTest(2).run(type, true);
+		}
+		System.out.println("FibTest: ok");
+	}
+
+	/**
+	 * @return a random address; half are drawn from a few clusters, so
+	 *         prefixes nest and overlap
+	 */
+	private int randomIp()
+	{
+		if (this.random.nextBoolean())
+		{ return this.random.nextInt(); }
+		return (this.random.nextInt(4) << 28) | (this.random.nextInt(16) << 20)
+				| (this.random.nextInt(4) << 10) | this.random.nextInt(1 << 8);
+	}
+
+	private int randomGateway()
+	{ return this.random.nextInt(GATEWAYS); }
+
+	private Iface randomIface()
+	{ return this.ifaces[this.random.nextInt(this.ifaces.length)]; }
+
+	private int[] randomPrefix()
+	{ return this.prefixes.get(this.random.nextInt(this.prefixes.size())); }
+
+	/** Add a route for a new prefix, or another route for an existing one */
+	private void insert(RouteTable table)
+	{
+		int[] prefix;
+		if (!this.prefixes.isEmpty() && 0 == this.random.nextInt(3))
+		{ prefix = this.randomPrefix(); }
+		else
+		{
+			prefix = new int[] { this.randomIp(),
+					PrefixTrie.maskOf(this.random.nextInt(33)) };
+		}
+		table.insert(prefix[0], this.randomGateway(), prefix[1],
+				this.randomIface());
+		this.prefixes.add(prefix);
+	}
+
+	private void run(String type, boolean aggregate)
+	{
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			RouteTable table = new RouteTable();
+			this.prefixes.clear();
+			for (int i = 0; i < INITIAL_ROUTES; i++)
+			{ this.insert(table); }
+			table.setAggregation(aggregate);
+			if (!table.setForwardingTable(type))
+			{ throw new AssertionError("Unknown forwarding table " + type); }
+			this.check(table, type);
+
+			for (int step = 0; step < STEPS; step++)
+			{
+				int[] prefix = this.randomPrefix();
+				switch (this.random.nextInt(3))
+				{
+				case 0:
+					this.insert(table);
+					break;
+				case 1:
+					table.remove(prefix[0], prefix[1]);
+					break;
+				default:
+					table.update(prefix[0], prefix[1], this.randomGateway(),
+							this.randomIface());
+					break;
+				}
+				this.check(table, type);
+			}
+		}
+	}
+
+	private static long key(int dstIp, int maskIp)
+	{ return ((long)dstIp << 32) | (maskIp & 0xffffffffL); }
+
+	private static String describe(int gwIp, Iface iface)
+	{ return IPv4.fromIPv4Address(gwIp) + "/" + iface.getName(); }
+
+	/**
+	 * Look up random addresses, and compare the next hops found by the
+	 * forwarding table with those of the routes for the prefix a linear scan
+	 * finds.
+	 */
+	private void check(RouteTable table, String type)
+	{
+		// Gateway and interface of the routes for each prefix
+		final Map<Long,Set<String>> routes = new HashMap<Long,Set<String>>();
+		table.forEachEntry(new RouteTable.EntryHandler() {
+			public void handleEntry(int dstIp, int gwIp, int maskIp,
+					Iface iface)
+			{
+				Long prefix = key(dstIp & maskIp, maskIp);
+				Set<String> nextHops = routes.get(prefix);
+				if (null == nextHops)
+				{
+					nextHops = new HashSet<String>();
+					routes.put(prefix, nextHops);
+				}
+				nextHops.add(describe(gwIp, iface));
+			}
+		});
+
+		NextHopTable nextHopTable = table.getNextHopTable();
+		for (int i = 0; i < LOOKUPS; i++)
+		{
+			int ip = this.randomIp();
+			RouteEntry expected = table.lookupLinear(ip);
+			Set<String> expectedNextHops = Collections.<String>emptySet();
+			if (expected != null)
+			{
+				int mask = expected.getMaskAddress();
+				expectedNextHops = routes.get(
+						key(expected.getDestinationAddress() & mask, mask));
+			}
+
+			Set<String> nextHops = new HashSet<String>();
+			int group = table.lookupNextHopGroup(ip);
+			if (group >= 0)
+			{
+				for (int member : nextHopTable.getGroup(group).getMembers())
+				{
+					NextHop nextHop = nextHopTable.get(member);
+					nextHops.add(describe(nextHop.getGatewayAddress(),
+							nextHop.getInterface()));
+				}
+			}
+			if (!nextHops.equals(expectedNextHops))
+			{
+				throw new AssertionError(String.format(
+						"%s: next hops for %s are %s, expected %s (%s)", type,
+						IPv4.fromIPv4Address(ip), nextHops, expectedNextHops,
+						expected));
+			}
+
+			RouteEntry entry = table.lookup(ip);
+			if ((null == entry) != (null == expected) || (entry != null
+					&& (entry.getMaskAddress() != expected.getMaskAddress()
+					|| ((entry.getDestinationAddress()
+							^ expected.getDestinationAddress())
+							& expected.getMaskAddress()) != 0)))
+			{
+				throw new AssertionError(String.format(
+						"Trie entry for %s is %s, expected %s",
+						IPv4.fromIPv4Address(ip), entry, expected));
+			}
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks the MAC learning table against a hash map, and checks that
+ * lock-free lookups running alongside learning never miss an address.
+ */
+public class MACTableTest
+{
+    private static final int OPERATIONS = 1000000;
+
+    /** Number of MAC addresses the sequential test draws from */
+    private static final int ADDRESSES = 200000;
+
+    private static final int IFACES = 8;
+
+    /** Number of addresses looked up during the concurrent test */
+    private static final int STABLE = 1000;
+
+    /** Number of addresses learned around the stable ones, growing the
+     *  table several times */
+    private static final int GROWTH = 100000;
+
+    private static final int READERS = 2;
+
+    /** Set when the learning thread is done, to stop the lookup threads */
+    private static volatile boolean done;
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        checkSequential();
+        checkConcurrent();
+        System.out.println("MACTableTest: ok");
+    }
+
+    /** @return a MAC address spread over all 48 bits */
+    private static long macOf(int i)
+    { return (i * 0x9e3779b97f4a7c15L) & 0xffffffffffffL; }
+
+    private static void checkSequential()
+    {
+        MACTable table = new MACTable();
+        Map<Long,Integer> expected = new HashMap<Long,Integer>();
+        Random random = new Random(1);
+        for (int i = 0; i < OPERATIONS; i++)
+        {
+            // Moving an address to another interface updates it at once
+            long mac = macOf(random.nextInt(ADDRESSES));
+            int iface = random.nextInt(IFACES);
+            table.learn(mac, iface);
+            expected.put(mac, iface);
+
+            mac = macOf(random.nextInt(ADDRESSES));
+            Integer expectedIface = expected.get(mac);
+            int found = table.lookup(mac);
+            if (found != ((null == expectedIface) ? MACTable.NO_IFACE
+                    : expectedIface))
+            {
+                throw new AssertionError(String.format(
+                        "Lookup of %012x found %d, expected %s", mac, found,
+                        expectedIface));
+            }
+        }
+        if (table.size() != expected.size())
+        {
+            throw new AssertionError(String.format(
+                    "Table holds %d entries, expected %d", table.size(),
+                    expected.size()));
+        }
+    }
+
+    /**
+     * Look up addresses that are always in the table while a learning
+     * thread moves them between two interfaces and grows the table by
+     * learning other addresses.
+     */
+    private static void checkConcurrent() throws InterruptedException
+    {
+        final MACTable table = new MACTable();
+        for (int i = 0; i < STABLE; i++)
+        { table.learn(macOf(i), 1); }
+
+        done = false;
+        final long[] lookups = new long[READERS];
+        final String[] errors = new String[READERS];
+        Thread[] readers = new Thread[READERS];
+        for (int r = 0; r < READERS; r++)
+        {
+            final int reader = r;
+            readers[r] = new Thread() {
+                public void run()
+                {
+                    Random random = new Random(reader);
+                    while (!done && null == errors[reader])
+                    {
+                        long mac = macOf(random.nextInt(STABLE));
+                        int iface = table.lookup(mac);
+                        if (iface != 1 && iface != 2)
+                        {
+                            errors[reader] = String.format(
+                                    "Lookup of %012x found %d", mac, iface);
+                        }
+                        lookups[reader]++;
+                    }
+                }
+            };
+            readers[r].start();
+        }
+
+        Random random = new Random(3);
+        for (int i = 0; i < GROWTH; i++)
+        {
+            table.learn(macOf(random.nextInt(STABLE)), 1 + (i & 1));
+            table.learn(macOf(STABLE + i), 3);
+        }
+
+        done = true;
+        for (int r = 0; r < READERS; r++)
+        {
+            readers[r].join();
+            if (errors[r] != null)
+            { throw new AssertionError(errors[r]); }
+            if (0 == lookups[r])
+            { throw new AssertionError("Reader " + r + " made no lookups"); }
+        }
+    }
+}
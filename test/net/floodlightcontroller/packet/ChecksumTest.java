@@ -0,0 +1,77 @@
+package net.floodlightcontroller.packet;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that incrementally updated checksums match checksums computed over
+ * the changed bytes.
+ */
+public class ChecksumTest {
+    private static final int ITERATIONS = 200000;
+
+    /** Position of the checksum field in the headers, as in IPv4 */
+    private static final int CHECKSUM_OFFSET = 10;
+
+    public static void main(String[] args) {
+        // Example from RFC 1624, section 4
+        short updated = Checksum.update((short) 0xdd2f, (short) 0x5555,
+                (short) 0x3285);
+        if (updated != 0) {
+            throw new AssertionError(String.format(
+                    "RFC 1624 example updated to 0x%04x, expected 0x0000",
+                    updated & 0xffff));
+        }
+
+        Random random = new Random(1);
+        byte[] header = new byte[60];
+        for (int i = 0; i < ITERATIONS; i++) {
+            int length = 20 + 4 * random.nextInt(11);
+            random.nextBytes(header);
+            if (0 == random.nextInt(8)) {
+                // Headers of all zeros or all ones are the edge cases
+                Arrays.fill(header, (byte) (random.nextBoolean() ? 0 : 0xff));
+            }
+            // A header always holds its version, so its sum is never zero
+            header[0] = 0x45;
+            setChecksum(header, length);
+
+            int word = 2 + 2 * random.nextInt(length / 2 - 1);
+            if (CHECKSUM_OFFSET == word) {
+                continue;
+            }
+            short oldWord = getWord(header, word);
+            short newWord = (short) random.nextInt(1 << 16);
+            header[word] = (byte) (newWord >> 8);
+            header[word + 1] = (byte) newWord;
+            short checksum = Checksum.update(getWord(header, CHECKSUM_OFFSET),
+                    oldWord, newWord);
+            putWord(header, CHECKSUM_OFFSET, checksum);
+
+            if (!Checksum.verify(header, 0, length)) {
+                throw new AssertionError(String.format(
+                        "Updated checksum 0x%04x does not verify after "
+                        + "changing word %d from 0x%04x to 0x%04x",
+                        checksum & 0xffff, word, oldWord & 0xffff,
+                        newWord & 0xffff));
+            }
+        }
+        System.out.println("ChecksumTest: ok");
+    }
+
+    private static short getWord(byte[] data, int offset) {
+        return (short) (((data[offset] & 0xff) << 8)
+                | (data[offset + 1] & 0xff));
+    }
+
+    private static void putWord(byte[] data, int offset, short word) {
+        data[offset] = (byte) (word >> 8);
+        data[offset + 1] = (byte) word;
+    }
+
+    private static void setChecksum(byte[] header, int length) {
+        putWord(header, CHECKSUM_OFFSET, (short) 0);
+        putWord(header, CHECKSUM_OFFSET,
+                Checksum.compute(header, 0, length));
+    }
+}